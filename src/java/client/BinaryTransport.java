@@ -0,0 +1,252 @@
+package client;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Пул постоянных соединений двоичного протокола KVServer. Запросы раскладываются по соединениям по кругу
+ * и отправляются, не дожидаясь ответов на предыдущие; ответ находит свой запрос по номеру.
+ * Разорванное соединение открывается заново при следующем запросе.
+ * <p>
+ * Формат кадров и коды операций описаны в server.BinaryServer, значения здесь должны с ними совпадать.
+ */
+class BinaryTransport implements Closeable {
+
+    static final byte AUTH = 1;
+    static final byte GET = 2;
+    static final byte PUT = 3;
+    static final byte GET_BATCH = 4;
+    static final byte PUT_BATCH = 5;
+    static final byte SCAN = 6;
+
+    static final byte OK = 0;
+    static final byte NOT_FOUND = 1;
+    static final byte ERROR = 5;
+
+    private final InetSocketAddress address;
+    private final String apiToken;
+    private final long connectTimeoutMillis;
+    private final Connection[] connections;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile String epoch;
+    private volatile boolean closed;
+
+    BinaryTransport(String host, int port, String apiToken, int connections, long connectTimeoutMillis) {
+        this.address = new InetSocketAddress(host, port);
+        this.apiToken = apiToken;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.connections = new Connection[connections];
+    }
+
+    /**
+     * Эпоха сервера из ответа на AUTH, нужна для ETag. null, пока ни одно соединение не открыто.
+     */
+    String getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Ответ сервера без длины и номера запроса: статус и результат операции.
+     */
+    CompletableFuture<ByteBuffer> send(byte operation, byte[] payload) {
+        int slot = Math.floorMod(next.getAndIncrement(), connections.length);
+        try {
+            return connection(slot).send(operation, payload);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(new IOException("Нет соединения с " + address
+                    + " по двоичному протоколу: " + e.getMessage(), e));
+        }
+    }
+
+    private Connection connection(int slot) throws IOException {
+        synchronized (connections) {
+            if (closed) {
+                throw new IOException("клиент закрыт");
+            }
+            Connection connection = connections[slot];
+            if (connection == null || connection.broken) {
+                connection = new Connection();
+                connections[slot] = connection;
+                authenticate(connection);
+            }
+            return connection;
+        }
+    }
+
+    private void authenticate(Connection connection) throws IOException {
+        ByteBuffer response;
+        try {
+            response = connection.send(AUTH, new Payload().writeString(apiToken).toBytes())
+                    .get(connectTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            connection.close();
+            throw new IOException("подключение прервано", e);
+        } catch (ExecutionException | TimeoutException e) {
+            connection.close();
+            throw new IOException("сервер не ответил на AUTH", e);
+        }
+        if (response.get() != OK) {
+            connection.close();
+            throw new IOException("сервер не принял API_TOKEN");
+        }
+        epoch = readString(response);
+    }
+
+    @Override
+    public void close() {
+        synchronized (connections) {
+            closed = true;
+            for (Connection connection : connections) {
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    static String readString(ByteBuffer response) {
+        return new String(readBytes(response), UTF_8);
+    }
+
+    static byte[] readBytes(ByteBuffer response) {
+        byte[] bytes = new byte[response.getInt()];
+        response.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Параметры запроса в формате протокола.
+     */
+    static class Payload {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        Payload writeInt(int value) {
+            try {
+                out.writeInt(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return this;
+        }
+
+        Payload writeString(String value) {
+            return writeBytes(value.getBytes(UTF_8));
+        }
+
+        Payload writeBytes(byte[] value) {
+            try {
+                out.writeInt(value.length);
+                out.write(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return this;
+        }
+
+        byte[] toBytes() {
+            return bytes.toByteArray();
+        }
+    }
+
+    // запись кадров под блокировкой соединения, чтение - в отдельном потоке, который завершает ожидающие запросы
+    private class Connection implements Runnable {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        private final Map<Integer, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<>();
+        private final AtomicInteger nextRequestId = new AtomicInteger();
+        private volatile boolean broken;
+
+        Connection() throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(address, (int) connectTimeoutMillis);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Thread reader = new Thread(this, "kv-binary-client");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        CompletableFuture<ByteBuffer> send(byte operation, byte[] payload) {
+            int requestId = nextRequestId.incrementAndGet();
+            CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+            pending.put(requestId, response);
+            // запрос, не дождавшийся ответа за таймаут, больше не ждёт его
+            response.whenComplete((ignored, e) -> pending.remove(requestId));
+            try {
+                synchronized (out) {
+                    out.writeInt(Integer.BYTES + 1 + payload.length);
+                    out.writeInt(requestId);
+                    out.writeByte(operation);
+                    out.write(payload);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+            if (broken) {
+                fail(new IOException("соединение разорвано"));
+            }
+            return response;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!broken) {
+                    int length = in.readInt();
+                    int requestId = in.readInt();
+                    byte[] body = new byte[length - Integer.BYTES];
+                    in.readFully(body);
+                    CompletableFuture<ByteBuffer> response = pending.remove(requestId);
+                    if (response != null) {
+                        response.complete(ByteBuffer.wrap(body));
+                    }
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        // ответа на уже отправленные запросы не будет, ждущие их получают ошибку
+        private void fail(IOException e) {
+            close();
+            for (Integer requestId : pending.keySet()) {
+                CompletableFuture<ByteBuffer> response = pending.remove(requestId);
+                if (response != null) {
+                    response.completeExceptionally(new IOException("Соединение с " + address
+                            + " по двоичному протоколу разорвано: " + e.getMessage(), e));
+                }
+            }
+        }
+
+        void close() {
+            broken = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.out.println("Не удалось закрыть соединение двоичного протокола: " + e.getMessage());
+            }
+        }
+    }
+}
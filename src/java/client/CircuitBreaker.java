@@ -0,0 +1,42 @@
+package client;
+
+/**
+ * Предохранитель одного сервера: считает неудачи подряд и, разомкнувшись, пропускает
+ * не больше одного пробного запроса за breakerOpenMillis.
+ */
+class CircuitBreaker {
+    private final int failureThreshold;
+    private final long openMillis;
+    private int failures;
+    private long openedAt;
+    private boolean probing;
+
+    CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    synchronized boolean allowRequest() {
+        if (failures < failureThreshold) {
+            return true;
+        }
+        if (probing || System.currentTimeMillis() - openedAt < openMillis) {
+            return false;
+        }
+        probing = true;
+        return true;
+    }
+
+    synchronized void onSuccess() {
+        failures = 0;
+        probing = false;
+    }
+
+    synchronized void onFailure() {
+        failures++;
+        if (failures >= failureThreshold) {
+            openedAt = System.currentTimeMillis();
+            probing = false;
+        }
+    }
+}
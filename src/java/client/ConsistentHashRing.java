@@ -0,0 +1,72 @@
+package client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Кольцо консистентного хеширования. Каждый узел занимает на кольце virtualNodes точек,
+ * ключ принадлежит первому узлу по часовой стрелке от своего хеша. При добавлении или удалении
+ * узла меняют владельца только ключи около его точек, в среднем 1/N всех ключей.
+ * Кольцо неизменяемо: with и without возвращают новое.
+ */
+class ConsistentHashRing<T> {
+
+    private final NavigableMap<Long, T> ring = new TreeMap<>();
+    private final Set<T> nodes;
+    private final int virtualNodes;
+
+    ConsistentHashRing(Collection<T> nodes, int virtualNodes) {
+        this.nodes = Collections.unmodifiableSet(new LinkedHashSet<>(nodes));
+        this.virtualNodes = virtualNodes;
+        for (T node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    ConsistentHashRing<T> with(T node) {
+        Set<T> result = new LinkedHashSet<>(nodes);
+        result.add(node);
+        return new ConsistentHashRing<>(result, virtualNodes);
+    }
+
+    ConsistentHashRing<T> without(T node) {
+        Set<T> result = new LinkedHashSet<>(nodes);
+        result.remove(node);
+        return new ConsistentHashRing<>(result, virtualNodes);
+    }
+
+    T nodeFor(String key) {
+        if (ring.isEmpty()) {
+            throw new IllegalStateException("В кольце нет ни одного узла");
+        }
+        Map.Entry<Long, T> entry = ring.ceilingEntry(hash(key));
+        return (entry == null ? ring.firstEntry() : entry).getValue();
+    }
+
+    Set<T> nodes() {
+        return nodes;
+    }
+
+    // FNV-1a с перемешиванием из MurmurHash3, чтобы близкие строки расходились по всему кольцу
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,22 @@
+package client;
+
+import java.util.Map;
+
+/**
+ * Получает записи на KVServer, сделанные после подписки, в том числе записи самого подписчика.
+ * Методы вызываются по очереди из потока HTTP-клиента, в порядке версий.
+ */
+public interface KVChangeListener {
+
+    /**
+     * Значения, записанные на сервере одной записью с версией version. Значение null - ключ удалён
+     * сервером: истёк срок жизни или ключ вытеснен.
+     */
+    void onChange(long version, Map<String, String> values);
+
+    /**
+     * Часть записей потеряна: сервер перезапущен или вытеснил их из журнала.
+     * Изменения продолжают приходить, но состояние до них нужно перечитать целиком.
+     */
+    void onReset();
+}
@@ -0,0 +1,86 @@
+package client;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Клиент хранилища ключ-значение, с которым работает HttpTaskManager: один KVServer или несколько за шардированием.
+ */
+public interface KVClient extends Closeable {
+
+    boolean put(String key, String json);
+
+    String load(String key);
+
+    /**
+     * Сохраняет все пары. Возвращает false, если хотя бы часть пакета не сохранена.
+     */
+    boolean putAll(Map<String, String> values);
+
+    /**
+     * Загружает значения по нескольким ключам. Отсутствующих ключей в результате нет.
+     */
+    Map<String, String> loadAll(Collection<String> keys);
+
+    CompletableFuture<Boolean> putAsync(String key, String json);
+
+    /**
+     * Сохраняет значение, которое сервер перестанет отдавать через ttlMillis миллисекунд.
+     * Возвращает false, если значение не сохранено, в том числе если хранилище не поддерживает срок жизни.
+     */
+    CompletableFuture<Boolean> putAsync(String key, String json, long ttlMillis);
+
+    CompletableFuture<String> loadAsync(String key);
+
+    CompletableFuture<Boolean> putAllAsync(Map<String, String> values);
+
+    CompletableFuture<Map<String, String>> loadAllAsync(Collection<String> keys);
+
+    /**
+     * Сохраняет значение, если его версия на сервере всё ещё etag (null - если ключа ещё нет).
+     * Возвращает ETag новой версии или null при ошибке связи с сервером.
+     *
+     * @throws KVConflictException если значение на сервере уже изменилось
+     */
+    String putIfMatch(String key, String json, String etag);
+
+    CompletableFuture<String> putIfMatchAsync(String key, String json, String etag);
+
+    /**
+     * ETag последней версии значения, которую этот клиент загрузил или сохранил, или null.
+     */
+    String getETag(String key);
+
+    /**
+     * Возвращает до limit пар с ключами, начинающимися с prefix и большими after, в порядке ключей.
+     * after может быть null, тогда перебор идёт с начала префикса.
+     */
+    Map<String, String> scan(String prefix, String after, int limit);
+
+    CompletableFuture<Map<String, String>> scanAsync(String prefix, String after, int limit);
+
+    /**
+     * Перебирает все пары с ключами, начинающимися с prefix, в порядке ключей. Страницы по pageSize пар
+     * загружаются по мере перебора, следующая запрашивается, пока перебирается текущая.
+     */
+    default Iterator<Map.Entry<String, String>> scan(String prefix, int pageSize) {
+        return new ScanIterator(this, prefix, pageSize);
+    }
+
+    /**
+     * Подписывает listener на записи, сделанные на сервере после вызова. Изменения приходят
+     * в фоне, пока подписка не закрыта.
+     */
+    KVSubscription subscribe(KVChangeListener listener);
+
+    /**
+     * Отправляет отложенные записи. Возвращает false, если сервер их не принял.
+     */
+    boolean flush();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,27 @@
+package client;
+
+/**
+ * Условная запись не выполнена: значение на сервере изменилось с версии, которую ожидал клиент.
+ */
+public class KVConflictException extends RuntimeException {
+
+    private final String key;
+    private final String currentETag;
+
+    public KVConflictException(String key, String currentETag) {
+        super("Значение по ключу " + key + " изменилось на сервере, текущий ETag: " + currentETag);
+        this.key = key;
+        this.currentETag = currentETag;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * ETag значения на сервере в момент конфликта или null, если ключа нет.
+     */
+    public String getCurrentETag() {
+        return currentETag;
+    }
+}
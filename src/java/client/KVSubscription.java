@@ -0,0 +1,10 @@
+package client;
+
+/**
+ * Подписка на записи KVServer. После close() изменения больше не приходят.
+ */
+public interface KVSubscription extends AutoCloseable {
+
+    @Override
+    void close();
+}
@@ -1,94 +1,1184 @@
 package client;
 
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URI;
+import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
-public class KVTaskClient {
+/**
+ * Клиент KVServer. Асинхронные методы возвращают CompletableFuture и позволяют держать
+ * несколько запросов в полёте одновременно, не больше maxInFlightRequests: следующий запрос
+ * ждёт, пока освободится место. Синхронные методы ждут результата соответствующего асинхронного.
+ * <p>
+ * Клиент без пространства имён и API_TOKEN получает от сервера своё новое пространство. Другой клиент
+ * увидит те же ключи, только если создан с его API_TOKEN (getApiToken) или API_TOKEN сервера.
+ * Если сервер не выдал API_TOKEN, конструктор бросает KVUnavailableException.
+ * <p>
+ * При writeBehindMillis больше нуля записи не отправляются сразу: по каждому ключу хранится
+ * последнее значение, и раз в окно накопленные значения уходят одним пакетом в фоне.
+ * flush() и close() отправляют накопленное немедленно.
+ * <p>
+ * Загруженные значения запоминаются вместе с ETag сервера. Повторное чтение
+ * отправляет If-None-Match, и если значение не менялось, сервер отвечает 304 без тела,
+ * а клиент возвращает значение из кэша. Кэш ограничен DEFAULT_READ_CACHE_BYTES
+ * (меняется setReadCacheBytes) и вытесняет давно не читанное; для сохранённых значений
+ * и результатов scan запоминается только ETag, сами значения у клиента не копятся.
+ * <p>
+ * putIfMatch записывает значение, только если на сервере лежит версия с переданным ETag,
+ * и бросает KVConflictException, если её уже перезаписали. Условная запись не откладывается в write-behind.
+ * <p>
+ * Если переданы адреса реплик, чтения распределяются по ним по кругу, а записи идут на лидера.
+ * Клиент запоминает версию своей последней записи и передаёт её репликам в X-Min-Version,
+ * чтобы прочитать свои записи; если реплика не догнала лидера или недоступна, чтение повторяется на лидере.
+ * <p>
+ * Запросы ограничены таймаутами RequestPolicy, неудачные чтения повторяются, а при хеджировании дублируются.
+ * Если сервер так и не выполнил чтение (не ответил, вернул код, кроме 200, 304 и 404, или оборвал тело ответа),
+ * оно завершается KVUnavailableException, а не пустым значением: пустое значение значит, что ключа нет.
+ * Запись при ошибке возвращает false.
+ * <p>
+ * Ответы /load-batch и /scan разбираются JsonReader по мере чтения из сети, без промежуточной строки с телом ответа.
+ * <p>
+ * subscribe держит к лидеру long-poll запрос /watch и передаёт listener записи сразу, как сервер их принял.
+ * <p>
+ * Если передан binaryPort, чтения, скан и безусловные записи без ttl идут по двоичному протоколу
+ * через пул постоянных соединений. Двоичные чтения повторяются и хеджируются так же, как HTTP,
+ * а предохранитель у HTTP и двоичного протокола сервера общий. Статус двоичного ответа, кроме OK и NOT_FOUND,
+ * завершает чтение KVUnavailableException. Условные записи, ttl и /watch всегда идут по HTTP.
+ */
+public class KVTaskClient implements KVClient {
 
+    public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 16;
+    public static final long WATCH_TIMEOUT_MILLIS = 25_000;
+    private static final long WATCH_RETRY_MILLIS = 1000;
+    private static final int LATENCY_WINDOW = 128;
+    public static final int DEFAULT_BINARY_CONNECTIONS = 4;
+    public static final long DEFAULT_READ_CACHE_BYTES = 16L << 20;
     private final HttpClient client;
+    private final Gson gson = new Gson();
+    private final Semaphore inFlightRequests;
     private final String url;
+    private final List<String> readUrls;
+    private final AtomicInteger nextReadUrl = new AtomicInteger();
+    private final AtomicLong writtenVersion = new AtomicLong();
     private final String apiToken;
+    private final long writeBehindMillis;
+    private final Map<String, String> pendingWrites = new LinkedHashMap<>();
+    private final ReadCache readCache = new ReadCache(DEFAULT_READ_CACHE_BYTES);
+    private final Object flushLock = new Object();
+    private final Set<Watch> watches = ConcurrentHashMap.newKeySet();
+    private final RequestPolicy policy;
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final LatencyWindow readLatency = new LatencyWindow(LATENCY_WINDOW);
+    private final BinaryTransport binary;
+    private ScheduledExecutorService flusher;
+    private boolean flushScheduled;
 
     public KVTaskClient(String url) {
-        client = HttpClient.newHttpClient();
-        this.url = url;
-        apiToken = this.register();
+        this(url, DEFAULT_MAX_IN_FLIGHT_REQUESTS);
+    }
+
+    public KVTaskClient(String url, int maxInFlightRequests) {
+        this(url, maxInFlightRequests, 0);
+    }
+
+    /**
+     * Клиент пространства имён namespace на сервере url: ключи других пространств ему не видны.
+     */
+    public KVTaskClient(String url, String namespace) {
+        this(url, namespace, null);
+    }
+
+    /**
+     * Клиент пространства имён namespace, уже существующего на сервере: apiToken - API_TOKEN этого
+     * пространства или сервера. Если namespace null, клиент работает с apiToken, не регистрируясь.
+     */
+    public KVTaskClient(String url, String namespace, String apiToken) {
+        this(url, List.of(), DEFAULT_MAX_IN_FLIGHT_REQUESTS, 0, RequestPolicy.DEFAULT, 0, namespace, apiToken);
+    }
+
+    public KVTaskClient(String url, int maxInFlightRequests, long writeBehindMillis) {
+        this(url, List.of(), maxInFlightRequests, writeBehindMillis);
+    }
+
+    /**
+     * url - лидер, принимающий записи, readUrls - реплики для чтения.
+     */
+    public KVTaskClient(String url, List<String> readUrls, int maxInFlightRequests, long writeBehindMillis) {
+        this(url, readUrls, maxInFlightRequests, writeBehindMillis, RequestPolicy.DEFAULT);
+    }
+
+    public KVTaskClient(String url, List<String> readUrls, int maxInFlightRequests, long writeBehindMillis,
+                        RequestPolicy policy) {
+        this(url, readUrls, maxInFlightRequests, writeBehindMillis, policy, 0, null, null);
+    }
+
+    /**
+     * Клиент с API_TOKEN лидера url: реплики readUrls принимают только его.
+     */
+    public KVTaskClient(String url, String apiToken, List<String> readUrls, int maxInFlightRequests,
+                        long writeBehindMillis) {
+        this(url, readUrls, maxInFlightRequests, writeBehindMillis, RequestPolicy.DEFAULT, 0, null, apiToken);
     }
 
-    private String register() {
-        String token = "";
+    /**
+     * Чтения и безусловные записи идут к серверу url по двоичному протоколу на binaryPort
+     * через DEFAULT_BINARY_CONNECTIONS постоянных соединений, остальное - по HTTP.
+     */
+    public KVTaskClient(String url, int binaryPort, int maxInFlightRequests, long writeBehindMillis,
+                        RequestPolicy policy) {
+        this(url, List.of(), maxInFlightRequests, writeBehindMillis, policy, binaryPort, null, null);
+    }
+
+    public KVTaskClient(String url, String apiToken, int binaryPort, int maxInFlightRequests, long writeBehindMillis,
+                        RequestPolicy policy) {
+        this(url, List.of(), maxInFlightRequests, writeBehindMillis, policy, binaryPort, null, apiToken);
+    }
 
-        URI uri = URI.create(url + "/register");
+    private KVTaskClient(String url, List<String> readUrls, int maxInFlightRequests, long writeBehindMillis,
+                         RequestPolicy policy, int binaryPort, String namespace, String apiToken) {
+        this.policy = policy;
+        client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(policy.getConnectTimeoutMillis()))
+                .build();
+        inFlightRequests = new Semaphore(maxInFlightRequests);
+        this.url = url;
+        this.readUrls = List.copyOf(readUrls);
+        this.writeBehindMillis = writeBehindMillis;
+        this.apiToken = namespace == null && apiToken != null ? apiToken : register(namespace, apiToken);
+        binary = binaryPort == 0 ? null : new BinaryTransport(URI.create(url).getHost(), binaryPort, this.apiToken,
+                DEFAULT_BINARY_CONNECTIONS, policy.getConnectTimeoutMillis());
+    }
+
+    /**
+     * Без namespace и credential сервер создаёт клиенту новое пространство имён. Если API_TOKEN не выдан,
+     * бросает KVUnavailableException: клиент без него не смог бы ни прочитать, ни записать ни одного ключа.
+     */
+    private String register(String namespace, String credential) {
+        StringBuilder query = new StringBuilder();
+        if (namespace != null) {
+            query.append("&namespace=").append(URLEncoder.encode(namespace, UTF_8));
+        }
+        if (credential != null) {
+            query.append("&API_TOKEN=").append(URLEncoder.encode(credential, UTF_8));
+        }
+        URI uri = URI.create(url + "/register" + (query.length() == 0 ? "" : "?" + query.substring(1)));
         HttpRequest request = HttpRequest.newBuilder()
                 .GET()
                 .uri(uri)
+                .timeout(Duration.ofMillis(policy.getRequestTimeoutMillis()))
                 .build();
 
+        HttpResponse<String> response;
         try {
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KVUnavailableException("Регистрация на " + url + " прервана", e);
+        } catch (IOException e) {
+            throw new KVUnavailableException("Сервер " + url + " не ответил на регистрацию: " + e.getMessage(), e);
+        }
+        if (response.statusCode() != 200 || response.body().isEmpty()) {
+            throw new KVUnavailableException("Сервер " + url + " не выдал API_TOKEN"
+                    + (namespace == null ? "" : " в пространство имён " + namespace)
+                    + ", код состояния " + response.statusCode());
+        }
+        return response.body();
+    }
+
+    @Override
+    public boolean put(String key, String json) {
+        return putAsync(key, json).join();
+    }
+
+    @Override
+    public String load(String key) {
+        return Futures.join(loadAsync(key));
+    }
 
+    /**
+     * Сохраняет все пары одним запросом. Сервер применяет пакет целиком или отклоняет его.
+     */
+    @Override
+    public boolean putAll(Map<String, String> values) {
+        return putAllAsync(values).join();
+    }
+
+    /**
+     * Загружает значения по нескольким ключам одним запросом. Отсутствующих ключей в результате нет.
+     */
+    @Override
+    public Map<String, String> loadAll(Collection<String> keys) {
+        return Futures.join(loadAllAsync(keys));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> putAsync(String key, String json) {
+        if (writeBehindMillis > 0) {
+            return CompletableFuture.completedFuture(writeBehind(Map.of(key, json)));
+        }
+        return save(key, json, "");
+    }
+
+    public boolean put(String key, String json, long ttlMillis) {
+        return putAsync(key, json, ttlMillis).join();
+    }
+
+    /**
+     * Такая запись не откладывается в write-behind.
+     */
+    @Override
+    public CompletableFuture<Boolean> putAsync(String key, String json, long ttlMillis) {
+        return save(key, json, "&ttl=" + ttlMillis);
+    }
+
+    private CompletableFuture<Boolean> save(String key, String json, String query) {
+        if (binary != null && query.isEmpty()) {
+            return saveBinary(key, json);
+        }
+        URI uri = URI.create(url + "/save/" + key + "?API_TOKEN=" + apiToken + query);
+        HttpRequest.Builder request = HttpRequest.newBuilder()
+                .uri(uri)
+                .POST(HttpRequest.BodyPublishers.ofString(json));
+
+        return send(request).handle((response, e) -> {
+            if (e != null) {
+                readCache.remove(key);
+                System.out.println("Ошибка, значение не обновлено");
+                return false;
+            }
             if (response.statusCode() == 200) {
-                token = response.body();
-            } else {
-                System.out.println("Ошибка, сервер вернул код состояния" + response.statusCode());
+                recordVersion(response);
+                remember(key, response.headers().firstValue("ETag").orElse(null));
+                System.out.println("Значение по ключу " + key + " обновлено");
+                return true;
             }
-        } catch (InterruptedException | IOException | NullPointerException e) {
-            System.out.println("Ошибка, регистрация не удалась");
-        }
+            System.out.println("Ошибка, сервер вернул код состояния" + response.statusCode());
+            return false;
+        });
+    }
+
+    /**
+     * Сохраняет значение, если его версия на сервере всё ещё etag (null - если ключа ещё нет).
+     * Возвращает ETag новой версии или null при ошибке связи с сервером.
+     *
+     * @throws KVConflictException если значение на сервере уже изменилось
+     */
+    @Override
+    public String putIfMatch(String key, String json, String etag) {
+        return Futures.join(putIfMatchAsync(key, json, etag));
+    }
 
-        return token;
+    /**
+     * ETag последней версии значения, которую этот клиент загрузил или сохранил, или null.
+     */
+    @Override
+    public String getETag(String key) {
+        ReadCache.Entry cached = readCache.get(key);
+        return cached == null ? null : cached.etag;
     }
 
-    public void put(String key, String json) {
+    @Override
+    public CompletableFuture<String> putIfMatchAsync(String key, String json, String etag) {
+        // записи, отложенные раньше условной, должны дойти до сервера первыми
+        if (pendingValue(key) != null) {
+            flush();
+        }
         URI uri = URI.create(url + "/save/" + key + "?API_TOKEN=" + apiToken);
-        HttpRequest request = HttpRequest.newBuilder()
+        HttpRequest.Builder request = HttpRequest.newBuilder()
                 .uri(uri)
-                .POST(HttpRequest.BodyPublishers.ofString(json))
-                .build();
-
-        try {
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                .header(etag == null ? "If-None-Match" : "If-Match", etag == null ? "*" : etag)
+                .POST(HttpRequest.BodyPublishers.ofString(json));
 
+        return send(request).handle((response, e) -> {
+            if (e != null) {
+                readCache.remove(key);
+                System.out.println("Ошибка, значение не обновлено");
+                return null;
+            }
+            String currentETag = response.headers().firstValue("ETag").orElse(null);
+            if (response.statusCode() == 409) {
+                readCache.remove(key);
+                throw new KVConflictException(key, currentETag);
+            }
             if (response.statusCode() == 200) {
+                recordVersion(response);
+                remember(key, currentETag);
                 System.out.println("Значение по ключу " + key + " обновлено");
-            } else {
-                System.out.println("Ошибка, сервер вернул код состояния" + response.statusCode());
+                return currentETag;
             }
-        } catch (InterruptedException | IOException | NullPointerException e) {
-            System.out.println("Ошибка, значение не обновлено");
+            System.out.println("Ошибка, сервер вернул код состояния" + response.statusCode());
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<String> loadAsync(String key) {
+        String pending = pendingValue(key);
+        if (pending != null) {
+            return CompletableFuture.completedFuture(pending);
         }
+        if (binary != null) {
+            return loadBinary(key);
+        }
+        ReadCache.Entry cached = readCache.get(key);
+        String cachedValue = cached == null ? null : cached.value;
+
+        return sendRead(baseUrl -> {
+            HttpRequest.Builder builder = HttpRequest.newBuilder()
+                    .uri(URI.create(baseUrl + "/load/" + key + "?API_TOKEN=" + apiToken))
+                    .GET();
+            if (cachedValue != null) {
+                builder.header("If-None-Match", cached.etag);
+            }
+            return builder;
+        }, HttpResponse.BodyHandlers.ofString(), response -> {
+            if (response.statusCode() == 304 && cachedValue != null) {
+                System.out.println("Значение по ключу " + key + " не изменилось");
+                return cachedValue;
+            }
+            if (response.statusCode() == 200) {
+                cache(key, response.body(), response.headers().firstValue("ETag").orElse(null));
+                System.out.println("Значение по ключу " + key + " получено");
+                return response.body();
+            }
+            if (response.statusCode() == 404) {
+                readCache.remove(key);
+                System.out.println("Значение по ключу " + key + " не найдено");
+                return "";
+            }
+            throw unexpectedStatus(response);
+        });
     }
 
-    public String load(String key) {
-        String value = "";
+    @Override
+    public CompletableFuture<Boolean> putAllAsync(Map<String, String> values) {
+        if (values.isEmpty()) {
+            return CompletableFuture.completedFuture(true);
+        }
+        if (writeBehindMillis > 0) {
+            return CompletableFuture.completedFuture(writeBehind(values));
+        }
+        return sendBatch(values);
+    }
 
-        URI uri = URI.create(url + "/load/" + key + "?API_TOKEN=" + apiToken);
-        HttpRequest request = HttpRequest.newBuilder()
+    private CompletableFuture<Boolean> sendBatch(Map<String, String> values) {
+        if (binary != null) {
+            return saveBatchBinary(values);
+        }
+        URI uri = URI.create(url + "/save-batch?API_TOKEN=" + apiToken);
+        HttpRequest.Builder request = HttpRequest.newBuilder()
                 .uri(uri)
-                .GET()
-                .build();
+                .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(values)));
+
+        return send(request).handle((response, e) -> {
+            if (e != null) {
+                values.keySet().forEach(readCache::remove);
+                System.out.println("Ошибка, значения не обновлены");
+                return false;
+            }
+            if (response.statusCode() == 200) {
+                recordVersion(response);
+                String etag = response.headers().firstValue("ETag").orElse(null);
+                values.keySet().forEach(key -> remember(key, etag));
+                System.out.println("Значения по " + values.size() + " ключам обновлены");
+                return true;
+            }
+            System.out.println("Ошибка, сервер вернул код состояния" + response.statusCode());
+            return false;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Map<String, String>> loadAllAsync(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return CompletableFuture.completedFuture(Collections.emptyMap());
+        }
+        if (binary != null) {
+            return loadAllBinary(keys).thenApply(values -> withPendingWrites(keys, values));
+        }
+        // известные клиенту ETag, пустая строка - значения в кэше нет
+        Map<String, String> known = new LinkedHashMap<>();
+        Map<String, String> etags = new LinkedHashMap<>();
+        for (String key : keys) {
+            ReadCache.Entry cached = readCache.get(key);
+            if (cached != null && cached.value != null) {
+                known.put(key, cached.value);
+            }
+            etags.put(key, known.containsKey(key) ? cached.etag : "");
+        }
+        String body = gson.toJson(etags);
+
+        return sendRead(baseUrl -> HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/load-batch?API_TOKEN=" + apiToken))
+                .POST(HttpRequest.BodyPublishers.ofString(body)), HttpResponse.BodyHandlers.ofInputStream(), response -> {
+            if (response.statusCode() != 200) {
+                throw unexpectedStatus(response);
+            }
+            try (JsonReader reader = new JsonReader(new InputStreamReader(response.body(), UTF_8))) {
+                Map<String, String> values = readChanged(reader, keys, known);
+                System.out.println("Значения по " + values.size() + " ключам получены");
+                return values;
+            }
+        }).thenApply(values -> withPendingWrites(keys, values));
+    }
+
+    /**
+     * Возвращает до limit пар с ключами, начинающимися с prefix и большими after, в порядке ключей.
+     * after может быть null, тогда перебор идёт с начала префикса.
+     */
+    @Override
+    public Map<String, String> scan(String prefix, String after, int limit) {
+        return Futures.join(scanAsync(prefix, after, limit));
+    }
+
+    // отложенные записи отправляются до перебора, иначе их не будет в ответе сервера
+    @Override
+    public CompletableFuture<Map<String, String>> scanAsync(String prefix, String after, int limit) {
+        if (writeBehindMillis > 0) {
+            flush();
+        }
+        if (binary != null) {
+            return scanBinary(prefix, after, limit);
+        }
+        String query = "/scan?prefix=" + URLEncoder.encode(prefix, UTF_8)
+                + (after == null ? "" : "&after=" + URLEncoder.encode(after, UTF_8))
+                + "&limit=" + limit + "&API_TOKEN=" + apiToken;
 
+        return sendRead(baseUrl -> HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + query))
+                .GET(), HttpResponse.BodyHandlers.ofInputStream(), response -> {
+            if (response.statusCode() != 200) {
+                throw unexpectedStatus(response);
+            }
+            try (JsonReader reader = new JsonReader(new InputStreamReader(response.body(), UTF_8))) {
+                Map<String, String> values = new LinkedHashMap<>();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    values.put(reader.nextName(), reader.nextString());
+                }
+                reader.endObject();
+                System.out.println("Значения по " + values.size() + " ключам с префиксом " + prefix + " получены");
+                return values;
+            }
+        });
+    }
+
+    /**
+     * Текущая версия сервера запрашивается до возврата из метода, поэтому всё, что записано позже,
+     * придёт в listener. Запрос /watch не занимает место среди maxInFlightRequests.
+     */
+    @Override
+    public KVSubscription subscribe(KVChangeListener listener) {
+        Watch watch = new Watch(listener);
         try {
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            watch.poll().join();
+        } catch (CompletionException e) {
+            System.out.println("Ошибка, версия для подписки не получена, подписка начнётся со сброса");
+            watch.lost = true;
+        }
+        watches.add(watch);
+        watch.loop();
+        return watch;
+    }
 
-            if (response.statusCode() == 200) {
-                value = response.body();
-                System.out.println("Значение по ключу " + key + " получено");
-            } else {
-                System.out.println("Ошибка, сервер вернул код состояния" + response.statusCode());
+    /**
+     * Отправляет накопленные записи и ждёт ответа сервера. Если сервер не принял пакет,
+     * значения возвращаются в очередь, если их ещё не перезаписали более новыми.
+     */
+    @Override
+    public boolean flush() {
+        synchronized (flushLock) {
+            Map<String, String> values;
+            synchronized (pendingWrites) {
+                flushScheduled = false;
+                if (pendingWrites.isEmpty()) {
+                    return true;
+                }
+                values = new LinkedHashMap<>(pendingWrites);
+                pendingWrites.clear();
             }
-        } catch (InterruptedException | IOException | NullPointerException e) {
-            System.out.println("Ошибка, такого ключа нет");
-//            e.printStackTrace();
+            boolean flushed = sendBatch(values).join();
+            if (!flushed) {
+                synchronized (pendingWrites) {
+                    values.forEach(pendingWrites::putIfAbsent);
+                }
+                scheduleFlush();
+            }
+            return flushed;
+        }
+    }
+
+    @Override
+    public void close() {
+        watches.forEach(Watch::close);
+        flush();
+        synchronized (pendingWrites) {
+            if (flusher != null) {
+                flusher.shutdown();
+                flusher = null;
+            }
+        }
+        if (binary != null) {
+            binary.close();
         }
-        return value;
     }
 
     public String getApiToken() {
         return apiToken;
     }
-}
 
+    /**
+     * Ограничивает кэш прочитанных значений maxBytes байтами, лишнее вытесняется сразу.
+     */
+    public void setReadCacheBytes(long maxBytes) {
+        readCache.setMaxBytes(maxBytes);
+    }
+
+    long getReadCacheBytes() {
+        return readCache.getUsedBytes();
+    }
+
+    private boolean writeBehind(Map<String, String> values) {
+        synchronized (pendingWrites) {
+            pendingWrites.putAll(values);
+        }
+        scheduleFlush();
+        return true;
+    }
+
+    private void scheduleFlush() {
+        synchronized (pendingWrites) {
+            if (flushScheduled || pendingWrites.isEmpty()) {
+                return;
+            }
+            if (flusher == null) {
+                flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "kv-write-behind");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            flushScheduled = true;
+            flusher.schedule(this::flush, writeBehindMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // значения без value не изменились с версии из кэша, ключей без записи в ответе на сервере нет
+    private Map<String, String> readChanged(JsonReader reader, Collection<String> keys,
+                                            Map<String, String> known) throws IOException {
+        Map<String, String> values = new LinkedHashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            String etag = null;
+            String value = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("etag")) {
+                    etag = reader.nextString();
+                } else if (name.equals("value")) {
+                    value = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (value != null) {
+                cache(key, value, etag);
+                values.put(key, value);
+            } else if (known.containsKey(key)) {
+                values.put(key, known.get(key));
+            } else {
+                throw new IllegalStateException("сервер не вернул значение по ключу " + key);
+            }
+        }
+        reader.endObject();
+        for (String key : keys) {
+            if (!values.containsKey(key)) {
+                readCache.remove(key);
+            }
+        }
+        return values;
+    }
+
+    private CompletableFuture<String> loadBinary(String key) {
+        return readBinary(BinaryTransport.GET, new BinaryTransport.Payload().writeString(key)).thenApply(response -> {
+            byte status = response.get();
+            if (status == BinaryTransport.NOT_FOUND) {
+                readCache.remove(key);
+                System.out.println("Значение по ключу " + key + " не найдено");
+                return "";
+            }
+            if (status != BinaryTransport.OK) {
+                readCache.remove(key);
+                throw binaryFailure(status);
+            }
+            long version = response.getLong();
+            String value = new String(BinaryTransport.readBytes(response), UTF_8);
+            cache(key, value, binaryETag(version));
+            System.out.println("Значение по ключу " + key + " получено");
+            return value;
+        });
+    }
+
+    private CompletableFuture<Map<String, String>> loadAllBinary(Collection<String> keys) {
+        BinaryTransport.Payload payload = new BinaryTransport.Payload().writeInt(keys.size());
+        keys.forEach(payload::writeString);
+        return readBinary(BinaryTransport.GET_BATCH, payload).thenApply(response -> {
+            Map<String, String> values = readEntries(response, true);
+            for (String key : keys) {
+                if (!values.containsKey(key)) {
+                    readCache.remove(key);
+                }
+            }
+            System.out.println("Значения по " + values.size() + " ключам получены");
+            return values;
+        });
+    }
+
+    private CompletableFuture<Map<String, String>> scanBinary(String prefix, String after, int limit) {
+        BinaryTransport.Payload payload = new BinaryTransport.Payload().writeString(prefix)
+                .writeString(after == null ? "" : after).writeInt(limit);
+        return readBinary(BinaryTransport.SCAN, payload).thenApply(response -> {
+            Map<String, String> values = readEntries(response, false);
+            System.out.println("Значения по " + values.size() + " ключам с префиксом " + prefix + " получены");
+            return values;
+        });
+    }
+
+    private CompletableFuture<Boolean> saveBinary(String key, String json) {
+        BinaryTransport.Payload payload = new BinaryTransport.Payload().writeString(key)
+                .writeBytes(json.getBytes(UTF_8));
+        return sendBinary(BinaryTransport.PUT, payload).handle((response, e) -> {
+            if (e != null || response.get() != BinaryTransport.OK) {
+                readCache.remove(key);
+                System.out.println("Ошибка, значение не обновлено");
+                return false;
+            }
+            remember(key, binaryETag(response.getLong()));
+            System.out.println("Значение по ключу " + key + " обновлено");
+            return true;
+        });
+    }
+
+    private CompletableFuture<Boolean> saveBatchBinary(Map<String, String> values) {
+        BinaryTransport.Payload payload = new BinaryTransport.Payload().writeInt(values.size());
+        values.forEach((key, value) -> payload.writeString(key).writeBytes(value.getBytes(UTF_8)));
+        return sendBinary(BinaryTransport.PUT_BATCH, payload).handle((response, e) -> {
+            if (e != null || response.get() != BinaryTransport.OK) {
+                values.keySet().forEach(readCache::remove);
+                System.out.println("Ошибка, значения не обновлены");
+                return false;
+            }
+            String etag = binaryETag(response.getLong());
+            values.keySet().forEach(key -> remember(key, etag));
+            System.out.println("Значения по " + values.size() + " ключам обновлены");
+            return true;
+        });
+    }
+
+    // пары key, version, value; ETag запоминается, чтобы условная запись по HTTP знала версию,
+    // а значение - только если keepValues
+    private Map<String, String> readEntries(ByteBuffer response, boolean keepValues) {
+        byte status = response.get();
+        if (status != BinaryTransport.OK) {
+            throw binaryFailure(status);
+        }
+        int count = response.getInt();
+        Map<String, String> values = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String key = BinaryTransport.readString(response);
+            String etag = binaryETag(response.getLong());
+            String value = new String(BinaryTransport.readBytes(response), UTF_8);
+            if (keepValues) {
+                cache(key, value, etag);
+            } else {
+                remember(key, etag);
+            }
+            values.put(key, value);
+        }
+        return values;
+    }
+
+    private String binaryETag(long version) {
+        return "\"" + binary.getEpoch() + "." + version + "\"";
+    }
+
+    // двоичный запрос ограничен тем же таймаутом, тем же числом запросов в полёте и тем же предохранителем, что и HTTP
+    private CompletableFuture<ByteBuffer> sendBinaryOnce(byte operation, byte[] payload) {
+        CircuitBreaker breaker = breaker(url);
+        if (!breaker.allowRequest()) {
+            return CompletableFuture.failedFuture(new KVUnavailableException("Сервер " + url
+                    + " недоступен, запросы к нему приостановлены"));
+        }
+        try {
+            inFlightRequests.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            breaker.onFailure();
+            return CompletableFuture.failedFuture(e);
+        }
+        return binary.send(operation, payload)
+                .orTimeout(policy.getRequestTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .whenComplete((response, e) -> {
+                    inFlightRequests.release();
+                    if (e != null || response.get(response.position()) == BinaryTransport.ERROR) {
+                        breaker.onFailure();
+                    } else {
+                        breaker.onSuccess();
+                    }
+                });
+    }
+
+    // запись не повторяется: ошибка соединения сразу становится KVUnavailableException
+    private CompletableFuture<ByteBuffer> sendBinary(byte operation, BinaryTransport.Payload payload) {
+        return sendBinaryOnce(operation, payload.toBytes()).handle((response, e) -> {
+            if (e == null) {
+                return response;
+            }
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof KVUnavailableException) {
+                throw (KVUnavailableException) cause;
+            }
+            throw new KVUnavailableException("Сервер не ответил по двоичному протоколу: " + cause, cause);
+        });
+    }
+
+    // чтение повторяется и дублируется так же, как по HTTP; статус ERROR - ошибка сервера, как код 500
+    private CompletableFuture<ByteBuffer> readBinary(byte operation, BinaryTransport.Payload payload) {
+        byte[] bytes = payload.toBytes();
+        return retryRead(new ReadAttempt<>() {
+            @Override
+            public CompletableFuture<ByteBuffer> send() {
+                return sendBinaryOnce(operation, bytes);
+            }
+
+            @Override
+            public String failure(ByteBuffer response) {
+                return response.get(response.position()) == BinaryTransport.ERROR
+                        ? "Сервер вернул статус ERROR двоичного протокола" : null;
+            }
+
+            @Override
+            public void discard(ByteBuffer response) {
+            }
+        }, 0);
+    }
+
+    // статус, кроме OK и NOT_FOUND, значит, что сервер не выполнил чтение, а не что ключа нет
+    private static KVUnavailableException binaryFailure(byte status) {
+        return new KVUnavailableException("Сервер не выполнил чтение, статус двоичного протокола " + status);
+    }
+
+    private static void discard(HttpResponse<?> response) {
+        if (response != null && response.body() instanceof Closeable) {
+            close((Closeable) response.body());
+        }
+    }
+
+    private static void close(Closeable body) {
+        try {
+            body.close();
+        } catch (IOException e) {
+            System.out.println("Не удалось закрыть ответ сервера: " + e.getMessage());
+        }
+    }
+
+    private void cache(String key, String value, String etag) {
+        if (etag == null) {
+            readCache.remove(key);
+        } else {
+            readCache.put(key, etag, value);
+        }
+    }
+
+    // ETag нужен для условной записи, а значение, которое клиент сам отправил, в кэше не держится
+    private void remember(String key, String etag) {
+        cache(key, null, etag);
+    }
+
+    private String pendingValue(String key) {
+        synchronized (pendingWrites) {
+            return pendingWrites.get(key);
+        }
+    }
+
+    // ещё не отправленные значения новее тех, что вернул сервер
+    private Map<String, String> withPendingWrites(Collection<String> keys, Map<String, String> values) {
+        synchronized (pendingWrites) {
+            if (pendingWrites.isEmpty()) {
+                return values;
+            }
+            Map<String, String> result = new LinkedHashMap<>(values);
+            for (String key : keys) {
+                String pending = pendingWrites.get(key);
+                if (pending != null) {
+                    result.put(key, pending);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Чтение по HTTP с повторами. Ответ разбирается внутри попытки, поэтому неожиданный код состояния,
+     * оборванное или повреждённое тело повторяются так же, как ошибка соединения.
+     */
+    private <T, R> CompletableFuture<R> sendRead(Function<String, HttpRequest.Builder> request,
+                                                 HttpResponse.BodyHandler<T> bodyHandler,
+                                                 ResponseParser<T, R> parser) {
+        return retryRead(new ReadAttempt<>() {
+            @Override
+            public CompletableFuture<R> send() {
+                return readOnce(request, bodyHandler).thenApply(response -> {
+                    try {
+                        return parser.parse(response);
+                    } catch (IOException | IllegalStateException | NumberFormatException e) {
+                        throw new CompletionException(e instanceof IOException ? e
+                                : new IOException("некорректный ответ сервера: " + e.getMessage(), e));
+                    } finally {
+                        KVTaskClient.discard(response);
+                    }
+                });
+            }
+
+            @Override
+            public String failure(R response) {
+                return null;
+            }
+
+            @Override
+            public void discard(R response) {
+            }
+        }, 0);
+    }
+
+    private static IOException unexpectedStatus(HttpResponse<?> response) {
+        return new IOException("сервер вернул код состояния " + response.statusCode());
+    }
+
+    /**
+     * Чтение с повторами. Неудача - исключение или ответ, который read считает ошибкой сервера; после последней
+     * попытки, как и при разомкнутом предохранителе, чтение завершается KVUnavailableException.
+     */
+    private <R> CompletableFuture<R> retryRead(ReadAttempt<R> read, int attempt) {
+        return hedgedRead(read).handle((response, e) -> {
+            String failure = e == null ? read.failure(response) : null;
+            if (e == null && failure == null) {
+                return CompletableFuture.completedFuture(response);
+            }
+            read.discard(response);
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof KVUnavailableException) {
+                return CompletableFuture.<R>failedFuture(cause);
+            }
+            if (attempt == policy.getMaxRetries()) {
+                return CompletableFuture.<R>failedFuture(new KVUnavailableException(cause == null
+                        ? failure : "Сервер не выполнил чтение: " + cause.getMessage(), cause));
+            }
+            long pause = ThreadLocalRandom.current()
+                    .nextLong((policy.getRetryBackoffMillis() << Math.min(attempt, 20)) + 1);
+            System.out.println("Чтение не удалось, повтор через " + pause + " мс");
+            Executor delayed = CompletableFuture.delayedExecutor(pause, TimeUnit.MILLISECONDS);
+            return CompletableFuture.runAsync(() -> { }, delayed)
+                    .thenCompose(ignored -> retryRead(read, attempt + 1));
+        }).thenCompose(Function.identity());
+    }
+
+    // второй запрос уходит, если первый не ответил за p95 последних чтений; берётся первый удачный ответ
+    private <R> CompletableFuture<R> hedgedRead(ReadAttempt<R> read) {
+        long hedgeDelay = policy.isHedgedReads() ? readLatency.percentile(95) : -1;
+        if (hedgeDelay < 0) {
+            return timedRead(read);
+        }
+        CompletableFuture<R> result = new CompletableFuture<>();
+        AtomicInteger running = new AtomicInteger(1);
+        BiConsumer<R, Throwable> onResponse = (response, e) -> {
+            boolean failed = e != null || read.failure(response) != null;
+            boolean last = running.decrementAndGet() == 0;
+            if (failed && !last) {
+                read.discard(response);
+                return;
+            }
+            if (!(e == null ? result.complete(response) : result.completeExceptionally(e))) {
+                read.discard(response);
+            }
+        };
+        timedRead(read).whenComplete(onResponse);
+        CompletableFuture.delayedExecutor(hedgeDelay, TimeUnit.MILLISECONDS).execute(() -> {
+            // при занятых местах повторный запрос только добавил бы нагрузки
+            if (result.isDone() || inFlightRequests.availablePermits() == 0) {
+                return;
+            }
+            running.incrementAndGet();
+            if (result.isDone()) {
+                running.decrementAndGet();
+                return;
+            }
+            System.out.println("Чтение не ответило за " + hedgeDelay + " мс, отправляем повторный запрос");
+            timedRead(read).whenComplete(onResponse);
+        });
+        return result;
+    }
+
+    private <R> CompletableFuture<R> timedRead(ReadAttempt<R> read) {
+        long start = System.nanoTime();
+        return read.send().whenComplete((response, e) -> {
+            if (e == null && read.failure(response) == null) {
+                readLatency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        });
+    }
+
+    // чтение идёт на очередную реплику, а если она не догнала записи этого клиента или недоступна - на лидера
+    private <T> CompletableFuture<HttpResponse<T>> readOnce(Function<String, HttpRequest.Builder> request,
+                                                            HttpResponse.BodyHandler<T> bodyHandler) {
+        if (readUrls.isEmpty()) {
+            return send(request.apply(url), bodyHandler);
+        }
+        String readUrl = readUrls.get(Math.floorMod(nextReadUrl.getAndIncrement(), readUrls.size()));
+        HttpRequest.Builder builder = request.apply(readUrl);
+        long version = writtenVersion.get();
+        if (version > 0) {
+            builder.header("X-Min-Version", String.valueOf(version));
+        }
+        return send(builder, bodyHandler).handle((response, e) -> {
+            if (e == null && response.statusCode() != 503) {
+                return CompletableFuture.completedFuture(response);
+            }
+            discard(response);
+            System.out.println("Реплика " + readUrl + " не ответила, читаем с лидера");
+            return send(request.apply(url), bodyHandler);
+        }).thenCompose(Function.identity());
+    }
+
+    private void recordVersion(HttpResponse<String> response) {
+        response.headers().firstValue("X-Version").ifPresent(version -> {
+            try {
+                writtenVersion.accumulateAndGet(Long.parseLong(version), Math::max);
+            } catch (NumberFormatException e) {
+                System.out.println("Некорректный заголовок X-Version: " + version);
+            }
+        });
+    }
+
+    private CompletableFuture<HttpResponse<String>> send(HttpRequest.Builder request) {
+        return send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * Отправляет запрос с таймаутом из RequestPolicy, если предохранитель сервера замкнут. Место освобождается,
+     * когда ответ получен или запрос упал; потоковый ответ считается полученным по заголовкам.
+     */
+    private <T> CompletableFuture<HttpResponse<T>> send(HttpRequest.Builder builder,
+                                                        HttpResponse.BodyHandler<T> bodyHandler) {
+        HttpRequest request = builder.timeout(Duration.ofMillis(policy.getRequestTimeoutMillis())).build();
+        String server = request.uri().getScheme() + "://" + request.uri().getAuthority();
+        CircuitBreaker breaker = breaker(server);
+        if (!breaker.allowRequest()) {
+            return CompletableFuture.failedFuture(new KVUnavailableException("Сервер " + server
+                    + " недоступен, запросы к нему приостановлены"));
+        }
+        try {
+            inFlightRequests.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            breaker.onFailure();
+            return CompletableFuture.failedFuture(e);
+        }
+        try {
+            return client.sendAsync(request, bodyHandler).whenComplete((response, e) -> {
+                inFlightRequests.release();
+                if (e != null || response.statusCode() == 500) {
+                    breaker.onFailure();
+                } else {
+                    breaker.onSuccess();
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlightRequests.release();
+            breaker.onFailure();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // предохранитель общий для HTTP и двоичного протокола одного сервера
+    private CircuitBreaker breaker(String server) {
+        URI uri = URI.create(server);
+        return breakers.computeIfAbsent(uri.getScheme() + "://" + uri.getAuthority(),
+                ignored -> new CircuitBreaker(policy.getFailureThreshold(), policy.getBreakerOpenMillis()));
+    }
+
+    /**
+     * Одна попытка чтения для retryRead: как отправить запрос, какой ответ считать ошибкой сервера,
+     * которую стоит повторить, и как освободить ненужный ответ (response может быть null).
+     */
+    private interface ReadAttempt<R> {
+
+        CompletableFuture<R> send();
+
+        // null - ответ удачный
+        String failure(R response);
+
+        void discard(R response);
+    }
+
+    // разбор ответа на чтение; исключение значит, что сервер не выполнил чтение и попытку нужно повторить
+    private interface ResponseParser<T, R> {
+
+        R parse(HttpResponse<T> response) throws IOException;
+    }
+
+    // запросы /watch идут друг за другом: следующий отправляется, когда listener обработал предыдущий ответ
+    private class Watch implements KVSubscription {
+        private final KVChangeListener listener;
+        private volatile boolean closed;
+        // версия не получена из-за ошибки, пропущенные до подписки записи нужно перечитать
+        private boolean lost;
+        private String epoch;
+        private long version = -1;
+
+        Watch(KVChangeListener listener) {
+            this.listener = listener;
+        }
+
+        CompletableFuture<Void> poll() {
+            String since = version < 0 ? "" : "since=" + version + "&timeout=" + WATCH_TIMEOUT_MILLIS + "&";
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create(url + "/watch?" + since + "API_TOKEN=" + apiToken))
+                    .timeout(Duration.ofMillis(2 * WATCH_TIMEOUT_MILLIS))
+                    .GET()
+                    .build();
+            return client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream()).thenAccept(this::read);
+        }
+
+        void loop() {
+            if (closed) {
+                return;
+            }
+            poll().whenComplete((ignored, e) -> {
+                if (closed) {
+                    return;
+                }
+                if (e == null) {
+                    loop();
+                    return;
+                }
+                System.out.println("Ошибка подписки на изменения: " + e.getMessage());
+                CompletableFuture.delayedExecutor(WATCH_RETRY_MILLIS, TimeUnit.MILLISECONDS).execute(this::loop);
+            });
+        }
+
+        // epoch и version сервер пишет раньше changes, поэтому о сбросе известно до первого изменения
+        private void read(HttpResponse<InputStream> response) {
+            try (JsonReader reader = new JsonReader(new InputStreamReader(response.body(), UTF_8))) {
+                if (response.statusCode() != 200 && response.statusCode() != 410) {
+                    throw new IOException("сервер вернул код состояния " + response.statusCode());
+                }
+                boolean reset = response.statusCode() == 410 || lost && version < 0;
+                long latest = -1;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (name.equals("epoch")) {
+                        String current = reader.nextString();
+                        reset |= epoch != null && !epoch.equals(current);
+                        epoch = current;
+                    } else if (name.equals("version")) {
+                        latest = reader.nextLong();
+                    } else if (name.equals("changes") && !reset && version >= 0) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            readChange(reader);
+                        }
+                        reader.endArray();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (reset || version < 0) {
+                    version = latest;
+                    lost = false;
+                }
+                if (reset && !closed) {
+                    System.out.println("Часть изменений пропущена, подписчику нужно перечитать значения");
+                    listener.onReset();
+                }
+            } catch (IOException | IllegalStateException e) {
+                throw new CompletionException(e);
+            }
+        }
+
+        private void readChange(JsonReader reader) throws IOException {
+            long changeVersion = -1;
+            Map<String, String> values = new LinkedHashMap<>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("version")) {
+                    changeVersion = reader.nextLong();
+                } else if (name.equals("values")) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String key = reader.nextName();
+                        if (reader.peek() == JsonToken.NULL) {
+                            reader.nextNull();
+                            values.put(key, null);
+                        } else {
+                            values.put(key, reader.nextString());
+                        }
+                    }
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            version = Math.max(version, changeVersion);
+            if (!closed) {
+                listener.onChange(changeVersion, values);
+            }
+        }
+
+        // уже отправленный запрос не отменяется, его ответ просто не передаётся listener
+        @Override
+        public void close() {
+            closed = true;
+            watches.remove(this);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package client;
+
+/**
+ * Сервер не выполнил чтение: истёк таймаут, не удалось соединиться, сервер вернул код ошибки или оборвал ответ,
+ * или разомкнут предохранитель. В отличие от пустого ответа, это не значит, что данных нет.
+ * Тем же исключением конструктор KVTaskClient сообщает, что сервер не выдал API_TOKEN.
+ */
+public class KVUnavailableException extends RuntimeException {
+
+    public KVUnavailableException(String message) {
+        super(message);
+    }
+
+    public KVUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
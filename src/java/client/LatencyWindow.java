@@ -0,0 +1,35 @@
+package client;
+
+import java.util.Arrays;
+
+/**
+ * Время последних capacity удачных запросов. Пока замеров меньше MIN_SAMPLES, перцентиль неизвестен.
+ */
+class LatencyWindow {
+    static final int MIN_SAMPLES = 16;
+    private final long[] samples;
+    private int count;
+    private int next;
+
+    LatencyWindow(int capacity) {
+        samples = new long[capacity];
+    }
+
+    synchronized void record(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    /**
+     * Перцентиль percent (от 0 до 100) в миллисекундах или -1, если замеров слишком мало.
+     */
+    synchronized long percentile(int percent) {
+        if (count < MIN_SAMPLES) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        return sorted[Math.min(count - 1, count * percent / 100)];
+    }
+}
@@ -0,0 +1,87 @@
+package client;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Кэш значений и ETag, прочитанных клиентом, ограниченный по размеру: при переполнении вытесняются
+ * давно не читанные записи. Размер оценивается в два байта на символ ключа, ETag и значения
+ * плюс ENTRY_OVERHEAD на запись. Запись может хранить только ETag, без значения.
+ */
+class ReadCache {
+    static final long ENTRY_OVERHEAD = 64;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long usedBytes;
+
+    ReadCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Запоминает ETag и значение. value может быть null, тогда запоминается только ETag;
+     * значение, которое одно больше всего кэша, тоже не хранится.
+     */
+    synchronized void put(String key, String etag, String value) {
+        if (value != null && weight(key, etag, value) > maxBytes) {
+            value = null;
+        }
+        Entry entry = new Entry(etag, value);
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            usedBytes -= weight(key, previous.etag, previous.value);
+        }
+        usedBytes += weight(key, etag, value);
+        evict();
+    }
+
+    synchronized void remove(String key) {
+        Entry previous = entries.remove(key);
+        if (previous != null) {
+            usedBytes -= weight(key, previous.etag, previous.value);
+        }
+    }
+
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (usedBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Entry> entry = eldest.next();
+            usedBytes -= weight(entry.getKey(), entry.getValue().etag, entry.getValue().value);
+            eldest.remove();
+        }
+    }
+
+    private static long weight(String key, String etag, String value) {
+        return ENTRY_OVERHEAD + 2L * (key.length() + etag.length() + (value == null ? 0 : value.length()));
+    }
+
+    static class Entry {
+        final String etag;
+        // null, если запомнен только ETag
+        final String value;
+
+        Entry(String etag, String value) {
+            this.etag = etag;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package client;
+
+/**
+ * Таймауты, повторы, предохранитель и хеджирование запросов KVTaskClient.
+ * <p>
+ * Повторяются только чтения: повторная запись могла бы лечь поверх более новой записи того же ключа.
+ * Перед повтором клиент ждёт случайное время от нуля до retryBackoffMillis * 2^номер повтора.
+ * <p>
+ * После failureThreshold неудач подряд предохранитель сервера размыкается, и запросы к нему
+ * breakerOpenMillis завершаются сразу, не дожидаясь таймаута. Затем пропускается один пробный
+ * запрос: удачный замыкает предохранитель, неудачный размыкает снова.
+ * <p>
+ * При hedgedReads чтение, не получившее ответа за 95-й перцентиль времени последних чтений,
+ * отправляется ещё раз, и клиент берёт первый ответ.
+ */
+public class RequestPolicy {
+
+    public static final RequestPolicy DEFAULT = new RequestPolicy(5_000, 30_000, 2, 50, 5, 5_000, false);
+
+    private final long connectTimeoutMillis;
+    private final long requestTimeoutMillis;
+    private final int maxRetries;
+    private final long retryBackoffMillis;
+    private final int failureThreshold;
+    private final long breakerOpenMillis;
+    private final boolean hedgedReads;
+
+    public RequestPolicy(long connectTimeoutMillis, long requestTimeoutMillis, int maxRetries, long retryBackoffMillis,
+                         int failureThreshold, long breakerOpenMillis, boolean hedgedReads) {
+        if (connectTimeoutMillis <= 0 || requestTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Таймауты должны быть положительными");
+        }
+        if (maxRetries < 0 || retryBackoffMillis < 0 || failureThreshold < 1 || breakerOpenMillis < 0) {
+            throw new IllegalArgumentException("Некорректные параметры повторов или предохранителя");
+        }
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        this.maxRetries = maxRetries;
+        this.retryBackoffMillis = retryBackoffMillis;
+        this.failureThreshold = failureThreshold;
+        this.breakerOpenMillis = breakerOpenMillis;
+        this.hedgedReads = hedgedReads;
+    }
+
+    public long getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public long getRequestTimeoutMillis() {
+        return requestTimeoutMillis;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public long getRetryBackoffMillis() {
+        return retryBackoffMillis;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public long getBreakerOpenMillis() {
+        return breakerOpenMillis;
+    }
+
+    public boolean isHedgedReads() {
+        return hedgedReads;
+    }
+}
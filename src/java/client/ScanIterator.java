@@ -0,0 +1,51 @@
+package client;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Перебор по префиксу страницами: следующая страница запрашивается сразу, как получена текущая.
+ * Неполная страница - последняя; если страницу получить не удалось, hasNext бросает KVUnavailableException.
+ */
+class ScanIterator implements Iterator<Map.Entry<String, String>> {
+    private final KVClient client;
+    private final String prefix;
+    private final int pageSize;
+    private Iterator<Map.Entry<String, String>> page = Collections.emptyIterator();
+    private CompletableFuture<Map<String, String>> nextPage;
+
+    ScanIterator(KVClient client, String prefix, int pageSize) {
+        this.client = client;
+        this.prefix = prefix;
+        this.pageSize = pageSize;
+        nextPage = client.scanAsync(prefix, null, pageSize);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!page.hasNext() && nextPage != null) {
+            Map<String, String> values = Futures.join(nextPage);
+            nextPage = null;
+            String last = null;
+            for (String key : values.keySet()) {
+                last = key;
+            }
+            if (values.size() == pageSize) {
+                nextPage = client.scanAsync(prefix, last, pageSize);
+            }
+            page = values.entrySet().iterator();
+        }
+        return page.hasNext();
+    }
+
+    @Override
+    public Map.Entry<String, String> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+}
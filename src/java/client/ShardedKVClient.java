@@ -0,0 +1,443 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Клиент, распределяющий ключи по нескольким KVServer кольцом консистентного хеширования.
+ * Одиночные операции идут на сервер-владелец ключа, пакеты делятся по серверам и отправляются
+ * параллельно. Перебор по префиксу сливает упорядоченные страницы всех серверов.
+ * <p>
+ * addNode и removeNode переносят ключи, сменившие владельца. Удаления в KVServer нет, поэтому
+ * на прежнем владельце остаётся устаревшая копия: её не видно, потому что и чтение, и перебор
+ * берут ключ только с текущего владельца. На время переноса записи ждут его окончания, а перенос
+ * начинается после завершения уже отправленных записей, поэтому запись в переносимый ключ не теряется.
+ * Чтение не блокируется и до смены кольца идёт к прежним владельцам. Если перенос на новый сервер
+ * не удался, addNode забывает о сервере, и его можно добавить повторно.
+ * <p>
+ * На каждом сервере клиент регистрируется в новом пространстве имён, см. getApiToken.
+ * <p>
+ * Подписка на изменения подписывается на каждый сервер кольца, в том числе добавленный позже.
+ * Версии разных серверов независимы, поэтому сравнивать можно только версии одного ключа.
+ */
+public class ShardedKVClient implements KVClient {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+    private static final int REBALANCE_PAGE_SIZE = 500;
+
+    private final Map<String, KVTaskClient> clients = new ConcurrentHashMap<>();
+    private final Set<ShardedSubscription> subscriptions = ConcurrentHashMap.newKeySet();
+    private final int maxInFlightRequests;
+    private final long writeBehindMillis;
+    private final RequestPolicy policy;
+    private volatile ConsistentHashRing<String> ring;
+    // записи, отправленные и ещё не завершённые; перенос ждёт, пока их не останется
+    private final Object writeGate = new Object();
+    private int activeWrites;
+    private boolean moving;
+
+    public ShardedKVClient(List<String> urls) {
+        this(urls, DEFAULT_VIRTUAL_NODES, KVTaskClient.DEFAULT_MAX_IN_FLIGHT_REQUESTS, 0);
+    }
+
+    /**
+     * maxInFlightRequests и writeBehindMillis задаются для клиента каждого сервера отдельно.
+     */
+    public ShardedKVClient(List<String> urls, int virtualNodes, int maxInFlightRequests, long writeBehindMillis) {
+        this(urls, virtualNodes, maxInFlightRequests, writeBehindMillis, RequestPolicy.DEFAULT);
+    }
+
+    /**
+     * policy, как и maxInFlightRequests, действует для клиента каждого сервера отдельно, предохранитель у каждого свой.
+     */
+    public ShardedKVClient(List<String> urls, int virtualNodes, int maxInFlightRequests, long writeBehindMillis,
+                           RequestPolicy policy) {
+        this.maxInFlightRequests = maxInFlightRequests;
+        this.writeBehindMillis = writeBehindMillis;
+        this.policy = policy;
+        for (String url : urls) {
+            clients.put(url, newClient(url));
+        }
+        ring = new ConsistentHashRing<>(urls, virtualNodes);
+    }
+
+    @Override
+    public boolean put(String key, String json) {
+        beginWrite();
+        try {
+            return shard(key).put(key, json);
+        } finally {
+            endWrite();
+        }
+    }
+
+    @Override
+    public String load(String key) {
+        return shard(key).load(key);
+    }
+
+    @Override
+    public boolean putAll(Map<String, String> values) {
+        return putAllAsync(values).join();
+    }
+
+    @Override
+    public Map<String, String> loadAll(Collection<String> keys) {
+        return Futures.join(loadAllAsync(keys));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> putAsync(String key, String json) {
+        return write(() -> shard(key).putAsync(key, json));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> putAsync(String key, String json, long ttlMillis) {
+        return write(() -> shard(key).putAsync(key, json, ttlMillis));
+    }
+
+    @Override
+    public CompletableFuture<String> loadAsync(String key) {
+        return shard(key).loadAsync(key);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> putAllAsync(Map<String, String> values) {
+        return write(() -> putAllTo(ring, values));
+    }
+
+    private CompletableFuture<Boolean> putAllTo(ConsistentHashRing<String> current, Map<String, String> values) {
+        Map<String, Map<String, String>> batches = new HashMap<>();
+        values.forEach((key, value) ->
+                batches.computeIfAbsent(current.nodeFor(key), node -> new LinkedHashMap<>()).put(key, value));
+        CompletableFuture<Boolean> result = CompletableFuture.completedFuture(true);
+        for (Map.Entry<String, Map<String, String>> batch : batches.entrySet()) {
+            result = result.thenCombine(clients.get(batch.getKey()).putAllAsync(batch.getValue()),
+                    (saved, shardSaved) -> saved && shardSaved);
+        }
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<Map<String, String>> loadAllAsync(Collection<String> keys) {
+        ConsistentHashRing<String> current = ring;
+        Map<String, List<String>> batches = new HashMap<>();
+        for (String key : keys) {
+            batches.computeIfAbsent(current.nodeFor(key), node -> new ArrayList<>()).add(key);
+        }
+        CompletableFuture<Map<String, String>> result = CompletableFuture.completedFuture(new HashMap<>());
+        for (Map.Entry<String, List<String>> batch : batches.entrySet()) {
+            result = result.thenCombine(clients.get(batch.getKey()).loadAllAsync(batch.getValue()),
+                    (values, shardValues) -> {
+                        values.putAll(shardValues);
+                        return values;
+                    });
+        }
+        return result;
+    }
+
+    @Override
+    public String putIfMatch(String key, String json, String etag) {
+        beginWrite();
+        try {
+            return shard(key).putIfMatch(key, json, etag);
+        } finally {
+            endWrite();
+        }
+    }
+
+    @Override
+    public CompletableFuture<String> putIfMatchAsync(String key, String json, String etag) {
+        return write(() -> shard(key).putIfMatchAsync(key, json, etag));
+    }
+
+    @Override
+    public String getETag(String key) {
+        return shard(key).getETag(key);
+    }
+
+    @Override
+    public Map<String, String> scan(String prefix, String after, int limit) {
+        return Futures.join(scanAsync(prefix, after, limit));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, String>> scanAsync(String prefix, String after, int limit) {
+        return scanFrom(ring, prefix, after, limit, new LinkedHashMap<>());
+    }
+
+    /**
+     * Страница собирается из страниц всех серверов. Ключи сервера, вернувшего полную страницу,
+     * известны только до его последнего ключа, поэтому дальше него страница не заполняется,
+     * а недостающее запрашивается следующим кругом.
+     */
+    private CompletableFuture<Map<String, String>> scanFrom(ConsistentHashRing<String> current, String prefix,
+                                                           String after, int limit, Map<String, String> collected) {
+        Map<String, CompletableFuture<Map<String, String>>> pages = new LinkedHashMap<>();
+        for (String node : current.nodes()) {
+            pages.put(node, clients.get(node).scanAsync(prefix, after, limit));
+        }
+        return CompletableFuture.allOf(pages.values().toArray(new CompletableFuture<?>[0])).thenCompose(ignored -> {
+            TreeMap<String, String> merged = new TreeMap<>();
+            String cutoff = null;
+            for (Map.Entry<String, CompletableFuture<Map<String, String>>> page : pages.entrySet()) {
+                Map<String, String> values = page.getValue().join();
+                String last = null;
+                for (Map.Entry<String, String> entry : values.entrySet()) {
+                    last = entry.getKey();
+                    if (current.nodeFor(entry.getKey()).equals(page.getKey())) {
+                        merged.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                if (values.size() == limit && (cutoff == null || last.compareTo(cutoff) < 0)) {
+                    cutoff = last;
+                }
+            }
+            for (Map.Entry<String, String> entry : merged.entrySet()) {
+                if (cutoff != null && entry.getKey().compareTo(cutoff) > 0) {
+                    break;
+                }
+                collected.put(entry.getKey(), entry.getValue());
+                if (collected.size() == limit) {
+                    return CompletableFuture.completedFuture(collected);
+                }
+            }
+            if (cutoff == null) {
+                return CompletableFuture.completedFuture(collected);
+            }
+            return scanFrom(current, prefix, cutoff, limit, collected);
+        });
+    }
+
+    @Override
+    public KVSubscription subscribe(KVChangeListener listener) {
+        ShardedSubscription subscription = new ShardedSubscription(listener);
+        subscriptions.add(subscription);
+        for (String node : ring.nodes()) {
+            subscription.add(node);
+        }
+        return subscription;
+    }
+
+    /**
+     * Добавляет сервер и переносит на него ключи, которые теперь ему принадлежат. Возвращает число перенесённых ключей.
+     */
+    public synchronized int addNode(String url) {
+        if (clients.containsKey(url)) {
+            return 0;
+        }
+        KVTaskClient client = newClient(url);
+        clients.put(url, client);
+        beginMove();
+        try {
+            ConsistentHashRing<String> current = ring;
+            ConsistentHashRing<String> next = current.with(url);
+            int moved = transfer(current, next, current.nodes());
+            subscriptions.forEach(subscription -> subscription.add(url));
+            ring = next;
+            System.out.println("Ребалансировка завершена, перенесено ключей: " + moved);
+            return moved;
+        } catch (RuntimeException e) {
+            subscriptions.forEach(subscription -> subscription.remove(url));
+            clients.remove(url);
+            client.close();
+            throw e;
+        } finally {
+            endMove();
+        }
+    }
+
+    /**
+     * Переносит ключи сервера на оставшиеся и убирает его из кольца. Возвращает число перенесённых ключей.
+     */
+    public synchronized int removeNode(String url) {
+        ConsistentHashRing<String> current = ring;
+        if (!current.nodes().contains(url) || current.nodes().size() == 1) {
+            return 0;
+        }
+        int moved;
+        beginMove();
+        try {
+            ConsistentHashRing<String> next = current.without(url);
+            moved = transfer(current, next, List.of(url));
+            ring = next;
+        } finally {
+            endMove();
+        }
+        System.out.println("Ребалансировка завершена, перенесено ключей: " + moved);
+        subscriptions.forEach(subscription -> subscription.remove(url));
+        clients.remove(url).close();
+        return moved;
+    }
+
+    // кольцо подменяет вызывающий после переноса, до этого чтение идёт к прежним владельцам
+    private int transfer(ConsistentHashRing<String> current, ConsistentHashRing<String> next,
+                         Collection<String> sources) {
+        int moved = 0;
+        for (String source : sources) {
+            KVTaskClient sourceClient = clients.get(source);
+            sourceClient.flush();
+            Map<String, Map<String, String>> batches = new HashMap<>();
+            Iterator<Map.Entry<String, String>> entries = sourceClient.scan("", REBALANCE_PAGE_SIZE);
+            while (entries.hasNext()) {
+                Map.Entry<String, String> entry = entries.next();
+                String owner = next.nodeFor(entry.getKey());
+                if (owner.equals(source) || !current.nodeFor(entry.getKey()).equals(source)) {
+                    continue;
+                }
+                Map<String, String> batch = batches.computeIfAbsent(owner, node -> new LinkedHashMap<>());
+                batch.put(entry.getKey(), entry.getValue());
+                if (batch.size() == REBALANCE_PAGE_SIZE) {
+                    moved += move(owner, batches.remove(owner));
+                }
+            }
+            for (Map.Entry<String, Map<String, String>> batch : batches.entrySet()) {
+                moved += move(batch.getKey(), batch.getValue());
+            }
+        }
+        return moved;
+    }
+
+    private int move(String node, Map<String, String> batch) {
+        KVTaskClient target = clients.get(node);
+        if (!target.putAll(batch) || !target.flush()) {
+            throw new IllegalStateException("Не удалось перенести " + batch.size() + " ключей на " + node);
+        }
+        return batch.size();
+    }
+
+    /**
+     * API_TOKEN пространства имён, которое клиент получил на сервере url, или null, если сервера нет в кольце.
+     */
+    public String getApiToken(String url) {
+        KVTaskClient client = clients.get(url);
+        return client == null ? null : client.getApiToken();
+    }
+
+    @Override
+    public boolean flush() {
+        boolean flushed = true;
+        for (KVTaskClient client : clients.values()) {
+            flushed &= client.flush();
+        }
+        return flushed;
+    }
+
+    @Override
+    public void close() {
+        subscriptions.forEach(ShardedSubscription::close);
+        clients.values().forEach(KVTaskClient::close);
+    }
+
+    private <T> CompletableFuture<T> write(Supplier<CompletableFuture<T>> request) {
+        beginWrite();
+        CompletableFuture<T> result;
+        try {
+            result = request.get();
+        } catch (RuntimeException e) {
+            endWrite();
+            throw e;
+        }
+        return result.whenComplete((value, e) -> endWrite());
+    }
+
+    private void beginWrite() {
+        synchronized (writeGate) {
+            awaitWhile(() -> moving);
+            activeWrites++;
+        }
+    }
+
+    private void endWrite() {
+        synchronized (writeGate) {
+            activeWrites--;
+            writeGate.notifyAll();
+        }
+    }
+
+    private void beginMove() {
+        synchronized (writeGate) {
+            moving = true;
+            awaitWhile(() -> activeWrites > 0);
+        }
+    }
+
+    private void endMove() {
+        synchronized (writeGate) {
+            moving = false;
+            writeGate.notifyAll();
+        }
+    }
+
+    // вызывается под writeGate; прерывание не отменяет ожидание, а восстанавливается после него
+    private void awaitWhile(BooleanSupplier condition) {
+        boolean interrupted = false;
+        while (condition.getAsBoolean()) {
+            try {
+                writeGate.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private KVTaskClient newClient(String url) {
+        return new KVTaskClient(url, List.of(), maxInFlightRequests, writeBehindMillis, policy);
+    }
+
+    private KVTaskClient shard(String key) {
+        return clients.get(ring.nodeFor(key));
+    }
+
+    // изменения с разных серверов приходят из разных потоков, listener получает их по очереди
+    private class ShardedSubscription implements KVSubscription, KVChangeListener {
+        private final KVChangeListener listener;
+        private final Map<String, KVSubscription> shards = new ConcurrentHashMap<>();
+
+        ShardedSubscription(KVChangeListener listener) {
+            this.listener = listener;
+        }
+
+        void add(String node) {
+            shards.put(node, clients.get(node).subscribe(this));
+        }
+
+        void remove(String node) {
+            KVSubscription shard = shards.remove(node);
+            if (shard != null) {
+                shard.close();
+            }
+        }
+
+        @Override
+        public synchronized void onChange(long version, Map<String, String> values) {
+            listener.onChange(version, values);
+        }
+
+        @Override
+        public synchronized void onReset() {
+            listener.onReset();
+        }
+
+        @Override
+        public void close() {
+            subscriptions.remove(this);
+            shards.values().forEach(KVSubscription::close);
+            shards.clear();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package manager;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Потоковое сжатие снимков. Сжатые данные распознаются при чтении по сигнатуре,
+ * поэтому файлы и значения, записанные без сжатия, читаются как раньше.
+ */
+public enum Compression {
+
+    NONE {
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return out;
+        }
+
+        @Override
+        InputStream decompress(InputStream in) {
+            return in;
+        }
+
+        @Override
+        boolean matches(int first, int second) {
+            return false;
+        }
+    },
+    DEFLATE {
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return new DeflaterOutputStream(out);
+        }
+
+        @Override
+        InputStream decompress(InputStream in) {
+            return new InflaterInputStream(in);
+        }
+
+        // заголовок zlib: метод 8, окно до 32К, контрольная сумма заголовка кратна 31
+        @Override
+        boolean matches(int first, int second) {
+            return (first & 0x0F) == 8 && (first >> 4) <= 7 && ((first << 8) | second) % 31 == 0;
+        }
+    },
+    GZIP {
+        @Override
+        public OutputStream compress(OutputStream out) throws IOException {
+            return new GZIPOutputStream(out);
+        }
+
+        @Override
+        InputStream decompress(InputStream in) throws IOException {
+            return new GZIPInputStream(in);
+        }
+
+        @Override
+        boolean matches(int first, int second) {
+            return first == 0x1F && second == 0x8B;
+        }
+    };
+
+    public abstract OutputStream compress(OutputStream out) throws IOException;
+
+    abstract InputStream decompress(InputStream in) throws IOException;
+
+    abstract boolean matches(int first, int second);
+
+    /**
+     * Определяет сжатие по первым байтам потока и возвращает поток с исходными данными.
+     */
+    public static InputStream detect(InputStream in) throws IOException {
+        InputStream buffered = in.markSupported() ? in : new BufferedInputStream(in);
+        buffered.mark(2);
+        int first = buffered.read();
+        int second = buffered.read();
+        buffered.reset();
+        for (Compression compression : values()) {
+            if (compression.matches(first, second)) {
+                return compression.decompress(buffered);
+            }
+        }
+        return buffered;
+    }
+
+    /**
+     * Сжимает текст и кодирует результат в Base64, чтобы его можно было передать как текстовое значение.
+     */
+    public String compressText(String text) {
+        if (this == NONE) {
+            return text;
+        }
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (OutputStream out = compress(Base64.getEncoder().wrap(result))) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new ManagerSaveException("Не удалось сжать значение", e);
+        }
+        return result.toString(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Обратное к compressText: текст, не похожий на Base64 от сжатых данных, возвращается без изменений.
+     */
+    public static String decompressText(String value) {
+        if (value == null || value.isEmpty() || !isBase64Start(value.charAt(0))) {
+            return value;
+        }
+        byte[] bytes;
+        try {
+            bytes = Base64.getDecoder().decode(value);
+        } catch (IllegalArgumentException e) {
+            return value;
+        }
+        if (bytes.length < 2 || !(GZIP.matches(bytes[0] & 0xFF, bytes[1] & 0xFF)
+                || DEFLATE.matches(bytes[0] & 0xFF, bytes[1] & 0xFF))) {
+            return value;
+        }
+        try (InputStream in = detect(new ByteArrayInputStream(bytes))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new ManagerSaveException("Не удалось распаковать значение", e);
+        }
+    }
+
+    // JSON начинается с [ { " цифры или литерала, Base64 сжатых данных - с H (gzip) или e (zlib)
+    private static boolean isBase64Start(char c) {
+        return c == 'H' || c == 'e';
+    }
+}
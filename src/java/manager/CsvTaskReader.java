@@ -0,0 +1,311 @@
+package manager;
+
+import task.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Потоковый разбор CSV-файла задач. Запись разбирается в переиспользуемый буфер символов,
+ * поля хранятся как смещения в нём, числа и даты читаются прямо из символов.
+ * Поддерживаются поля в кавычках ("a,""b""") и переносы строк внутри них.
+ */
+public class CsvTaskReader implements Closeable {
+
+    private static final TaskType[] TYPES = TaskType.values();
+    private static final TaskStatus[] STATUSES = TaskStatus.values();
+    private static final int RECORD_FIELDS = 9;
+
+    private final char[] buffer = new char[8192];
+    // у записи задачи RECORD_FIELDS полей, строка истории может быть длиннее - тогда массивы растут
+    private int[] starts = new int[RECORD_FIELDS];
+    private int[] ends = new int[RECORD_FIELDS];
+    private boolean[] quoted = new boolean[RECORD_FIELDS];
+    private Reader in;
+    private int position;
+    private int limit;
+    private char[] record = new char[256];
+    private int recordLength;
+    private int fieldCount;
+    private int cursor;
+
+    public CsvTaskReader(Reader in) {
+        this.in = in;
+    }
+
+    public void reset(Reader in) {
+        this.in = in;
+        position = 0;
+        limit = 0;
+        recordLength = 0;
+        fieldCount = 0;
+    }
+
+    public boolean next() throws IOException {
+        recordLength = 0;
+        fieldCount = 0;
+        int c = read();
+        if (c == -1) {
+            return false;
+        }
+        int fieldStart = 0;
+        boolean inQuotes = false;
+        boolean wasQuoted = false;
+        while (true) {
+            if (inQuotes) {
+                if (c == -1) {
+                    throw new ManagerSaveException("Незакрытая кавычка в CSV-записи");
+                }
+                if (c == '"') {
+                    c = read();
+                    if (c != '"') {
+                        inQuotes = false;
+                        continue;
+                    }
+                }
+                append((char) c);
+            } else if (c == '"' && !wasQuoted && isBlank(fieldStart, recordLength)) {
+                recordLength = fieldStart;
+                inQuotes = true;
+                wasQuoted = true;
+            } else if (c == ',') {
+                endField(fieldStart, wasQuoted);
+                fieldStart = recordLength;
+                wasQuoted = false;
+            } else if (c == '\n' || c == -1) {
+                endField(fieldStart, wasQuoted);
+                return true;
+            } else if (c != '\r') {
+                append((char) c);
+            }
+            c = read();
+        }
+    }
+
+    public boolean isBlank() {
+        return fieldCount == 1 && !quoted[0] && starts[0] == ends[0];
+    }
+
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    public Task readTask() {
+        if (fieldCount < 8) {
+            throw new ManagerSaveException("В CSV-записи задачи не хватает полей: " + fieldCount);
+        }
+        TaskType type = TYPES[matchName(1, TYPES)];
+        TaskStatus status = STATUSES[matchName(3, STATUSES)];
+        String name = readString(2);
+        String description = readString(4);
+        Date startTime = readDate(5);
+        int duration = readInt(6);
+
+        Task task;
+        switch (type) {
+            case SUBTASK:
+                if (fieldCount < 9) {
+                    throw new ManagerSaveException("В CSV-записи подзадачи нет идентификатора эпика");
+                }
+                task = new Subtask(name, description, status, duration, startTime, readInt(8));
+                break;
+            case EPIC:
+                Epic epic = new Epic(name, status, description);
+                epic.setStartTime(startTime);
+                epic.setDuration(duration);
+                epic.setEndTime(readDate(7));
+                task = epic;
+                break;
+            default:
+                task = new Task(name, description, status, duration, startTime);
+                break;
+        }
+        task.setId(readInt(0));
+        return task;
+    }
+
+    public List<Integer> readIds() {
+        List<Integer> ids = new ArrayList<>(fieldCount);
+        for (int i = 0; i < fieldCount; i++) {
+            ids.add(readInt(i));
+        }
+        return ids;
+    }
+
+    public int readInt(int field) {
+        int i = starts[field];
+        int end = ends[field];
+        boolean negative = i < end && record[i] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == end) {
+            throw new ManagerSaveException("Ожидалось число в поле " + field);
+        }
+        int result = 0;
+        for (; i < end; i++) {
+            int digit = record[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new ManagerSaveException("Ожидалось число в поле " + field + ": "
+                        + new String(record, starts[field], end - starts[field]));
+            }
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+
+    public String readString(int field) {
+        int length = ends[field] - starts[field];
+        if (!quoted[field] && isNullLiteral(field)) {
+            return null;
+        }
+        return new String(record, starts[field], length);
+    }
+
+    /**
+     * Разбирает дату вида dd/MM/yyyy или dd/MM/yyyy:HH-mm в UTC.
+     */
+    public Date readDate(int field) {
+        if (!quoted[field] && isNullLiteral(field)) {
+            return null;
+        }
+        cursor = starts[field];
+        int end = ends[field];
+        int day = readNumber(end, '/');
+        int month = readNumber(end, '/');
+        int year = readNumber(end, ':');
+        int hours = 0;
+        int minutes = 0;
+        if (cursor < end) {
+            hours = readNumber(end, '-');
+            minutes = readNumber(end, (char) 0);
+        }
+        if (day < 1 || day > 31 || month < 1 || month > 12 || hours > 23 || minutes > 59) {
+            throw dateException();
+        }
+        long epochDay = toEpochDay(year, month, day);
+        return new Date(((epochDay * 24 + hours) * 60 + minutes) * 60_000L);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private int readNumber(int end, char delimiter) {
+        int i = cursor;
+        int result = 0;
+        int start = i;
+        while (i < end && record[i] >= '0' && record[i] <= '9') {
+            result = result * 10 + (record[i] - '0');
+            i++;
+        }
+        if (i == start) {
+            throw dateException();
+        }
+        if (i < end) {
+            if (record[i] != delimiter) {
+                throw dateException();
+            }
+            i++;
+        }
+        cursor = i;
+        return result;
+    }
+
+    private RuntimeException dateException() {
+        return new RuntimeException("Не получилось преобразовать строку в дату - шаблон следующий: dd/MM/yyyy");
+    }
+
+    // алгоритм days_from_civil, без Calendar и SimpleDateFormat
+    static long toEpochDay(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153L * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private <E extends Enum<E>> int matchName(int field, E[] values) {
+        int start = starts[field];
+        int length = ends[field] - start;
+        for (int i = 0; i < values.length; i++) {
+            String name = values[i].name();
+            if (name.length() != length) {
+                continue;
+            }
+            int j = 0;
+            while (j < length && name.charAt(j) == record[start + j]) {
+                j++;
+            }
+            if (j == length) {
+                return i;
+            }
+        }
+        throw new ManagerSaveException("Неизвестное значение в поле " + field + ": "
+                + new String(record, start, length));
+    }
+
+    private boolean isNullLiteral(int field) {
+        int start = starts[field];
+        return ends[field] - start == 4 && record[start] == 'n' && record[start + 1] == 'u'
+                && record[start + 2] == 'l' && record[start + 3] == 'l';
+    }
+
+    private boolean isBlank(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!Character.isWhitespace(record[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void endField(int start, boolean wasQuoted) {
+        if (fieldCount == starts.length) {
+            starts = Arrays.copyOf(starts, fieldCount * 2);
+            ends = Arrays.copyOf(ends, fieldCount * 2);
+            quoted = Arrays.copyOf(quoted, fieldCount * 2);
+        }
+        int end = recordLength;
+        if (!wasQuoted) {
+            while (start < end && Character.isWhitespace(record[start])) {
+                start++;
+            }
+            while (end > start && Character.isWhitespace(record[end - 1])) {
+                end--;
+            }
+        }
+        starts[fieldCount] = start;
+        ends[fieldCount] = end;
+        quoted[fieldCount] = wasQuoted;
+        fieldCount++;
+    }
+
+    private void append(char c) {
+        if (recordLength == record.length) {
+            char[] grown = new char[record.length * 2];
+            System.arraycopy(record, 0, grown, 0, recordLength);
+            record = grown;
+        }
+        record[recordLength++] = c;
+    }
+
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++];
+    }
+}
@@ -0,0 +1,227 @@
+package manager;
+
+import task.Subtask;
+import task.Task;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Date;
+
+/**
+ * Запись задач в CSV без промежуточных строк: поля форматируются прямо в собственный буфер,
+ * который сбрасывается в Writer. Экземпляр можно переиспользовать через reset().
+ * Поля с запятыми, кавычками и переносами строк берутся в кавычки.
+ */
+public class CsvTaskWriter implements Flushable, Closeable {
+
+    public static final String HEADER = "id,type,name,status,description,startTime,duration,endTime,epic";
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final char[] buffer = new char[8192];
+    private Writer out;
+    private int length;
+
+    public CsvTaskWriter(Writer out) {
+        this.out = out;
+    }
+
+    public void reset(Writer out) {
+        this.out = out;
+        length = 0;
+    }
+
+    public void writeHeader() throws IOException {
+        append(HEADER);
+    }
+
+    public void writeTask(Task task) throws IOException {
+        append(LINE_SEPARATOR);
+        appendInt(task.getId());
+        append(',');
+        append(task.getType().name());
+        append(',');
+        appendString(task.getName());
+        append(',');
+        append(task.getStatus().name());
+        append(',');
+        appendString(task.getDescription());
+        append(',');
+        appendDate(task.getStartTime());
+        append(',');
+        appendLong(task.getDuration());
+        append(',');
+        appendDate(task.getEndTime());
+        if (task instanceof Subtask) {
+            append(',');
+            appendInt(((Subtask) task).getEpicId());
+        }
+    }
+
+    public void writeHistory(Collection<? extends Task> history) throws IOException {
+        if (history.isEmpty()) {
+            return;
+        }
+        append(LINE_SEPARATOR);
+        append(LINE_SEPARATOR);
+        boolean first = true;
+        for (Task task : history) {
+            if (!first) {
+                append(',');
+            }
+            appendInt(task.getId());
+            first = false;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.write(buffer, 0, length);
+        length = 0;
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void appendString(String value) throws IOException {
+        if (value == null) {
+            append("null");
+            return;
+        }
+        if (!needsQuotes(value)) {
+            append(value);
+            return;
+        }
+        append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                append('"');
+            }
+            append(c);
+        }
+        append('"');
+    }
+
+    private boolean needsQuotes(String value) {
+        if (value.equals("null")) {
+            return true;
+        }
+        if (value.isEmpty()) {
+            return false;
+        }
+        if (Character.isWhitespace(value.charAt(0)) || Character.isWhitespace(value.charAt(value.length() - 1))) {
+            return true;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // формат dd/MM/yyyy:HH-mm в UTC, обратный CsvTaskReader.readDate
+    private void appendDate(Date date) throws IOException {
+        if (date == null) {
+            append("null");
+            return;
+        }
+        long minutes = Math.floorDiv(date.getTime(), 60_000L);
+        long epochDay = Math.floorDiv(minutes, 24 * 60);
+        int minuteOfDay = Math.floorMod(minutes, 24 * 60);
+
+        long z = epochDay + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        appendPadded(day, 2);
+        append('/');
+        appendPadded(month, 2);
+        append('/');
+        appendPadded(year, 4);
+        append(':');
+        appendPadded(minuteOfDay / 60, 2);
+        append('-');
+        appendPadded(minuteOfDay % 60, 2);
+    }
+
+    private void appendPadded(long value, int width) throws IOException {
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        long bound = 10;
+        for (int i = 1; i < width; i++) {
+            if (value < bound) {
+                append('0');
+            }
+            bound *= 10;
+        }
+        appendLong(value);
+    }
+
+    private void appendInt(int value) throws IOException {
+        appendLong(value);
+    }
+
+    private void appendLong(long value) throws IOException {
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        if (buffer.length - length < 20) {
+            flushBuffer();
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void append(String value) throws IOException {
+        int offset = 0;
+        while (offset < value.length()) {
+            if (length == buffer.length) {
+                flushBuffer();
+            }
+            int count = Math.min(value.length() - offset, buffer.length - length);
+            value.getChars(offset, offset + count, buffer, length);
+            length += count;
+            offset += count;
+        }
+    }
+
+    private void append(char c) throws IOException {
+        if (length == buffer.length) {
+            flushBuffer();
+        }
+        buffer[length++] = c;
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buffer, 0, length);
+        length = 0;
+    }
+}
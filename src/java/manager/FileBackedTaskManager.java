@@ -5,21 +5,21 @@ import task.*;
 import java.io.*;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.*;
 
 public class FileBackedTaskManager extends InMemoryTaskManager {
 
     private File taskDBFile;
-
-    private final static String FILE_HEADER = "id,type,name,status,description,startTime,duration,endTime,epic";
+    private TaskSegmentStore segmentStore;
+    private final CsvTaskWriter csvWriter = new CsvTaskWriter(Writer.nullWriter());
+    protected final TaskChanges changes = new TaskChanges();
+    private Compression compression = Compression.NONE;
+    private boolean restoring;
 
     public FileBackedTaskManager(String taskDBFile) {
         super();
-        this.taskDBFile = Path.of(URI.create(taskDBFile)).toFile();
+        this.taskDBFile = toFile(taskDBFile);
     }
 
     public FileBackedTaskManager() {}
@@ -27,31 +27,62 @@ public class FileBackedTaskManager extends InMemoryTaskManager {
     public static FileBackedTaskManager loadFromFile(File file) throws RuntimeException {
 
         FileBackedTaskManager manager = new FileBackedTaskManager(file.getPath());
-        if (file.length() < FILE_HEADER.length()) {
+        if (file.length() == 0) {
             return manager;
         }
-        try {
-            String data = Files.readString(Path.of(String.valueOf(file)), StandardCharsets.UTF_8);
-            List<String> separatedData = new ArrayList<>(List.of(data.split(System.lineSeparator())));
-            System.out.println(System.lineSeparator());
-
-            String lastString = separatedData.get(separatedData.size() - 1);
-            boolean haveHistory = hasHistory(separatedData);
-            manager.prepareSeparatedData(separatedData, haveHistory);
-            manager.createCorrectTasksAndPutInCollection(separatedData, manager);
-            if (haveHistory) {
-                List<Integer> historyIds = historyFromString(lastString);
-                manager.fillHistoryFromListIds(historyIds, manager);
+        manager.restoring = true;
+        try (CsvTaskReader reader = new CsvTaskReader(new InputStreamReader(
+                Compression.detect(new FileInputStream(file)), StandardCharsets.UTF_8))) {
+            if (!reader.next()) {
+                return manager;
+            }
+            manager.createCorrectTasksAndPutInCollection(reader, manager);
+            if (reader.next()) {
+                manager.fillHistoryFromListIds(reader.readIds(), manager);
             }
         } catch (IOException | NullPointerException e) {
             throw new ManagerSaveException("Something went wrong in loadFromFile() method", e);
+        } finally {
+            manager.restoring = false;
         }
+        manager.save();
+        return manager;
+    }
+
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+        if (segmentStore != null) {
+            segmentStore.setCompression(compression);
+        }
+    }
+
+    /**
+     * Открывает сегментированное хранилище в каталоге directory и восстанавливает из него задачи
+     * с исходными идентификаторами. Каждое изменение затем перезаписывает только свой сегмент.
+     */
+    public static FileBackedTaskManager loadFromSegments(File directory) {
+        FileBackedTaskManager manager = new FileBackedTaskManager();
+        try {
+            manager.segmentStore = new TaskSegmentStore(directory.toPath());
+            for (List<Task> segment : manager.segmentStore.readTaskSegments()) {
+                segment.forEach(manager::restore);
+            }
+            for (Integer id : manager.segmentStore.readHistory()) {
+                manager.restoreHistory(id);
+            }
+        } catch (IOException e) {
+            throw new ManagerSaveException("Something went wrong in loadFromSegments() method", e);
+        }
+        manager.changes.clear();
         return manager;
     }
 
     @Override
     public Task getTask(int taskId) {
         Task task = super.getTask(taskId);
+        if (task != null) {
+            changes.history();
+        }
         save();
         return task;
     }
@@ -59,6 +90,9 @@ public class FileBackedTaskManager extends InMemoryTaskManager {
     @Override
     public Epic getEpic(int epicId) {
         Epic epic = super.getEpic(epicId);
+        if (epic != null) {
+            changes.history();
+        }
         save();
         return epic;
     }
@@ -66,6 +100,9 @@ public class FileBackedTaskManager extends InMemoryTaskManager {
     @Override
     public Subtask getSubtask(int subtaskId) {
         Subtask subtask = super.getSubtask(subtaskId);
+        if (subtask != null) {
+            changes.history();
+        }
         save();
         return subtask;
     }
@@ -73,83 +110,103 @@ public class FileBackedTaskManager extends InMemoryTaskManager {
     @Override
     public void addTask(Task task) {
         super.addTask(task);
+        changes.task(task.getId());
         save();
     }
 
     @Override
     public void addEpic(Epic epic) {
         super.addEpic(epic);
+        changes.epic(epic.getId());
         save();
     }
 
     @Override
     public void addSubtask(Subtask subtask) {
         super.addSubtask(subtask);
+        changes.subtask(subtask.getId(), subtask.getEpicId());
         save();
     }
 
     @Override
     public void updateTask(Task task) {
         super.updateTask(task);
+        changes.task(task.getId());
         save();
     }
 
     @Override
     public void updateEpic(Epic epic) {
         super.updateEpic(epic);
+        changes.epic(epic.getId());
         save();
     }
 
     @Override
     public void updateSubtask(Subtask subtask) {
+        Subtask oldSubtask = subtasks.get(subtask.getId());
         super.updateSubtask(subtask);
+        if (oldSubtask != null) {
+            changes.subtask(oldSubtask.getId(), oldSubtask.getEpicId());
+        }
+        changes.subtask(subtask.getId(), subtask.getEpicId());
         save();
     }
 
     @Override
     public void deleteTask(int taskId) {
         super.deleteTask(taskId);
+        changes.task(taskId);
+        changes.history();
         save();
     }
 
     @Override
     public void deleteEpic(int epicId) {
+        Epic epic = epics.get(epicId);
+        if (epic != null) {
+            epic.getSubtaskIds().forEach(subtaskId -> changes.subtask(subtaskId, epicId));
+        }
         super.deleteEpic(epicId);
+        changes.epic(epicId);
+        changes.history();
         save();
     }
 
     @Override
     public void deleteSubtask(int subtaskId) {
+        Subtask subtask = subtasks.get(subtaskId);
         super.deleteSubtask(subtaskId);
+        changes.subtask(subtaskId, subtask.getEpicId());
+        changes.history();
         save();
     }
 
     @Override
     public void deleteTasks() {
         super.deleteTasks();
+        changes.all();
         save();
     }
 
     @Override
     public void deleteEpics() {
         super.deleteEpics();
+        changes.all();
         save();
     }
 
     @Override
     public void deleteSubtasks() {
         super.deleteSubtasks();
+        changes.all();
         save();
     }
 
-    private static Boolean hasHistory(List<String> separatedData) {
-        return separatedData.get(separatedData.size() - 2).equals("");
-    }
-
-    private void createCorrectTasksAndPutInCollection(List<String> separatedData, FileBackedTaskManager manager)
-            throws RuntimeException{
-        for (String str : separatedData) {
-            Task task = manager.taskFromString(str);
+    private void createCorrectTasksAndPutInCollection(CsvTaskReader reader, FileBackedTaskManager manager)
+            throws IOException {
+        while (reader.next() && !reader.isBlank()) {
+            Task task = reader.readTask();
             switch (task.getType()) {
                 case TASK:
                     manager.addTask(task);
@@ -164,16 +221,6 @@ public class FileBackedTaskManager extends InMemoryTaskManager {
         }
     }
 
-    private void prepareSeparatedData(List<String> separatedData, boolean haveHistory) {
-        if (haveHistory) {
-            separatedData.remove(0);
-            separatedData.remove(separatedData.size() - 1);
-            separatedData.remove(separatedData.size() - 1);
-        } else {
-            separatedData.remove(0);
-        }
-    }
-
     private void fillHistoryFromListIds(List<Integer> historyIds, FileBackedTaskManager manager) {
         for (Integer id : historyIds) {
             if (manager.tasks.containsKey(id)) {
@@ -188,109 +235,81 @@ public class FileBackedTaskManager extends InMemoryTaskManager {
         }
     }
 
-    private Task taskFromString(String str) throws RuntimeException {
-        String[] task = str.split(",");
-        Date startDate = stringToDate(task[5].strip());
-        switch (TaskType.valueOf(task[1])) {
-            case TASK:
-                return new Task(task[2].strip(), task[4].strip(), toTaskStatus(task[3].strip()),
-                        Integer.parseInt(task[6].strip()), startDate);
-            case SUBTASK:
-                return new Subtask(task[2].strip(), task[4].strip(), toTaskStatus(task[3].strip()),
-                        Integer.parseInt(task[6].strip()), startDate, Integer.parseInt(task[8].strip()));
-            case EPIC:
-                return new Epic(task[2].strip(), toTaskStatus(task[3].strip()), task[4].strip());
-        }
-        throw new NullPointerException("Метод taskFromString не выполняет ни одно из условий" + task[1]);
-    }
-
-    private Date stringToDate(String date) throws RuntimeException {
-        if (date.equals("null")) {
-            return null;
-        }
-        Date result;
-        SimpleDateFormat formatter = new SimpleDateFormat("dd/MM/yyyy");
-        formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
-
-        try {
-            result = formatter.parse(date);
-        } catch (ParseException e) {
-            throw new RuntimeException("Не получилось преобразовать строку в дату - шаблон следующий: dd/MM/yyyy", e);
+    private static File toFile(String taskDBFile) {
+        if (taskDBFile.startsWith("file:")) {
+            return Path.of(URI.create(taskDBFile)).toFile();
         }
-        return result;
+        return new File(taskDBFile);
     }
 
-    private TaskStatus toTaskStatus(String status) {
-
-        if (status.equals(TaskStatus.NEW.toString())) {
-            return TaskStatus.NEW;
+    protected void save() {
+        if (restoring) {
+            return;
         }
-        if (status.equals(TaskStatus.IN_PROGRESS.toString())) {
-            return TaskStatus.IN_PROGRESS;
+        if (segmentStore != null) {
+            saveSegments();
+            return;
         }
-        if (status.equals(TaskStatus.DONE.toString())) {
-            return TaskStatus.DONE;
-        }
-        throw new NullPointerException("Метод toTaskStatus не выполняет ни одно из условий" + status);
-    }
-
-    private static List<Integer> historyFromString(String lastString) {
-        List<Integer> historyIds = new ArrayList<>();
-        String[] historyStringIds = lastString.split(",");
-        Arrays.stream(historyStringIds).forEach(str -> historyIds.add(Integer.parseInt(str.strip())));
-        return historyIds;
-    }
-
-    private void save() {
-        try (Writer writer = new FileWriter(taskDBFile.toString(), StandardCharsets.UTF_8)) {
-            printHeader(writer);
-            if (!tasks.isEmpty()) {
-                saveTasksInFile(writer, tasks);
-            }
-            if (!epics.isEmpty()) {
-                saveTasksInFile(writer, epics);
+        try (Writer writer = new OutputStreamWriter(
+                compression.compress(new BufferedOutputStream(new FileOutputStream(taskDBFile))),
+                StandardCharsets.UTF_8)) {
+            csvWriter.reset(writer);
+            csvWriter.writeHeader();
+            for (Task task : tasks.values()) {
+                csvWriter.writeTask(task);
             }
-            if (!subtasks.isEmpty()) {
-                saveTasksInFile(writer, subtasks);
+            for (Epic epic : epics.values()) {
+                csvWriter.writeTask(epic);
             }
-            if (!historyManager.getHistory().isEmpty()) {
-                writer.write(historyToString(historyManager));
+            for (Subtask subtask : subtasks.values()) {
+                csvWriter.writeTask(subtask);
             }
-            writer.flush();
+            csvWriter.writeHistory(historyManager.getHistory());
+            csvWriter.flush();
         } catch (IOException e) {
             throw new ManagerSaveException("Something went wrong in save() method", e);
         }
     }
 
-    private void printHeader(Writer writer) throws IOException {
-        writer.write(FILE_HEADER);
+    private void saveSegments() {
+        if (changes.isEmpty()) {
+            return;
+        }
+        try {
+            segmentStore.write(changes, tasks, epics, subtasks, historyManager.getHistory());
+            changes.clear();
+        } catch (IOException e) {
+            throw new ManagerSaveException("Something went wrong in saveSegments() method", e);
+        }
     }
 
-    private void saveTasksInFile(Writer writer, HashMap<Integer, ? extends Task> tasks) {
-        if (!tasks.isEmpty()) {
-            tasks.values().forEach(task -> {
-                try {
-                    writer.write(System.lineSeparator() + task.toString());
-                } catch (IOException e) {
-                    throw new ManagerSaveException("Something went wrong in saveTasksInFile() method", e);
+    protected void restore(Task task) {
+        switch (task.getType()) {
+            case TASK:
+                tasks.put(task.getId(), task);
+                sortedTaskSet.add(task);
+                break;
+            case EPIC:
+                epics.put(task.getId(), (Epic) task);
+                break;
+            case SUBTASK:
+                Subtask subtask = (Subtask) task;
+                subtasks.put(subtask.getId(), subtask);
+                sortedTaskSet.add(subtask);
+                Epic epic = epics.get(subtask.getEpicId());
+                if (epic != null && !epic.getSubtaskIds().contains(subtask.getId())) {
+                    epic.addSubtask(subtask.getId());
                 }
-            });
+                break;
         }
+        restoreId(task.getId());
     }
 
-    private static String historyToString(HistoryManager manager) {
-        List<Integer> resultList = new ArrayList<>();
-        StringBuilder builder = new StringBuilder();
-        builder.append(String.valueOf(System.lineSeparator()).repeat(2));
-        manager.getHistory().forEach(task -> resultList.add(task.getId()));
-        for (int i = 0; i < resultList.size(); i++) {
-            if (i == resultList.size() - 1) {
-                builder.append(resultList.get(i));
-                return builder.toString();
-            }
-            builder.append(resultList.get(i)).append(",");
+    protected void restoreHistory(int id) {
+        Task task = tasks.containsKey(id) ? tasks.get(id)
+                : epics.containsKey(id) ? epics.get(id) : subtasks.get(id);
+        if (task != null) {
+            historyManager.add(task);
         }
-
-        return builder.toString();
     }
 }
@@ -1,79 +1,760 @@
 package manager;
 
 
+import client.KVChangeListener;
+import client.KVClient;
+import client.KVSubscription;
 import client.KVTaskClient;
+import client.KVUnavailableException;
 import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import task.Epic;
 import task.Subtask;
 import task.Task;
+import task.TaskType;
 
-import java.util.List;
-import java.util.Objects;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+/**
+ * Менеджер, хранящий задачи на KVServer. Каждая задача, эпик и подзадача лежат под своим ключом
+ * (task:{id}, epic:{id}, subtask:{id}), состав доски - под ключом index, история - под ключом history.
+ * При сохранении отправляются только изменённые с прошлой синхронизации записи,
+ * полный снимок - после массовых удалений и неудачной синхронизации.
+ * Удалённые задачи затираются значением null со сроком жизни в сутки, чтобы они не копились на сервере
+ * и не перечитывались каждым scan.
+ * load запрашивает index, history и первые страницы задач всех трёх типов одновременно,
+ * поэтому загрузка длится примерно столько, сколько самый долгий из этих запросов.
+ * <p>
+ * Менеджер, загруженный через loadAndSubscribe, получает записи других менеджеров того же KVServer
+ * и применяет их к задачам в памяти в фоне, под своей блокировкой (synchronized на менеджере).
+ * Публичные методы менеджера берут ту же блокировку, а списки возвращают копиями. Сами задачи
+ * остаются общими с менеджером: читать их поля и делать несколько вызовов подряд без вмешательства
+ * подписки можно через SynchronizedTaskManager.atomically.
+ */
 public class HttpTaskManager extends FileBackedTaskManager {
 
+    private static final String INDEX_KEY = "index";
+    private static final String HISTORY_KEY = "history";
+    private static final String TASK_PREFIX = "task:";
+    private static final String EPIC_PREFIX = "epic:";
+    private static final String SUBTASK_PREFIX = "subtask:";
+    private static final String DELETED = "null";
+    private static final int BATCH_SIZE = 100;
+    private static final int SCAN_PAGE_SIZE = 500;
+    private static final long TOMBSTONE_TTL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
     private final Gson gson;
-    private final KVTaskClient kvTaskClient;
+    private final KVClient kvTaskClient;
+    private final Compression compression;
+    private Index syncedIndex = new Index();
+    private KVSubscription subscription;
+    // false, если сервер не принял запись со сроком жизни: тогда значения null пишутся без него
+    private boolean tombstoneTtl = true;
+    // задачи из index, ещё не перенесённые в менеджер при ленивой загрузке; null - перенесены все
+    private Index unloaded;
+    // задачи, загруженные в фоне и ждущие переноса в менеджер
+    private final Queue<Task> hydrated = new ConcurrentLinkedQueue<>();
+    private CompletableFuture<Void> hydration;
 
     public HttpTaskManager(String url) {
+        this(url, Compression.NONE);
+    }
+
+    public HttpTaskManager(String url, Compression compression) {
+        this(new KVTaskClient(url), compression);
+    }
+
+    public HttpTaskManager(KVClient kvTaskClient, Compression compression) {
         super();
-        kvTaskClient = new KVTaskClient(url);
+        this.kvTaskClient = kvTaskClient;
         gson = new Gson();
+        this.compression = compression;
     }
 
-    public void save() {
-        kvTaskClient.put("tasks", gson.toJson(this.getTasks()));
-        kvTaskClient.put("epics", gson.toJson(this.getEpics()));
-        kvTaskClient.put("subtasks", gson.toJson(this.getSubtasks()));
+    @Override
+    public synchronized void save() {
+        if (changes.isEmpty()) {
+            return;
+        }
+        // полный снимок затирает значением null всё, чего нет в менеджере, поэтому сначала нужны все задачи
+        if (changes.isAll()) {
+            awaitFullLoad();
+        }
+        Map<String, String> batch = new LinkedHashMap<>();
+        if (changes.isAll()) {
+            collectSnapshot(batch);
+        } else {
+            collectChanges(batch);
+        }
+        if (putValues(batch)) {
+            changes.clear();
+        } else {
+            changes.all();
+        }
+    }
 
-        List<Integer> history = this.historyManager.getHistory().stream().map(Task::getId)
-                .collect(Collectors.toList());
-        kvTaskClient.put("history", gson.toJson(history));
+    /**
+     * Отправляет записи, отложенные клиентом в режиме write-behind. Возвращает false, если сервер их не принял.
+     */
+    public boolean flush() {
+        return kvTaskClient.flush();
     }
 
     public HttpTaskManager load(String url) {
-        HttpTaskManager httpTaskManager = new HttpTaskManager(url);
-        addTasksInManager(httpTaskManager, "tasks");
-        addTasksInManager(httpTaskManager, "epics");
-        addTasksInManager(httpTaskManager, "subtasks");
-        addTasksInManager(httpTaskManager, "history");
+        return load(clientFor(url));
+    }
 
+    public HttpTaskManager load(KVClient kvTaskClient) {
+        return load(kvTaskClient, false);
+    }
+
+    public HttpTaskManager loadAndSubscribe(String url) {
+        return loadAndSubscribe(clientFor(url));
+    }
+
+    /**
+     * Загружает задачи как load и подписывает новый менеджер на записи в KVServer. Подписка оформляется
+     * до чтения, поэтому записи, сделанные во время загрузки, не теряются. Если часть записей пропущена,
+     * задачи перечитываются целиком. Несохранённые локальные изменения записями других менеджеров
+     * не перезаписываются, а история просмотров у каждого менеджера своя. Записи применяются в фоновом
+     * потоке под блокировкой менеджера, см. описание класса.
+     */
+    public HttpTaskManager loadAndSubscribe(KVClient kvTaskClient) {
+        return load(kvTaskClient, true);
+    }
+
+    public HttpTaskManager loadLazily(String url) {
+        return loadLazily(clientFor(url));
+    }
+
+    /**
+     * Загружает с сервера только index и задачи из истории, остальные задачи догружаются в фоне.
+     * Обращение к задаче по идентификатору до окончания фоновой загрузки загружает её сразу, эпик -
+     * вместе с подзадачами. Списки задач, добавление и обновление задач с проверкой пересечений по времени
+     * ждут окончания фоновой загрузки. Загруженное в фоне переносится в менеджер в потоке, вызвавшем его метод.
+     */
+    public HttpTaskManager loadLazily(KVClient kvTaskClient) {
+        HttpTaskManager httpTaskManager = new HttpTaskManager(kvTaskClient, compression);
+        Map<String, String> values = httpTaskManager.loadValues(List.of(INDEX_KEY, HISTORY_KEY));
+        Index index = gson.fromJson(values.get(INDEX_KEY), Index.class);
+        if (Objects.isNull(index)) {
+            return load(kvTaskClient);
+        }
+        httpTaskManager.startHydration(index);
+        List<Integer> history = gson.fromJson(values.get(HISTORY_KEY), new TypeToken<List<Integer>>() {}.getType());
+        if (!Objects.isNull(history)) {
+            httpTaskManager.loadIds(history);
+            history.forEach(httpTaskManager::restoreHistory);
+        }
+        httpTaskManager.changes.clear();
         return httpTaskManager;
     }
 
-    private void addTasksInManager(HttpTaskManager httpTaskManager, String key) {
+    public synchronized void unsubscribe() {
+        if (subscription != null) {
+            subscription.close();
+            subscription = null;
+        }
+    }
 
-        switch (key) {
-            case "tasks":
-                List<Task> tasks = gson.fromJson(kvTaskClient.load(key), new TypeToken<List<Task>>() {}.getType());
-                if (!Objects.isNull(tasks)) {
-                    tasks.forEach(httpTaskManager::addTask);
-                }
-                    break;
-            case "epics":
-                List<Epic> epics = gson.fromJson(kvTaskClient.load(key), new TypeToken<List<Epic>>() {}.getType());
-                if (!Objects.isNull(epics)) {
-                    epics.forEach(httpTaskManager::addEpic);
-                }
+    // API_TOKEN менеджера, созданного по адресу KVServer, открывает его пространство имён и на url
+    private KVClient clientFor(String url) {
+        if (kvTaskClient instanceof KVTaskClient) {
+            return new KVTaskClient(url, null, ((KVTaskClient) kvTaskClient).getApiToken());
+        }
+        return new KVTaskClient(url);
+    }
+
+    // записи, пришедшие по подписке во время загрузки, ждут её окончания на блокировке менеджера
+    private HttpTaskManager load(KVClient kvTaskClient, boolean subscribe) {
+        HttpTaskManager httpTaskManager = new HttpTaskManager(kvTaskClient, compression);
+        synchronized (httpTaskManager) {
+            if (subscribe) {
+                httpTaskManager.subscription = kvTaskClient.subscribe(httpTaskManager.new RemoteChanges());
+            }
+            // первые страницы всех трёх префиксов запрашиваются вместе с index и history, не дожидаясь их:
+            // в старом формате без index перебор просто вернёт пустые страницы
+            Iterator<Map.Entry<String, String>> taskEntries = kvTaskClient.scan(TASK_PREFIX, SCAN_PAGE_SIZE);
+            Iterator<Map.Entry<String, String>> epicEntries = kvTaskClient.scan(EPIC_PREFIX, SCAN_PAGE_SIZE);
+            Iterator<Map.Entry<String, String>> subtaskEntries = kvTaskClient.scan(SUBTASK_PREFIX, SCAN_PAGE_SIZE);
+            Map<String, String> values = httpTaskManager.loadValues(List.of(INDEX_KEY, HISTORY_KEY,
+                    "tasks", "epics", "subtasks"));
+            Index index = gson.fromJson(values.get(INDEX_KEY), Index.class);
+            if (Objects.isNull(index)) {
+                addTasksInManager(httpTaskManager, values.get("tasks"), Task.class);
+                addTasksInManager(httpTaskManager, values.get("epics"), Epic.class);
+                addTasksInManager(httpTaskManager, values.get("subtasks"), Subtask.class);
+                addHistoryInManager(httpTaskManager, values.get(HISTORY_KEY));
+                return httpTaskManager;
+            }
+            // эпики восстанавливаются раньше подзадач
+            Index pending = index.copy();
+            restoreScanned(taskEntries, TASK_PREFIX, pending.tasks, Task.class, httpTaskManager::restore);
+            restoreScanned(epicEntries, EPIC_PREFIX, pending.epics, Epic.class, httpTaskManager::restore);
+            restoreScanned(subtaskEntries, SUBTASK_PREFIX, pending.subtasks, Subtask.class, httpTaskManager::restore);
+            // ключи, записанные после того, как перебор их прошёл, догружаются отдельно; если их нет, загрузка падает
+            httpTaskManager.unloaded = pending;
+            httpTaskManager.loadIds(pending.all());
+            httpTaskManager.unloaded = null;
+            addHistoryInManager(httpTaskManager, values.get(HISTORY_KEY));
+            // значением null затираются только задачи, которые менеджер действительно загрузил
+            httpTaskManager.syncedIndex = httpTaskManager.currentIndex();
+            httpTaskManager.changes.clear();
+            return httpTaskManager;
+        }
+    }
+
+    // новые задачи должны получать идентификаторы больше всех, что уже есть на сервере;
+    // syncedIndex - index сервера, снимок с ним ждёт awaitFullLoad, а та падает, если задачу не загрузить
+    private void startHydration(Index index) {
+        syncedIndex = index;
+        unloaded = index.copy();
+        Stream.of(index.tasks, index.epics, index.subtasks).flatMap(Set::stream).forEach(this::restoreId);
+        hydration = new CompletableFuture<>();
+        Index ids = index.copy();
+        Thread thread = new Thread(() -> fetchAll(ids), "task-hydration");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // эпики загружаются раньше подзадач, чтобы подзадачи сразу попадали в свои эпики
+    private void fetchAll(Index ids) {
+        try {
+            Iterator<Map.Entry<String, String>> epicEntries = kvTaskClient.scan(EPIC_PREFIX, SCAN_PAGE_SIZE);
+            Iterator<Map.Entry<String, String>> taskEntries = kvTaskClient.scan(TASK_PREFIX, SCAN_PAGE_SIZE);
+            Iterator<Map.Entry<String, String>> subtaskEntries = kvTaskClient.scan(SUBTASK_PREFIX, SCAN_PAGE_SIZE);
+            restoreScanned(epicEntries, EPIC_PREFIX, ids.epics, Epic.class, hydrated::add);
+            restoreScanned(taskEntries, TASK_PREFIX, ids.tasks, Task.class, hydrated::add);
+            restoreScanned(subtaskEntries, SUBTASK_PREFIX, ids.subtasks, Subtask.class, hydrated::add);
+            hydration.complete(null);
+        } catch (RuntimeException e) {
+            hydration.completeExceptionally(e);
+        }
+    }
+
+    // задачи, которые уже загружены по обращению или пришли по подписке, из фоновой загрузки не берутся
+    private void drainHydrated() {
+        Task task;
+        while (unloaded != null && (task = hydrated.poll()) != null) {
+            if (unloaded.ids(task.getType()).remove(task.getId())) {
+                restore(task);
+            }
+        }
+    }
+
+    private void ensureLoaded(int id) {
+        if (unloaded == null) {
+            return;
+        }
+        drainHydrated();
+        loadIds(List.of(id));
+        Epic epic = epics.get(id);
+        if (epic != null) {
+            loadIds(epic.getSubtaskIds());
+        }
+    }
+
+    // то, что фоновая загрузка не нашла или не успела загрузить, догружается по ключам
+    private void awaitFullLoad() {
+        if (unloaded == null) {
+            return;
+        }
+        try {
+            hydration.join();
+        } catch (CompletionException e) {
+            System.out.println("Фоновая загрузка задач не удалась, догружаем по ключам: " + e.getMessage());
+        }
+        drainHydrated();
+        loadIds(unloaded.all());
+        unloaded = null;
+    }
+
+    /**
+     * Загружает задачи из unloaded по ключам. Если ключа из index на сервере нет, бросает ManagerSaveException
+     * и ничего не меняет: иначе полный снимок затёр бы значением null задачу, которую менеджер не видел.
+     */
+    private void loadIds(Collection<Integer> ids) {
+        if (unloaded == null) {
+            return;
+        }
+        List<String> keys = new ArrayList<>();
+        for (Integer id : ids) {
+            if (unloaded.epics.contains(id)) {
+                keys.add(EPIC_PREFIX + id);
+            } else if (unloaded.tasks.contains(id)) {
+                keys.add(TASK_PREFIX + id);
+            } else if (unloaded.subtasks.contains(id)) {
+                keys.add(SUBTASK_PREFIX + id);
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        Map<String, String> values = loadValues(keys);
+        List<String> missing = keys.stream().filter(key -> !values.containsKey(key)).collect(Collectors.toList());
+        if (!missing.isEmpty()) {
+            throw new ManagerSaveException("На KVServer нет задач из index: " + missing);
+        }
+        for (String key : keys) {
+            if (key.startsWith(EPIC_PREFIX)) {
+                loadId(key, EPIC_PREFIX, values.get(key), Epic.class, TaskType.EPIC);
+            } else if (key.startsWith(TASK_PREFIX)) {
+                loadId(key, TASK_PREFIX, values.get(key), Task.class, TaskType.TASK);
+            } else {
+                loadId(key, SUBTASK_PREFIX, values.get(key), Subtask.class, TaskType.SUBTASK);
+            }
+        }
+    }
+
+    // значение null - задачу удалили, а index ещё ссылается на неё
+    private <T extends Task> void loadId(String key, String prefix, String json, Class<T> type, TaskType taskType) {
+        int id = Integer.parseInt(key.substring(prefix.length()));
+        unloaded.ids(taskType).remove(id);
+        if (DELETED.equals(json)) {
+            syncedIndex.ids(taskType).remove(id);
+        }
+        restoreFromJson(json, type, this::restore);
+    }
+
+    // записи после последней синхронизации своих изменений не перезаписываются, их отправит ближайший save
+    private void applyRemote(Map<String, String> values) {
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            String key = entry.getKey();
+            if (key.startsWith(TASK_PREFIX)) {
+                applyRemote(key, TASK_PREFIX, entry.getValue(), Task.class, TaskType.TASK, tasks, changes.getTasks());
+            } else if (key.startsWith(EPIC_PREFIX)) {
+                applyRemote(key, EPIC_PREFIX, entry.getValue(), Epic.class, TaskType.EPIC, epics, changes.getEpics());
+            } else if (key.startsWith(SUBTASK_PREFIX)) {
+                applyRemote(key, SUBTASK_PREFIX, entry.getValue(), Subtask.class, TaskType.SUBTASK, subtasks,
+                        changes.getSubtasks());
+            }
+        }
+    }
+
+    // свои же записи возвращаются по подписке с тем же значением и пропускаются;
+    // пришедшее по подписке новее того, что ещё не перенесено из фоновой загрузки
+    private <T extends Task> void applyRemote(String key, String prefix, String value, Class<T> type,
+                                              TaskType taskType, Map<Integer, T> current, Set<Integer> unsynced) {
+        int id;
+        try {
+            id = Integer.parseInt(key.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (unsynced.contains(id)) {
+            return;
+        }
+        if (unloaded != null) {
+            unloaded.ids(taskType).remove(id);
+        }
+        // null - сервер сам удалил ключ, для менеджера это то же, что удаление задачи
+        String json = value == null ? DELETED : Compression.decompressText(value);
+        T task = gson.fromJson(json, type);
+        T local = current.get(id);
+        if (local != null && task != null && json.equals(gson.toJson(local))) {
+            return;
+        }
+        if (local != null) {
+            forget(local);
+        }
+        if (task == null) {
+            historyManager.remove(id);
+        } else {
+            restore(task);
+        }
+        syncedIndex.update(syncedIndex.ids(taskType), id, task != null);
+    }
+
+    private void forget(Task task) {
+        sortedTaskSet.removeIf(sorted -> sorted.getId() == task.getId());
+        switch (task.getType()) {
+            case TASK:
+                tasks.remove(task.getId());
                 break;
-            case "subtasks":
-                List<Subtask> subtasks = gson.fromJson(kvTaskClient.load(key), new TypeToken<List<Subtask>>() {}.getType());
-                if (!Objects.isNull(subtasks)) {
-                    subtasks.forEach(httpTaskManager::addTask);
-                }
+            case EPIC:
+                epics.remove(task.getId());
                 break;
-            case "history":
-                List<Integer> history = gson.fromJson(kvTaskClient.load("history"), new TypeToken<List<Integer>>() {}.getType());
-                if (!Objects.isNull(history)) {
-                    history.forEach(httpTaskManager::getTaskForId);
+            case SUBTASK:
+                subtasks.remove(task.getId());
+                Epic epic = epics.get(((Subtask) task).getEpicId());
+                if (epic != null) {
+                    epic.deleteSubtask(task.getId());
                 }
                 break;
+        }
+    }
+
+    // задачи, изменённые после последней синхронизации, остаются своими
+    private void reloadRemote() {
+        HttpTaskManager loaded = load(kvTaskClient);
+        tasks.keySet().removeIf(id -> !changes.getTasks().contains(id));
+        epics.keySet().removeIf(id -> !changes.getEpics().contains(id));
+        subtasks.keySet().removeIf(id -> !changes.getSubtasks().contains(id));
+        sortedTaskSet.clear();
+        sortedTaskSet.addAll(tasks.values());
+        sortedTaskSet.addAll(subtasks.values());
+        for (Task task : loaded.tasks.values()) {
+            if (!changes.getTasks().contains(task.getId())) {
+                restore(task);
+            }
+        }
+        for (Epic epic : loaded.epics.values()) {
+            if (!changes.getEpics().contains(epic.getId())) {
+                restore(epic);
+            }
+        }
+        for (Subtask subtask : loaded.subtasks.values()) {
+            if (!changes.getSubtasks().contains(subtask.getId())) {
+                restore(subtask);
+            }
+        }
+        for (Task task : historyManager.getHistory()) {
+            if (!tasks.containsKey(task.getId()) && !epics.containsKey(task.getId())
+                    && !subtasks.containsKey(task.getId())) {
+                historyManager.remove(task.getId());
+            }
+        }
+        syncedIndex = loaded.syncedIndex;
+        unloaded = null;
+    }
+
+    private void collectChanges(Map<String, String> batch) {
+        boolean indexChanged = false;
+        for (Integer id : changes.getTasks()) {
+            putEntity(batch, TASK_PREFIX + id, tasks.get(id));
+            indexChanged |= syncedIndex.update(syncedIndex.tasks, id, tasks.containsKey(id));
+        }
+        for (Integer id : changes.getEpics()) {
+            putEntity(batch, EPIC_PREFIX + id, epics.get(id));
+            indexChanged |= syncedIndex.update(syncedIndex.epics, id, epics.containsKey(id));
+        }
+        for (Integer id : changes.getSubtasks()) {
+            putEntity(batch, SUBTASK_PREFIX + id, subtasks.get(id));
+            indexChanged |= syncedIndex.update(syncedIndex.subtasks, id, subtasks.containsKey(id));
+        }
+        if (indexChanged) {
+            batch.put(INDEX_KEY, gson.toJson(syncedIndex));
+        }
+        if (changes.hasHistory()) {
+            putHistory(batch);
+        }
+    }
+
+    private void collectSnapshot(Map<String, String> batch) {
+        Index index = currentIndex();
+
+        putEntities(batch, TASK_PREFIX, syncedIndex.tasks, tasks);
+        putEntities(batch, EPIC_PREFIX, syncedIndex.epics, epics);
+        putEntities(batch, SUBTASK_PREFIX, syncedIndex.subtasks, subtasks);
+        batch.put(INDEX_KEY, gson.toJson(index));
+        putHistory(batch);
+        syncedIndex = index;
+    }
+
+    // удалённые с прошлой синхронизации записи затираются значением null
+    private void putEntities(Map<String, String> batch, String prefix, Set<Integer> syncedIds,
+                             Map<Integer, ? extends Task> current) {
+        for (Task task : current.values()) {
+            putEntity(batch, prefix + task.getId(), task);
+        }
+        for (Integer id : syncedIds) {
+            if (!current.containsKey(id)) {
+                putEntity(batch, prefix + id, null);
+            }
+        }
+    }
+
+    private Index currentIndex() {
+        Index index = new Index();
+        index.tasks.addAll(tasks.keySet());
+        index.epics.addAll(epics.keySet());
+        index.subtasks.addAll(subtasks.keySet());
+        return index;
+    }
+
+    private void putEntity(Map<String, String> batch, String key, Task task) {
+        batch.put(key, task == null ? DELETED : gson.toJson(task));
+    }
+
+    private void putHistory(Map<String, String> batch) {
+        List<Integer> history = this.historyManager.getHistory().stream().map(Task::getId)
+                .collect(Collectors.toList());
+        batch.put(HISTORY_KEY, gson.toJson(history));
+    }
+
+    // удалённые записи лежат со значением null, а записей не из index нет на доске;
+    // найденные идентификаторы убираются из ids, оставшиеся перебор не нашёл
+    private <T extends Task> void restoreScanned(Iterator<Map.Entry<String, String>> entries, String prefix,
+                                                 Set<Integer> ids, Class<T> type, Consumer<? super T> restore) {
+        while (hasNext(entries)) {
+            Map.Entry<String, String> entry = entries.next();
+            try {
+                if (ids.remove(Integer.parseInt(entry.getKey().substring(prefix.length())))) {
+                    restoreFromJson(Compression.decompressText(entry.getValue()), type, restore);
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("Ключ " + entry.getKey() + " не похож на ключ задачи, пропускаем");
             }
+        }
+    }
+
+    // пустой ответ значит, что задач нет, а недоступный сервер - что загрузить их не удалось
+    private static boolean hasNext(Iterator<Map.Entry<String, String>> entries) {
+        try {
+            return entries.hasNext();
+        } catch (KVUnavailableException e) {
+            throw new ManagerSaveException("Не удалось загрузить задачи с KVServer", e);
+        }
+    }
+
+    private <T extends Task> void restoreFromJson(String json, Class<T> type, Consumer<? super T> restore) {
+        T task = gson.fromJson(json, type);
+        if (!Objects.isNull(task)) {
+            restore.accept(task);
+        }
+    }
+
+    // список старого формата разбирается по одной задаче, без промежуточного списка
+    private <T extends Task> void addTasksInManager(HttpTaskManager httpTaskManager, String json, Class<T> type) {
+        if (Objects.isNull(json) || json.isBlank()) {
+            return;
+        }
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            if (reader.peek() == JsonToken.NULL) {
+                return;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                T task = gson.fromJson(reader, type);
+                if (!Objects.isNull(task)) {
+                    httpTaskManager.restore(task);
+                }
+            }
+            reader.endArray();
+        } catch (IOException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    private void addHistoryInManager(HttpTaskManager httpTaskManager, String json) {
+        List<Integer> history = gson.fromJson(json, new TypeToken<List<Integer>>() {}.getType());
+        if (!Objects.isNull(history)) {
+            history.forEach(httpTaskManager::restoreHistory);
+        }
+    }
+
+    /**
+     * Большой пакет делится на части по BATCH_SIZE ключей, которые отправляются одновременно.
+     * index и history пишутся последними, чтобы не ссылаться на ещё не записанные задачи.
+     */
+    private boolean putValues(Map<String, String> batch) {
+        if (tombstoneTtl) {
+            putTombstones(batch);
+        }
+        batch.replaceAll((key, json) -> compression.compressText(json));
+        if (batch.size() <= BATCH_SIZE) {
+            return kvTaskClient.putAll(batch);
+        }
+        Map<String, String> meta = new LinkedHashMap<>();
+        for (String key : List.of(INDEX_KEY, HISTORY_KEY)) {
+            if (batch.containsKey(key)) {
+                meta.put(key, batch.remove(key));
+            }
+        }
+        List<CompletableFuture<Boolean>> writes = new ArrayList<>();
+        Map<String, String> chunk = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : batch.entrySet()) {
+            chunk.put(entry.getKey(), entry.getValue());
+            if (chunk.size() == BATCH_SIZE) {
+                writes.add(kvTaskClient.putAllAsync(chunk));
+                chunk = new LinkedHashMap<>();
+            }
+        }
+        writes.add(kvTaskClient.putAllAsync(chunk));
+        boolean synced = true;
+        for (CompletableFuture<Boolean> write : writes) {
+            synced &= write.join();
+        }
+        return synced && kvTaskClient.putAll(meta);
+    }
+
+    // значения null уходят из пакета отдельными записями со сроком жизни, не принятые остаются в пакете
+    private void putTombstones(Map<String, String> batch) {
+        Map<String, CompletableFuture<Boolean>> writes = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : batch.entrySet()) {
+            if (entry.getValue().equals(DELETED)) {
+                writes.put(entry.getKey(), kvTaskClient.putAsync(entry.getKey(),
+                        compression.compressText(DELETED), TOMBSTONE_TTL_MILLIS));
+            }
+        }
+        writes.forEach((key, write) -> {
+            if (write.join()) {
+                batch.remove(key);
+            } else {
+                tombstoneTtl = false;
+            }
+        });
+    }
+
+    private Map<String, String> loadValues(List<String> keys) {
+        List<CompletableFuture<Map<String, String>>> reads = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i += BATCH_SIZE) {
+            reads.add(kvTaskClient.loadAllAsync(keys.subList(i, Math.min(i + BATCH_SIZE, keys.size()))));
+        }
+        Map<String, String> values = new HashMap<>();
+        try {
+            for (CompletableFuture<Map<String, String>> read : reads) {
+                values.putAll(read.join());
+            }
+        } catch (CompletionException e) {
+            throw new ManagerSaveException("Не удалось загрузить задачи с KVServer", e);
+        }
+        values.replaceAll((key, value) -> Compression.decompressText(value));
+        return values;
+    }
+
+    @Override
+    public synchronized Collection<Task> getTasks() {
+        awaitFullLoad();
+        return List.copyOf(super.getTasks());
+    }
+
+    @Override
+    public synchronized Collection<Epic> getEpics() {
+        awaitFullLoad();
+        return List.copyOf(super.getEpics());
+    }
+
+    @Override
+    public synchronized Collection<Subtask> getSubtasks() {
+        awaitFullLoad();
+        return List.copyOf(super.getSubtasks());
+    }
+
+    @Override
+    public synchronized Collection<Subtask> getEpicSubtasks(int epicId) {
+        ensureLoaded(epicId);
+        return super.getEpicSubtasks(epicId);
+    }
+
+    @Override
+    public synchronized Task getTask(int taskId) {
+        ensureLoaded(taskId);
+        return super.getTask(taskId);
+    }
+
+    @Override
+    public synchronized Epic getEpic(int epicId) {
+        ensureLoaded(epicId);
+        return super.getEpic(epicId);
+    }
+
+    @Override
+    public synchronized Subtask getSubtask(int subtaskId) {
+        ensureLoaded(subtaskId);
+        return super.getSubtask(subtaskId);
+    }
+
+    @Override
+    public synchronized void addTask(Task task) {
+        awaitFullLoad();
+        super.addTask(task);
     }
 
-    public Task getTaskForId(int id) {
+    @Override
+    public synchronized void addEpic(Epic epic) {
+        super.addEpic(epic);
+    }
+
+    @Override
+    public synchronized void addSubtask(Subtask subtask) {
+        awaitFullLoad();
+        super.addSubtask(subtask);
+    }
+
+    @Override
+    public synchronized void updateTask(Task task) {
+        awaitFullLoad();
+        super.updateTask(task);
+    }
+
+    @Override
+    public synchronized void updateEpic(Epic epic) {
+        ensureLoaded(epic.getId());
+        super.updateEpic(epic);
+    }
+
+    @Override
+    public synchronized void updateSubtask(Subtask subtask) {
+        awaitFullLoad();
+        super.updateSubtask(subtask);
+    }
+
+    @Override
+    public synchronized void deleteTask(int taskId) {
+        ensureLoaded(taskId);
+        super.deleteTask(taskId);
+    }
+
+    @Override
+    public synchronized void deleteEpic(int epicId) {
+        ensureLoaded(epicId);
+        super.deleteEpic(epicId);
+    }
+
+    @Override
+    public synchronized void deleteSubtask(int subtaskId) {
+        ensureLoaded(subtaskId);
+        Subtask subtask = subtasks.get(subtaskId);
+        if (subtask != null) {
+            ensureLoaded(subtask.getEpicId());
+        }
+        super.deleteSubtask(subtaskId);
+    }
+
+    @Override
+    public synchronized void deleteTasks() {
+        awaitFullLoad();
+        super.deleteTasks();
+    }
+
+    @Override
+    public synchronized void deleteEpics() {
+        awaitFullLoad();
+        super.deleteEpics();
+    }
+
+    @Override
+    public synchronized void deleteSubtasks() {
+        awaitFullLoad();
+        super.deleteSubtasks();
+    }
+
+    @Override
+    public synchronized Collection<Task> getHistory() {
+        return List.copyOf(super.getHistory());
+    }
+
+    @Override
+    public synchronized List<Task> getPrioritizedTasks() {
+        awaitFullLoad();
+        return super.getPrioritizedTasks();
+    }
+
+    public synchronized Task getTaskForId(int id) {
+        ensureLoaded(id);
         if (tasks.containsKey(id)) {
             historyManager.add(tasks.get(id));
             return tasks.get(id);
@@ -88,4 +769,56 @@ public class HttpTaskManager extends FileBackedTaskManager {
         }
         return null;
     }
-}
\ No newline at end of file
+
+    private class RemoteChanges implements KVChangeListener {
+
+        @Override
+        public void onChange(long version, Map<String, String> values) {
+            synchronized (HttpTaskManager.this) {
+                applyRemote(values);
+            }
+        }
+
+        @Override
+        public void onReset() {
+            synchronized (HttpTaskManager.this) {
+                reloadRemote();
+            }
+        }
+    }
+
+    private static class Index {
+        private final Set<Integer> tasks = new TreeSet<>();
+        private final Set<Integer> epics = new TreeSet<>();
+        private final Set<Integer> subtasks = new TreeSet<>();
+
+        // эпики раньше подзадач, чтобы подзадачи сразу попадали в свои эпики
+        List<Integer> all() {
+            return Stream.of(epics, tasks, subtasks).flatMap(Set::stream).collect(Collectors.toList());
+        }
+
+        Index copy() {
+            Index copy = new Index();
+            copy.tasks.addAll(tasks);
+            copy.epics.addAll(epics);
+            copy.subtasks.addAll(subtasks);
+            return copy;
+        }
+
+        Set<Integer> ids(TaskType type) {
+            switch (type) {
+                case EPIC:
+                    return epics;
+                case SUBTASK:
+                    return subtasks;
+                default:
+                    return tasks;
+            }
+        }
+
+        // true, если состав доски изменился
+        boolean update(Set<Integer> ids, Integer id, boolean present) {
+            return present ? ids.add(id) : ids.remove(id);
+        }
+    }
+}
@@ -18,6 +18,10 @@ public class InMemoryTaskManager implements TaskManager {
         return ++newTaskId;
     }
 
+    protected void restoreId(int id) {
+        newTaskId = Math.max(newTaskId, id);
+    }
+
     @Override
     public Collection<Task> getTasks() {
         return Collections.unmodifiableCollection(tasks.values());
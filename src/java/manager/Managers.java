@@ -1,10 +1,53 @@
 package manager;
 
+import client.KVClient;
+import client.KVTaskClient;
+import client.KVUnavailableException;
+import server.EmbeddedKVClient;
+import server.KVServer;
+
 public class Managers {
 
+    public static final String DEFAULT_NAMESPACE = "tasks";
+
+    /**
+     * Менеджер в пространстве имён DEFAULT_NAMESPACE. Первый вызов создаёт пространство, а после перезапуска
+     * процесса API_TOKEN в него выдаётся только по getDefault(url, DEFAULT_NAMESPACE, apiToken).
+     */
     public static TaskManager getDefault(String url) {
-        HttpTaskManager manager = new HttpTaskManager(url);
-        return manager.load(url);
+        return getDefault(url, DEFAULT_NAMESPACE);
+    }
+
+    /**
+     * Менеджер, задачи которого хранятся в пространстве имён namespace и не пересекаются
+     * с задачами других пространств на том же KVServer.
+     */
+    public static TaskManager getDefault(String url, String namespace) {
+        return getDefault(url, namespace, null);
+    }
+
+    /**
+     * Менеджер уже существующего пространства имён namespace: apiToken - API_TOKEN этого пространства или KVServer.
+     */
+    public static TaskManager getDefault(String url, String namespace, String apiToken) {
+        KVClient client;
+        try {
+            client = new KVTaskClient(url, namespace, apiToken);
+        } catch (KVUnavailableException e) {
+            throw new ManagerSaveException("Не удалось подключиться к KVServer: " + e.getMessage(), e);
+        }
+        // загрузка и сохранение идут через один клиент, то есть в одно пространство имён
+        HttpTaskManager manager = new HttpTaskManager(client, Compression.NONE);
+        return manager.loadLazily(client);
+    }
+
+    /**
+     * Менеджер для KVServer в том же процессе: задачи сохраняются в хранилище сервера напрямую, без HTTP.
+     */
+    public static TaskManager getDefault(KVServer server) {
+        KVClient client = new EmbeddedKVClient(server);
+        HttpTaskManager manager = new HttpTaskManager(client, Compression.NONE);
+        return manager.loadLazily(client);
     }
 
     public static HistoryManager getDefaultHistory() {
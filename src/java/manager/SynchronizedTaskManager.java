@@ -0,0 +1,182 @@
+package manager;
+
+import task.Epic;
+import task.Subtask;
+import task.Task;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Обёртка, через которую менеджер можно вызывать из нескольких потоков. Каждый вызов выполняется
+ * под блокировкой самого менеджера (synchronized на delegate) - той же, под которой HttpTaskManager
+ * применяет записи, пришедшие по подписке. Списки возвращаются копиями, снятыми под блокировкой,
+ * поэтому их можно перебирать после выхода из неё.
+ */
+public class SynchronizedTaskManager implements TaskManager {
+
+    private final TaskManager delegate;
+
+    public SynchronizedTaskManager(TaskManager delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Выполняет несколько вызовов менеджера подряд так, что другие потоки не вклиниваются между ними,
+     * например проверку, есть ли задача, и её добавление.
+     */
+    public <T> T atomically(Function<TaskManager, T> action) {
+        synchronized (delegate) {
+            return action.apply(delegate);
+        }
+    }
+
+    @Override
+    public Collection<Task> getTasks() {
+        synchronized (delegate) {
+            return new ArrayList<>(delegate.getTasks());
+        }
+    }
+
+    @Override
+    public Collection<Epic> getEpics() {
+        synchronized (delegate) {
+            return new ArrayList<>(delegate.getEpics());
+        }
+    }
+
+    @Override
+    public Collection<Subtask> getSubtasks() {
+        synchronized (delegate) {
+            return new ArrayList<>(delegate.getSubtasks());
+        }
+    }
+
+    @Override
+    public Collection<Subtask> getEpicSubtasks(int epicId) {
+        synchronized (delegate) {
+            return new ArrayList<>(delegate.getEpicSubtasks(epicId));
+        }
+    }
+
+    @Override
+    public Task getTask(int taskId) {
+        synchronized (delegate) {
+            return delegate.getTask(taskId);
+        }
+    }
+
+    @Override
+    public Epic getEpic(int epicId) {
+        synchronized (delegate) {
+            return delegate.getEpic(epicId);
+        }
+    }
+
+    @Override
+    public Subtask getSubtask(int subtaskId) {
+        synchronized (delegate) {
+            return delegate.getSubtask(subtaskId);
+        }
+    }
+
+    @Override
+    public void addTask(Task task) {
+        synchronized (delegate) {
+            delegate.addTask(task);
+        }
+    }
+
+    @Override
+    public void addEpic(Epic epic) {
+        synchronized (delegate) {
+            delegate.addEpic(epic);
+        }
+    }
+
+    @Override
+    public void addSubtask(Subtask subtask) {
+        synchronized (delegate) {
+            delegate.addSubtask(subtask);
+        }
+    }
+
+    @Override
+    public void updateTask(Task task) {
+        synchronized (delegate) {
+            delegate.updateTask(task);
+        }
+    }
+
+    @Override
+    public void updateEpic(Epic epic) {
+        synchronized (delegate) {
+            delegate.updateEpic(epic);
+        }
+    }
+
+    @Override
+    public void updateSubtask(Subtask subtask) {
+        synchronized (delegate) {
+            delegate.updateSubtask(subtask);
+        }
+    }
+
+    @Override
+    public void deleteTask(int taskId) {
+        synchronized (delegate) {
+            delegate.deleteTask(taskId);
+        }
+    }
+
+    @Override
+    public void deleteEpic(int epicId) {
+        synchronized (delegate) {
+            delegate.deleteEpic(epicId);
+        }
+    }
+
+    @Override
+    public void deleteSubtask(int subtaskId) {
+        synchronized (delegate) {
+            delegate.deleteSubtask(subtaskId);
+        }
+    }
+
+    @Override
+    public void deleteTasks() {
+        synchronized (delegate) {
+            delegate.deleteTasks();
+        }
+    }
+
+    @Override
+    public void deleteEpics() {
+        synchronized (delegate) {
+            delegate.deleteEpics();
+        }
+    }
+
+    @Override
+    public void deleteSubtasks() {
+        synchronized (delegate) {
+            delegate.deleteSubtasks();
+        }
+    }
+
+    @Override
+    public Collection<Task> getHistory() {
+        synchronized (delegate) {
+            return new ArrayList<>(delegate.getHistory());
+        }
+    }
+
+    @Override
+    public List<Task> getPrioritizedTasks() {
+        synchronized (delegate) {
+            return new ArrayList<>(delegate.getPrioritizedTasks());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package manager;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Изменения в менеджере с момента последнего сохранения: идентификаторы затронутых задач,
+ * эпиков и подзадач и признак изменения истории. Флаг all означает, что нужен полный снимок.
+ */
+class TaskChanges {
+
+    private final Set<Integer> tasks = new HashSet<>();
+    private final Set<Integer> epics = new HashSet<>();
+    private final Set<Integer> subtasks = new HashSet<>();
+    private boolean history;
+    private boolean all = true;
+
+    void task(int id) {
+        tasks.add(id);
+    }
+
+    void epic(int id) {
+        epics.add(id);
+    }
+
+    // подзадача хранится и синхронизируется вместе со своим эпиком
+    void subtask(int id, int epicId) {
+        subtasks.add(id);
+        epics.add(epicId);
+    }
+
+    void history() {
+        history = true;
+    }
+
+    void all() {
+        all = true;
+    }
+
+    Set<Integer> getTasks() {
+        return Collections.unmodifiableSet(tasks);
+    }
+
+    Set<Integer> getEpics() {
+        return Collections.unmodifiableSet(epics);
+    }
+
+    Set<Integer> getSubtasks() {
+        return Collections.unmodifiableSet(subtasks);
+    }
+
+    boolean hasHistory() {
+        return history;
+    }
+
+    boolean isAll() {
+        return all;
+    }
+
+    boolean isEmpty() {
+        return !all && !history && tasks.isEmpty() && epics.isEmpty() && subtasks.isEmpty();
+    }
+
+    void clear() {
+        tasks.clear();
+        epics.clear();
+        subtasks.clear();
+        history = false;
+        all = false;
+    }
+}
@@ -0,0 +1,315 @@
+package manager;
+
+import task.Epic;
+import task.Subtask;
+import task.Task;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Хранилище задач в виде сегментов в одном каталоге: tasks.csv с обычными задачами,
+ * epic-{id}.csv с эпиком и его подзадачами и history.csv с историей просмотров.
+ * Каждый сегмент - файл в формате FileBackedTaskManager. Контрольные суммы CRC32 и размеры
+ * сегментов дописываются в manifest.csv, последняя запись по сегменту действующая.
+ * Сегменты могут быть сжаты, контрольная сумма считается по байтам на диске.
+ * <p>
+ * Сегмент пишется во временный файл, который сбрасывается на диск, затем в манифест дописывается
+ * его запись, и только после этого файл переименовывается на место сегмента. Если процесс упал
+ * между записью в манифест и переименованием, при открытии временный файл, совпадающий с манифестом,
+ * доводится до конца, а не совпадающий - удаляется. Оборванная последняя строка манифеста отбрасывается.
+ */
+class TaskSegmentStore {
+
+    static final String MANIFEST = "manifest.csv";
+    static final String TASKS_SEGMENT = "tasks.csv";
+    static final String HISTORY_SEGMENT = "history.csv";
+    private static final String EPIC_SEGMENT_PREFIX = "epic-";
+    private static final String DELETED = "-";
+
+    private final Path directory;
+    private final Map<String, Segment> segments = new HashMap<>();
+    private final CsvTaskWriter csvWriter = new CsvTaskWriter(Writer.nullWriter());
+    private Compression compression = Compression.NONE;
+    private int manifestRecords;
+
+    TaskSegmentStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        readManifest();
+        recover();
+    }
+
+    void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Читает сегменты задач и эпиков параллельно. В списке каждого эпика сам эпик идёт первым.
+     */
+    List<List<Task>> readTaskSegments() {
+        return segments.keySet().stream()
+                .filter(name -> !name.equals(HISTORY_SEGMENT))
+                .collect(Collectors.toList())
+                .parallelStream()
+                .map(this::readSegment)
+                .collect(Collectors.toList());
+    }
+
+    List<Integer> readHistory() {
+        if (!segments.containsKey(HISTORY_SEGMENT)) {
+            return Collections.emptyList();
+        }
+        try (CsvTaskReader reader = openVerified(HISTORY_SEGMENT)) {
+            reader.next();
+            while (reader.next()) {
+                if (!reader.isBlank()) {
+                    return reader.readIds();
+                }
+            }
+            return Collections.emptyList();
+        } catch (IOException e) {
+            throw new ManagerSaveException("Не удалось прочитать сегмент " + HISTORY_SEGMENT, e);
+        }
+    }
+
+    /**
+     * Перезаписывает только сегменты, затронутые изменениями, или все сегменты, если нужен полный снимок.
+     */
+    void write(TaskChanges changes, Map<Integer, Task> tasks, Map<Integer, Epic> epics,
+               Map<Integer, Subtask> subtasks, List<Task> history) throws IOException {
+        if (changes.isAll() || !changes.getTasks().isEmpty()) {
+            writeSegment(TASKS_SEGMENT, tasks.values(), Collections.emptyList());
+        }
+        Collection<Integer> epicIds = changes.isAll() ? epics.keySet() : changes.getEpics();
+        for (Integer epicId : epicIds) {
+            Epic epic = epics.get(epicId);
+            if (epic == null) {
+                deleteSegment(epicSegment(epicId));
+                continue;
+            }
+            List<Task> epicTasks = new ArrayList<>();
+            epicTasks.add(epic);
+            for (Integer subtaskId : epic.getSubtaskIds()) {
+                Subtask subtask = subtasks.get(subtaskId);
+                if (subtask != null) {
+                    epicTasks.add(subtask);
+                }
+            }
+            writeSegment(epicSegment(epicId), epicTasks, Collections.emptyList());
+        }
+        if (changes.isAll()) {
+            for (String name : new ArrayList<>(segments.keySet())) {
+                if (name.startsWith(EPIC_SEGMENT_PREFIX) && !epics.containsKey(epicIdOf(name))) {
+                    deleteSegment(name);
+                }
+            }
+        }
+        if (changes.isAll() || changes.hasHistory()) {
+            writeSegment(HISTORY_SEGMENT, Collections.emptyList(), history);
+        }
+        if (manifestRecords > segments.size() * 2 + 16) {
+            compactManifest();
+        }
+    }
+
+    private List<Task> readSegment(String name) {
+        List<Task> result = new ArrayList<>();
+        try (CsvTaskReader reader = openVerified(name)) {
+            reader.next();
+            while (reader.next() && !reader.isBlank()) {
+                result.add(reader.readTask());
+            }
+        } catch (IOException e) {
+            throw new ManagerSaveException("Не удалось прочитать сегмент " + name, e);
+        }
+        return result;
+    }
+
+    private CsvTaskReader openVerified(String name) throws IOException {
+        byte[] content = Files.readAllBytes(directory.resolve(name));
+        if (!segments.get(name).matches(content)) {
+            throw new ManagerSaveException("Контрольная сумма сегмента " + name + " не совпадает с манифестом");
+        }
+        return new CsvTaskReader(new InputStreamReader(
+                Compression.detect(new ByteArrayInputStream(content)), StandardCharsets.UTF_8));
+    }
+
+    private void writeSegment(String name, Collection<? extends Task> tasks, List<Task> history) throws IOException {
+        Path temporary = directory.resolve(name + ".tmp");
+        CRC32 crc = new CRC32();
+        CountingOutputStream counter = new CountingOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temporary)));
+        try (Writer writer = new OutputStreamWriter(
+                compression.compress(new CheckedOutputStream(counter, crc)), StandardCharsets.UTF_8)) {
+            csvWriter.reset(writer);
+            csvWriter.writeHeader();
+            for (Task task : tasks) {
+                csvWriter.writeTask(task);
+            }
+            csvWriter.writeHistory(history);
+            csvWriter.flush();
+        }
+        force(temporary);
+        appendManifest(name, new Segment(crc.getValue(), counter.count));
+        Files.move(temporary, directory.resolve(name),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // запись об удалении идёт первой: после сбоя останется лишний файл, а не запись без файла
+    private void deleteSegment(String name) throws IOException {
+        if (segments.containsKey(name)) {
+            appendManifest(name, null);
+            Files.deleteIfExists(directory.resolve(name));
+        }
+    }
+
+    // доводит до конца переименования, прерванные сбоем после записи в манифест
+    private void recover() throws IOException {
+        try (DirectoryStream<Path> temporaries = Files.newDirectoryStream(directory, "*.csv.tmp")) {
+            for (Path temporary : temporaries) {
+                String fileName = temporary.getFileName().toString();
+                Segment segment = segments.get(fileName.substring(0, fileName.length() - 4));
+                if (segment != null && segment.matches(Files.readAllBytes(temporary))) {
+                    Files.move(temporary, directory.resolve(fileName.substring(0, fileName.length() - 4)),
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } else {
+                    Files.delete(temporary);
+                }
+            }
+        }
+    }
+
+    private void appendManifest(String name, Segment segment) throws IOException {
+        if (segment == null) {
+            segments.remove(name);
+        } else {
+            segments.put(name, segment);
+        }
+        String record = name + "," + (segment == null ? DELETED : segment.checksum + "," + segment.length)
+                + System.lineSeparator();
+        ByteBuffer buffer = ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(directory.resolve(MANIFEST),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        manifestRecords++;
+    }
+
+    private void compactManifest() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        segments.forEach((name, segment) -> builder.append(name).append(',').append(segment.checksum)
+                .append(',').append(segment.length).append(System.lineSeparator()));
+        Path temporary = directory.resolve(MANIFEST + ".tmp");
+        Files.writeString(temporary, builder, StandardCharsets.UTF_8);
+        force(temporary);
+        Files.move(temporary, directory.resolve(MANIFEST),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        manifestRecords = segments.size();
+    }
+
+    private void readManifest() throws IOException {
+        Path manifest = directory.resolve(MANIFEST);
+        if (!Files.exists(manifest)) {
+            return;
+        }
+        String content = Files.readString(manifest, StandardCharsets.UTF_8);
+        String[] lines = content.split("\r?\n", -1);
+        // после последнего перевода строки остаётся пустая строка, если запись дописана целиком
+        boolean torn = !lines[lines.length - 1].isEmpty();
+        for (int i = 0; i < lines.length - 1; i++) {
+            if (lines[i].isBlank()) {
+                continue;
+            }
+            if (!applyRecord(lines[i].split(","))) {
+                if (i < lines.length - 2) {
+                    throw new ManagerSaveException("Повреждена строка " + (i + 1) + " манифеста " + manifest);
+                }
+                torn = true;
+            }
+        }
+        if (torn) {
+            compactManifest();
+        }
+    }
+
+    private boolean applyRecord(String[] record) {
+        try {
+            if (record.length == 2 && record[1].equals(DELETED)) {
+                segments.remove(record[0]);
+            } else if (record.length == 3) {
+                segments.put(record[0], new Segment(Long.parseLong(record[1]), Long.parseLong(record[2])));
+            } else {
+                return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        manifestRecords++;
+        return true;
+    }
+
+    private static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    private static String epicSegment(int epicId) {
+        return EPIC_SEGMENT_PREFIX + epicId + ".csv";
+    }
+
+    private static int epicIdOf(String segmentName) {
+        return Integer.parseInt(segmentName.substring(EPIC_SEGMENT_PREFIX.length(), segmentName.length() - 4));
+    }
+
+    private static class Segment {
+        private final long checksum;
+        private final long length;
+
+        Segment(long checksum, long length) {
+            this.checksum = checksum;
+            this.length = length;
+        }
+
+        boolean matches(byte[] content) {
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            return content.length == length && crc.getValue() == checksum;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,514 @@
+package server;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Двоичный протокол KVServer поверх TCP. Кадр запроса: int длина остатка кадра, int номер запроса,
+ * byte код операции и параметры; кадр ответа: int длина, int номер запроса, byte статус и результат.
+ * Числа пишутся big-endian, строки и значения - int длиной и байтами (строки в UTF-8).
+ * <p>
+ * Клиент может отправлять запросы, не дожидаясь ответов: они выполняются на пуле потоков сервера,
+ * и ответ приходит с номером своего запроса, не обязательно по порядку. Первым на соединении
+ * отправляется AUTH с API_TOKEN, в ответ приходит эпоха сервера для ETag; до этого остальные запросы
+ * получают UNAUTHORIZED. Все запросы соединения выполняются в пространстве имён этого API_TOKEN,
+ * запись сверх его квоты получает QUOTA_EXCEEDED.
+ * <p>
+ * Операции: AUTH(token) -> epoch; GET(key) -> version, value; PUT(key, value) -> version;
+ * GET_BATCH(count, keys) -> count, (key, version, value)...; PUT_BATCH(count, (key, value)...) -> version;
+ * SCAN(prefix, after, limit) -> как GET_BATCH, пустой after - перебор с начала префикса.
+ * Условная запись, срок жизни и подписка на изменения есть только в HTTP.
+ * <p>
+ * Соединение, у которого в работе MAX_IN_FLIGHT_PER_CONNECTION запросов или запросы в работе и неотправленные
+ * ответы занимают MAX_PENDING_BYTES_PER_CONNECTION байт, перестаёт читаться, пока клиент не заберёт ответы:
+ * сервер не копит в памяти ответы клиенту, который их не читает. Кадр больше MAX_FRAME_SIZE закрывает соединение.
+ */
+class BinaryServer implements Runnable {
+
+    static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    static final int MAX_IN_FLIGHT_PER_CONNECTION = 64;
+    static final long MAX_PENDING_BYTES_PER_CONNECTION = 16L * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    static final byte AUTH = 1;
+    static final byte GET = 2;
+    static final byte PUT = 3;
+    static final byte GET_BATCH = 4;
+    static final byte PUT_BATCH = 5;
+    static final byte SCAN = 6;
+
+    static final byte OK = 0;
+    static final byte NOT_FOUND = 1;
+    static final byte BAD_REQUEST = 2;
+    static final byte UNAUTHORIZED = 3;
+    static final byte READ_ONLY = 4;
+    static final byte ERROR = 5;
+    static final byte QUOTA_EXCEEDED = 6;
+
+    private final int port;
+    private final KVServer kvServer;
+    private final ExecutorService executor;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    // соединения, которым нужно подписаться на запись или возобновить чтение; подписки меняет поток селектора
+    private final Queue<Connection> changed = new ConcurrentLinkedQueue<>();
+    private Thread thread;
+    private volatile boolean running;
+
+    BinaryServer(int port, KVServer kvServer, ExecutorService executor) throws IOException {
+        this.port = port;
+        this.kvServer = kvServer;
+        this.executor = executor;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("localhost", port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    void start() {
+        running = true;
+        thread = new Thread(this, "kv-binary");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("Двоичный протокол слушает порт " + port);
+    }
+
+    void stop() {
+        running = false;
+        selector.wakeup();
+        if (thread != null) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                Connection connection;
+                while ((connection = changed.poll()) != null) {
+                    connection.updateInterest();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            ((Connection) key.attachment()).read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            ((Connection) key.attachment()).write();
+                        }
+                    } catch (IOException e) {
+                        if (key.attachment() instanceof Connection) {
+                            ((Connection) key.attachment()).close();
+                        }
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            System.out.println("Двоичный протокол остановлен из-за ошибки: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                System.out.println("Не удалось закрыть порт двоичного протокола: " + e.getMessage());
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    // AUTH выполняется сразу в потоке селектора, чтобы следующие за ним запросы уже видели результат
+    private void dispatch(Connection connection, ByteBuffer frame) {
+        int requestId = frame.getInt();
+        byte operation = frame.get();
+        if (operation == AUTH) {
+            try {
+                connection.namespace = kvServer.namespaceOf(readString(frame));
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                connection.namespace = null;
+            }
+            Response response = new Response(requestId, connection.namespace != null ? OK : UNAUTHORIZED);
+            if (connection.namespace != null) {
+                response.writeString(kvServer.getEpoch());
+            }
+            connection.send(response.toBuffer());
+            return;
+        }
+        Namespace namespace = connection.namespace;
+        if (namespace == null) {
+            System.out.println("Запрос по двоичному протоколу без AUTH отклонён");
+            connection.send(new Response(requestId, UNAUTHORIZED).toBuffer());
+            return;
+        }
+        int requestBytes = frame.capacity();
+        connection.started(requestBytes);
+        try {
+            executor.execute(() -> connection.finished(requestBytes, execute(namespace, requestId, operation, frame)));
+        } catch (RejectedExecutionException e) {
+            connection.close();
+        }
+    }
+
+    private ByteBuffer execute(Namespace namespace, int requestId, byte operation, ByteBuffer request) {
+        try {
+            switch (operation) {
+                case GET: {
+                    KVEntry entry = namespace.storage.get(readString(request));
+                    if (entry == null) {
+                        return new Response(requestId, NOT_FOUND).toBuffer();
+                    }
+                    Response response = new Response(requestId, OK);
+                    response.writeLong(entry.getVersion());
+                    response.writeBytes(entry.getValue());
+                    return response.toBuffer();
+                }
+                case PUT: {
+                    String key = readString(request);
+                    byte[] value = readBytes(request);
+                    if (kvServer.isReplica()) {
+                        return new Response(requestId, READ_ONLY).toBuffer();
+                    }
+                    if (key.isEmpty() || value.length == 0) {
+                        return new Response(requestId, BAD_REQUEST).toBuffer();
+                    }
+                    Response response = new Response(requestId, OK);
+                    response.writeLong(namespace.put(key, value));
+                    return response.toBuffer();
+                }
+                case GET_BATCH: {
+                    int count = readCount(request);
+                    List<String> keys = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        keys.add(readString(request));
+                    }
+                    return entries(requestId, namespace.storage.getAll(keys));
+                }
+                case PUT_BATCH: {
+                    int count = readCount(request);
+                    Map<String, byte[]> values = new LinkedHashMap<>();
+                    for (int i = 0; i < count; i++) {
+                        String key = readString(request);
+                        byte[] value = readBytes(request);
+                        if (key.isEmpty() || value.length == 0) {
+                            return new Response(requestId, BAD_REQUEST).toBuffer();
+                        }
+                        values.put(key, value);
+                    }
+                    if (kvServer.isReplica()) {
+                        return new Response(requestId, READ_ONLY).toBuffer();
+                    }
+                    if (values.isEmpty()) {
+                        return new Response(requestId, BAD_REQUEST).toBuffer();
+                    }
+                    Response response = new Response(requestId, OK);
+                    response.writeLong(namespace.putAll(values));
+                    return response.toBuffer();
+                }
+                case SCAN: {
+                    String prefix = readString(request);
+                    String after = readString(request);
+                    int limit = request.getInt();
+                    if (limit < 1 || limit > KVServer.MAX_SCAN_LIMIT) {
+                        return new Response(requestId, BAD_REQUEST).toBuffer();
+                    }
+                    return entries(requestId, namespace.storage.scan(prefix, after.isEmpty() ? null : after, limit));
+                }
+                default:
+                    System.out.println("Неизвестная операция двоичного протокола: " + operation);
+                    return new Response(requestId, BAD_REQUEST).toBuffer();
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return new Response(requestId, BAD_REQUEST).toBuffer();
+        } catch (QuotaExceededException e) {
+            System.out.println(e.getMessage());
+            return new Response(requestId, QUOTA_EXCEEDED).toBuffer();
+        } catch (RuntimeException e) {
+            System.out.println("Ошибка выполнения запроса по двоичному протоколу: " + e.getMessage());
+            return new Response(requestId, ERROR).toBuffer();
+        }
+    }
+
+    private static ByteBuffer entries(int requestId, Map<String, KVEntry> entries) {
+        Response response = new Response(requestId, OK);
+        response.writeInt(entries.size());
+        for (Map.Entry<String, KVEntry> entry : entries.entrySet()) {
+            response.writeString(entry.getKey());
+            response.writeLong(entry.getValue().getVersion());
+            response.writeBytes(entry.getValue().getValue());
+        }
+        return response.toBuffer();
+    }
+
+    private static int readCount(ByteBuffer request) {
+        int count = request.getInt();
+        if (count < 0 || count > request.remaining()) {
+            throw new IllegalArgumentException("некорректное число элементов: " + count);
+        }
+        return count;
+    }
+
+    private static String readString(ByteBuffer request) {
+        return new String(readBytes(request), UTF_8);
+    }
+
+    private static byte[] readBytes(ByteBuffer request) {
+        int length = request.getInt();
+        if (length < 0 || length > request.remaining()) {
+            throw new IllegalArgumentException("некорректная длина: " + length);
+        }
+        byte[] bytes = new byte[length];
+        request.get(bytes);
+        return bytes;
+    }
+
+    private class Connection {
+        private final SocketChannel channel;
+        private final Deque<ByteBuffer> output = new ArrayDeque<>();
+        private ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private SelectionKey key;
+        // пространство имён API_TOKEN из AUTH, меняется только в потоке селектора
+        private Namespace namespace;
+        // под блокировкой output: запросы в работе и байты этих запросов и неотправленных ответов
+        private int inFlight;
+        private long pendingBytes;
+        // чтение приостановлено из-за перегрузки; меняется только в потоке селектора
+        private volatile boolean paused;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (channel.read(input) < 0) {
+                close();
+                return;
+            }
+            processInput();
+        }
+
+        // разбирает целые кадры, пока соединение не перегружено; неразобранные остаются в буфере до возобновления
+        private void processInput() {
+            input.flip();
+            while (!paused && input.remaining() >= Integer.BYTES) {
+                int length = input.getInt(input.position());
+                if (length < Integer.BYTES + 1 || length > MAX_FRAME_SIZE) {
+                    System.out.println("Некорректная длина кадра двоичного протокола: " + length);
+                    close();
+                    return;
+                }
+                if (input.remaining() < Integer.BYTES + length) {
+                    break;
+                }
+                input.getInt();
+                byte[] frame = new byte[length];
+                input.get(frame);
+                dispatch(this, ByteBuffer.wrap(frame));
+                if (overloaded()) {
+                    paused = true;
+                }
+            }
+            input.compact();
+            // кадр больше буфера: буфер растёт до размера кадра
+            if (!paused && !input.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(input.capacity() * 2, MAX_FRAME_SIZE + Integer.BYTES));
+                input.flip();
+                larger.put(input);
+                input = larger;
+            }
+            if (paused && key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        private boolean overloaded() {
+            synchronized (output) {
+                return inFlight >= MAX_IN_FLIGHT_PER_CONNECTION || pendingBytes >= MAX_PENDING_BYTES_PER_CONNECTION;
+            }
+        }
+
+        void started(int requestBytes) {
+            synchronized (output) {
+                inFlight++;
+                pendingBytes += requestBytes;
+            }
+        }
+
+        void finished(int requestBytes, ByteBuffer response) {
+            synchronized (output) {
+                inFlight--;
+                pendingBytes -= requestBytes;
+            }
+            send(response);
+            if (paused) {
+                changed.add(this);
+                selector.wakeup();
+            }
+        }
+
+        // ответ пишется сразу из потока, который его подготовил; что не влезло в сокет, допишет селектор
+        void send(ByteBuffer response) {
+            synchronized (output) {
+                try {
+                    if (output.isEmpty()) {
+                        channel.write(response);
+                        if (!response.hasRemaining()) {
+                            return;
+                        }
+                    }
+                    output.addLast(response);
+                    pendingBytes += response.remaining();
+                } catch (IOException e) {
+                    close();
+                    return;
+                }
+            }
+            changed.add(this);
+            selector.wakeup();
+        }
+
+        void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            if (paused && !overloaded()) {
+                paused = false;
+                processInput();
+                if (!key.isValid()) {
+                    return;
+                }
+            }
+            int ops = paused ? 0 : SelectionKey.OP_READ;
+            synchronized (output) {
+                if (!output.isEmpty()) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+            }
+            key.interestOps(ops);
+        }
+
+        void write() throws IOException {
+            synchronized (output) {
+                while (!output.isEmpty()) {
+                    ByteBuffer head = output.peekFirst();
+                    int before = head.remaining();
+                    channel.write(head);
+                    pendingBytes -= before - head.remaining();
+                    if (head.hasRemaining()) {
+                        return;
+                    }
+                    output.removeFirst();
+                }
+            }
+            updateInterest();
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Не удалось закрыть соединение двоичного протокола: " + e.getMessage());
+            }
+        }
+    }
+
+    // длина кадра известна только в конце, поэтому место под неё резервируется и заполняется в toBuffer
+    private static class Response {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        Response(int requestId, byte status) {
+            writeInt(0);
+            writeInt(requestId);
+            try {
+                out.writeByte(status);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void writeInt(int value) {
+            try {
+                out.writeInt(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void writeLong(long value) {
+            try {
+                out.writeLong(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void writeString(String value) {
+            writeBytes(value.getBytes(UTF_8));
+        }
+
+        void writeBytes(byte[] value) {
+            try {
+                out.writeInt(value.length);
+                out.write(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        ByteBuffer toBuffer() {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            buffer.putInt(0, buffer.capacity() - Integer.BYTES);
+            return buffer;
+        }
+    }
+}
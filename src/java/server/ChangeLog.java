@@ -0,0 +1,166 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Последние записи KVServer в порядке версий. Реплики и подписчики читают из него изменения
+ * после известной им версии. Хранится не больше capacity записей, а размер записей ограничен бюджетом
+ * maxBytes, общим для журналов всех пространств имён сервера: журнал, после записи в который бюджет превышен,
+ * вытесняет свои старые записи, но не последнюю. Кто отстал сильнее, должен перечитать хранилище целиком.
+ * Значение null в записи означает, что ключ удалён.
+ * <p>
+ * Подписчики /watch не держат поток в ожидании: watch запоминает listener, и первая же запись
+ * или сброс журнала вызывает его один раз под блокировкой журнала, поэтому listener должен быть коротким.
+ */
+class ChangeLog {
+
+    // запись без значений и ключи значений считаются по ENTRY_OVERHEAD, символы ключей - по два байта
+    static final long ENTRY_OVERHEAD = 64;
+
+    private final int capacity;
+    private final long maxBytes;
+    private final AtomicLong usedBytes;
+    private final Deque<Change> changes = new ArrayDeque<>();
+    private final List<Runnable> watchers = new ArrayList<>();
+    // версия, до которой включительно изменений в журнале уже нет
+    private long truncatedVersion;
+    private long lastVersion;
+
+    ChangeLog(int capacity, long lastVersion) {
+        this(capacity, Long.MAX_VALUE, new AtomicLong(), lastVersion);
+    }
+
+    /**
+     * usedBytes - счётчик, общий для журналов, делящих бюджет maxBytes.
+     */
+    ChangeLog(int capacity, long maxBytes, AtomicLong usedBytes, long lastVersion) {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        this.usedBytes = usedBytes;
+        reset(lastVersion);
+    }
+
+    synchronized void append(long version, Map<String, byte[]> values) {
+        Change change = new Change(version, values);
+        changes.addLast(change);
+        usedBytes.addAndGet(change.bytes);
+        while (changes.size() > 1 && (changes.size() > capacity || usedBytes.get() > maxBytes)) {
+            Change oldest = changes.removeFirst();
+            usedBytes.addAndGet(-oldest.bytes);
+            truncatedVersion = oldest.version;
+        }
+        lastVersion = version;
+        notifyAll();
+        fireWatchers();
+    }
+
+    /**
+     * Забывает все изменения: хранилище заполнено заново и соответствует версии version.
+     */
+    synchronized void reset(long version) {
+        for (Change change : changes) {
+            usedBytes.addAndGet(-change.bytes);
+        }
+        changes.clear();
+        truncatedVersion = version;
+        lastVersion = version;
+        notifyAll();
+        fireWatchers();
+    }
+
+    /**
+     * Вызывает listener один раз, когда в журнале появится изменение после version или журнал будет сброшен.
+     * Возвращает false и не запоминает listener, если такое изменение уже есть.
+     */
+    synchronized boolean watch(long version, Runnable listener) {
+        if (lastVersion > version) {
+            return false;
+        }
+        watchers.add(listener);
+        return true;
+    }
+
+    /**
+     * Забывает listener. Возвращает false, если он уже вызван.
+     */
+    synchronized boolean unwatch(Runnable listener) {
+        return watchers.remove(listener);
+    }
+
+    /**
+     * Сколько байт занимают записи всех журналов, делящих бюджет с этим.
+     */
+    long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    synchronized long lastVersion() {
+        return lastVersion;
+    }
+
+    /**
+     * Возвращает до limit изменений с версией больше version или null, если часть из них уже вытеснена.
+     */
+    synchronized List<Change> since(long version, int limit) {
+        if (version < truncatedVersion) {
+            return null;
+        }
+        List<Change> result = new ArrayList<>();
+        for (Change change : changes) {
+            if (result.size() == limit) {
+                break;
+            }
+            if (change.version > version) {
+                result.add(change);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Ждёт, пока в журнал попадёт изменение с версией не меньше version. Возвращает false по таймауту.
+     */
+    synchronized boolean await(long version, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (lastVersion < version) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    private void fireWatchers() {
+        if (watchers.isEmpty()) {
+            return;
+        }
+        List<Runnable> fired = new ArrayList<>(watchers);
+        watchers.clear();
+        fired.forEach(Runnable::run);
+    }
+
+    static class Change {
+        final long version;
+        // null - ключ удалён
+        final Map<String, byte[]> values;
+        final long bytes;
+
+        Change(long version, Map<String, byte[]> values) {
+            this.version = version;
+            this.values = values;
+            long bytes = ENTRY_OVERHEAD;
+            for (Map.Entry<String, byte[]> value : values.entrySet()) {
+                bytes += ENTRY_OVERHEAD + 2L * value.getKey().length()
+                        + (value.getValue() == null ? 0 : value.getValue().length);
+            }
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package server;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+import client.KVChangeListener;
+import client.KVClient;
+import client.KVConflictException;
+import client.KVSubscription;
+
+/**
+ * Клиент KVServer в том же процессе: читает и пишет в хранилище сервера напрямую, без JSON, HTTP и сокетов.
+ * Записи идут через сервер, поэтому получают те же версии и ETag, попадают в журнал изменений
+ * и видны репликам, подписчикам /watch и HTTP-клиентам. API_TOKEN проверяется один раз при создании,
+ * и клиент работает в пространстве имён, в которое этот API_TOKEN выдан.
+ * <p>
+ * Асинхронные методы выполняются сразу в вызывающем потоке и возвращают завершённый CompletableFuture.
+ * Записей в write-behind нет, flush() ничего не делает.
+ */
+public class EmbeddedKVClient implements KVClient {
+
+    private static final long NO_TTL = 0;
+
+    private final KVServer server;
+    private final Namespace namespace;
+    private final KVStorage storage;
+    private final ChangeLog changeLog;
+    // ETag последних версий, которые этот клиент загрузил или сохранил
+    private final Map<String, String> etags = new ConcurrentHashMap<>();
+    private final Set<Watch> watches = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Клиент пространства имён сервера по умолчанию.
+     */
+    public EmbeddedKVClient(KVServer server) {
+        this(server, server.getApiToken());
+    }
+
+    /**
+     * Клиент пространства имён, в которое сервер выдал apiToken.
+     *
+     * @throws IllegalArgumentException если сервер не выдавал apiToken
+     */
+    public EmbeddedKVClient(KVServer server, String apiToken) {
+        namespace = server.namespaceOf(apiToken);
+        if (namespace == null) {
+            throw new IllegalArgumentException("KVServer не принял API_TOKEN " + apiToken);
+        }
+        this.server = server;
+        this.storage = namespace.storage;
+        this.changeLog = namespace.changeLog;
+    }
+
+    @Override
+    public boolean put(String key, String json) {
+        return put(key, json, NO_TTL);
+    }
+
+    /**
+     * Сохраняет значение, которое перестанет читаться через ttlMillis миллисекунд.
+     */
+    public boolean put(String key, String json, long ttlMillis) {
+        if (!writable()) {
+            return false;
+        }
+        if (key.isEmpty() || json.isEmpty()) {
+            System.out.println("Key и value для сохранения не должны быть пустыми");
+            return false;
+        }
+        try {
+            byte[] value = json.getBytes(UTF_8);
+            long version = ttlMillis == NO_TTL ? namespace.put(key, value) : namespace.put(key, value, ttlMillis);
+            etags.put(key, server.etag(version));
+        } catch (QuotaExceededException | UnsupportedOperationException e) {
+            etags.remove(key);
+            System.out.println(e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String load(String key) {
+        KVEntry entry = storage.get(key);
+        if (entry == null) {
+            etags.remove(key);
+            return "";
+        }
+        etags.put(key, server.etag(entry.getVersion()));
+        return entry.getText();
+    }
+
+    @Override
+    public boolean putAll(Map<String, String> values) {
+        if (values.isEmpty()) {
+            return true;
+        }
+        if (!writable()) {
+            return false;
+        }
+        Map<String, byte[]> batch = new LinkedHashMap<>();
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            if (value.getKey().isEmpty() || value.getValue() == null || value.getValue().isEmpty()) {
+                System.out.println("В пакете есть пустой key или value, пакет не сохранён");
+                return false;
+            }
+            batch.put(value.getKey(), value.getValue().getBytes(UTF_8));
+        }
+        String etag;
+        try {
+            etag = server.etag(namespace.putAll(batch));
+        } catch (QuotaExceededException e) {
+            values.keySet().forEach(etags::remove);
+            System.out.println(e.getMessage());
+            return false;
+        }
+        values.keySet().forEach(key -> etags.put(key, etag));
+        return true;
+    }
+
+    @Override
+    public Map<String, String> loadAll(Collection<String> keys) {
+        return values(storage.getAll(keys));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> putAsync(String key, String json) {
+        return call(() -> put(key, json));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> putAsync(String key, String json, long ttlMillis) {
+        return call(() -> put(key, json, ttlMillis));
+    }
+
+    @Override
+    public CompletableFuture<String> loadAsync(String key) {
+        return call(() -> load(key));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> putAllAsync(Map<String, String> values) {
+        return call(() -> putAll(values));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, String>> loadAllAsync(Collection<String> keys) {
+        return call(() -> loadAll(keys));
+    }
+
+    @Override
+    public String putIfMatch(String key, String json, String etag) {
+        if (!writable()) {
+            return null;
+        }
+        long expectedVersion = etag == null ? KVStorage.ABSENT : server.versionOf(etag);
+        long version;
+        try {
+            version = expectedVersion == KVStorage.CONFLICT ? KVStorage.CONFLICT
+                    : namespace.putIfVersion(key, json.getBytes(UTF_8), expectedVersion);
+        } catch (QuotaExceededException e) {
+            etags.remove(key);
+            System.out.println(e.getMessage());
+            return null;
+        }
+        if (version == KVStorage.CONFLICT) {
+            etags.remove(key);
+            KVEntry current = storage.get(key);
+            throw new KVConflictException(key, current == null ? null : server.etag(current.getVersion()));
+        }
+        String newETag = server.etag(version);
+        etags.put(key, newETag);
+        return newETag;
+    }
+
+    @Override
+    public CompletableFuture<String> putIfMatchAsync(String key, String json, String etag) {
+        return call(() -> putIfMatch(key, json, etag));
+    }
+
+    @Override
+    public String getETag(String key) {
+        return etags.get(key);
+    }
+
+    @Override
+    public Map<String, String> scan(String prefix, String after, int limit) {
+        if (limit <= 0 || limit > KVServer.MAX_SCAN_LIMIT) {
+            throw new IllegalArgumentException("limit для scan должен быть от 1 до " + KVServer.MAX_SCAN_LIMIT);
+        }
+        return values(storage.scan(prefix, after, limit));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, String>> scanAsync(String prefix, String after, int limit) {
+        return call(() -> scan(prefix, after, limit));
+    }
+
+    /**
+     * Listener вызывается на пуле потоков сервера, по одному изменению за раз, в порядке версий.
+     */
+    @Override
+    public KVSubscription subscribe(KVChangeListener listener) {
+        Watch watch = new Watch(listener, changeLog.lastVersion());
+        watches.add(watch);
+        watch.await();
+        return watch;
+    }
+
+    @Override
+    public boolean flush() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        watches.forEach(Watch::close);
+    }
+
+    private boolean writable() {
+        if (server.isReplica()) {
+            System.out.println("Реплика принимает только чтение, записи отправляются лидеру");
+            return false;
+        }
+        return true;
+    }
+
+    private Map<String, String> values(Map<String, KVEntry> entries) {
+        Map<String, String> values = new LinkedHashMap<>();
+        entries.forEach((key, entry) -> {
+            values.put(key, entry.getText());
+            etags.put(key, server.etag(entry.getVersion()));
+        });
+        return values;
+    }
+
+    private static <T> CompletableFuture<T> call(Supplier<T> operation) {
+        try {
+            return CompletableFuture.completedFuture(operation.get());
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // ChangeLog будит подписку под своей блокировкой, поэтому изменения передаются listener уже на пуле сервера
+    private class Watch implements KVSubscription {
+        private final KVChangeListener listener;
+        private final Runnable wakeUp = this::schedule;
+        private long version;
+        private volatile boolean closed;
+
+        Watch(KVChangeListener listener, long version) {
+            this.listener = listener;
+            this.version = version;
+        }
+
+        void await() {
+            if (!closed && !changeLog.watch(version, wakeUp)) {
+                schedule();
+            }
+        }
+
+        private void schedule() {
+            try {
+                server.getExecutor().execute(this::deliver);
+            } catch (RejectedExecutionException e) {
+                System.out.println("Сервер остановлен, подписка на изменения закрыта");
+                close();
+            }
+        }
+
+        // версия больше последней в журнале - журнал сброшен на меньшую версию
+        private void deliver() {
+            List<ChangeLog.Change> changes = version > changeLog.lastVersion() ? null
+                    : changeLog.since(version, KVServer.MAX_SCAN_LIMIT);
+            if (changes == null) {
+                version = changeLog.lastVersion();
+                if (!closed) {
+                    System.out.println("Часть изменений пропущена, подписчику нужно перечитать значения");
+                    listener.onReset();
+                }
+            } else {
+                for (ChangeLog.Change change : changes) {
+                    version = change.version;
+                    if (closed) {
+                        return;
+                    }
+                    Map<String, String> values = new LinkedHashMap<>();
+                    change.values.forEach((key, value) -> values.put(key, value == null ? null : new String(value, UTF_8)));
+                    listener.onChange(change.version, values);
+                }
+            }
+            await();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            changeLog.unwatch(wakeUp);
+            watches.remove(this);
+        }
+    }
+}
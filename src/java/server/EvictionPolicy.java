@@ -0,0 +1,33 @@
+package server;
+
+/**
+ * Порядок, в котором InMemoryKVStorage вытесняет ключи, когда значения не помещаются в бюджет памяти.
+ * Хранилище сообщает политике о записи, чтении и удалении ключей из нескольких потоков одновременно.
+ */
+public interface EvictionPolicy {
+
+    void written(String key, KVEntry entry);
+
+    void read(String key);
+
+    void removed(String key);
+
+    /**
+     * Ключ, который вытесняется следующим, или null, если ключей нет.
+     */
+    String victim();
+
+    /**
+     * Первым вытесняется ключ, который дольше всех не читали и не записывали.
+     */
+    static EvictionPolicy lru() {
+        return new LruEvictionPolicy();
+    }
+
+    /**
+     * Первыми вытесняются ключи со сроком жизни, начиная с ближайшего к истечению, затем остальные по LRU.
+     */
+    static EvictionPolicy ttlFirst() {
+        return new TtlFirstEvictionPolicy();
+    }
+}
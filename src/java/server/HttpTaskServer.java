@@ -1,34 +1,78 @@
 package server;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.net.InetSocketAddress;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+import manager.SynchronizedTaskManager;
 import manager.TaskManager;
 import task.Epic;
 import task.Subtask;
 import task.Task;
 
+/**
+ * Запросы обрабатываются параллельно на пуле потоков: по умолчанию - на фиксированном пуле по числу ядер,
+ * либо на переданном ExecutorService, например Executors.newVirtualThreadPerTaskExecutor() на Java 21.
+ * Менеджер оборачивается в SynchronizedTaskManager, а проверка и изменение задачи в одном запросе
+ * выполняются под его блокировкой целиком. Задачи для ответа копируются под той же блокировкой
+ * (эпик - вместе со списком подзадач), а сериализуются копии, поэтому другой запрос или подписка
+ * не меняют их посреди записи. Разбор тела запроса и отправка ответа идут вне блокировки,
+ * и медленный клиент не задерживает остальных.
+ * <p>
+ * Тело запроса разбирается строгим JsonReader прямо из потока: пустое тело, неверный JSON и данные
+ * после значения получают ответ 400. Ответ пишется JsonWriter частями (chunked), без промежуточной строки
+ * со всем ответом. Кодировка - UTF-8.
+ */
 public class HttpTaskServer {
 
-    private final TaskManager taskManager;
+    private final SynchronizedTaskManager taskManager;
     private final Gson gson;
     private final HttpServer server;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
     private final String host;
     private final int port;
 
     public HttpTaskServer(TaskManager taskManager, String host, int port) throws IOException {
-        this.taskManager = taskManager;
+        this(taskManager, host, port, Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()), true);
+    }
+
+    /**
+     * Пул потоков, переданный снаружи, сервер не останавливает.
+     */
+    public HttpTaskServer(TaskManager taskManager, String host, int port, ExecutorService executor)
+            throws IOException {
+        this(taskManager, host, port, executor, false);
+    }
+
+    private HttpTaskServer(TaskManager taskManager, String host, int port, ExecutorService executor,
+                           boolean ownsExecutor) throws IOException {
+        this.taskManager = taskManager instanceof SynchronizedTaskManager ? (SynchronizedTaskManager) taskManager
+                : new SynchronizedTaskManager(taskManager);
         this.gson = new Gson();
         this.server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        server.setExecutor(executor);
         this.host = host;
         this.port = port;
         initHandlers();
@@ -49,23 +93,67 @@ public class HttpTaskServer {
 
     public void stop() {
         server.stop(0);
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
         System.out.print("Server stopped\n");
     }
 
     private void sendResponse(HttpExchange exchange, int statusCode, String response) throws IOException {
+        byte[] body = response.getBytes(UTF_8);
         exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(statusCode, response.getBytes().length);
+        exchange.sendResponseHeaders(statusCode, body.length);
         OutputStream os = exchange.getResponseBody();
-        os.write(response.getBytes());
+        os.write(body);
         os.close();
     }
 
-    private <T> Optional<T> parseRequestBody(HttpExchange exchange, Class<T> clazz) throws IOException {
+    // длина ответа заранее неизвестна, поэтому он уходит частями по мере записи в буфер
+    private void sendJson(HttpExchange exchange, int statusCode, Object value) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(statusCode, 0);
+        try (JsonWriter writer = new JsonWriter(new BufferedWriter(
+                new OutputStreamWriter(exchange.getResponseBody(), UTF_8), 1 << 16))) {
+            gson.toJson(value, value.getClass(), writer);
+        }
+    }
+
+    // под блокировкой менеджера задачи только копируются, сериализуются копии уже без неё; null, если read вернул null
+    private Object snapshot(Function<TaskManager, Object> read) {
+        return taskManager.atomically(manager -> copyOf(read.apply(manager)));
+    }
+
+    private static Object copyOf(Object value) {
+        if (value instanceof Task) {
+            return ((Task) value).copy();
+        }
+        if (value instanceof Collection) {
+            return ((Collection<?>) value).stream().map(HttpTaskServer::copyOf).collect(Collectors.toList());
+        }
+        return value;
+    }
+
+    private void sendSnapshot(HttpExchange exchange, Function<TaskManager, Object> read) throws IOException {
+        Object value = snapshot(read);
+        if (value != null) {
+            sendJson(exchange, 200, value);
+        } else {
+            sendResponse(exchange, 404, "{\"error\": \"Not found\"}");
+        }
+    }
+
+    // пустой Optional - тело пустое, не разобралось или содержит что-то после значения, ответ 400
+    // отправляет вызывающий. Gson.fromJson(JsonReader) на время чтения делает JsonReader нестрогим,
+    // поэтому значение читается адаптером
+    private <T> Optional<T> parseRequestBody(HttpExchange exchange, Class<T> clazz) {
         try {
-            String requestBody = new String(exchange.getRequestBody().readAllBytes());
-            return Optional.of(gson.fromJson(requestBody, clazz));
-        } catch (JsonSyntaxException e) {
-            sendResponse(exchange, 400, "{\"error\": \"Bad request\"}");
+            JsonReader reader = new JsonReader(new InputStreamReader(exchange.getRequestBody(), UTF_8));
+            T value = gson.getAdapter(clazz).read(reader);
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                return Optional.empty();
+            }
+            return Optional.ofNullable(value);
+        } catch (JsonParseException | IOException | IllegalStateException e) {
             return Optional.empty();
         }
     }
@@ -104,15 +192,10 @@ public class HttpTaskServer {
         private void handleGet(HttpExchange exchange) throws IOException {
             Map<String, String> params = parseQueryParams(exchange.getRequestURI().getQuery());
             if (Objects.isNull(params)) {
-                sendResponse(exchange, 200, gson.toJson(taskManager.getTasks()));
+                sendSnapshot(exchange, TaskManager::getTasks);
             } else {
                 int id = Integer.parseInt(params.get("id"));
-                Optional<Task> task = Optional.ofNullable(taskManager.getTask(id));
-                if (task.isPresent()) {
-                    sendResponse(exchange, 200, gson.toJson(task.get()));
-                } else {
-                    sendResponse(exchange, 404, "{\"error\": \"Not found\"}");
-                }
+                sendSnapshot(exchange, manager -> manager.getTask(id));
             }
         }
 
@@ -120,15 +203,20 @@ public class HttpTaskServer {
             Optional<Task> optionalTask = parseRequestBody(exchange, Task.class);
             if (optionalTask.isPresent()) {
                 Task task = optionalTask.get();
-                int taskId = task.getId();
-                    if (taskManager.getTask(taskId) != null) {
-                        taskManager.updateTask(task);
-                        sendResponse(exchange, 200, "{\"message\": \"Task updated\"}");
-                    } else {
-                        taskManager.addTask(task);
-                        sendResponse(exchange, 200, "{\"message\": \"Task created\"}");
+                boolean updated = taskManager.atomically(manager -> {
+                    if (manager.getTask(task.getId()) != null) {
+                        manager.updateTask(task);
+                        return true;
                     }
+                    manager.addTask(task);
+                    return false;
+                });
+                if (updated) {
+                    sendResponse(exchange, 200, "{\"message\": \"Task updated\"}");
                 } else {
+                    sendResponse(exchange, 200, "{\"message\": \"Task created\"}");
+                }
+            } else {
                     sendResponse(exchange, 400, "{\"error\": \"Bad request\"}");
             }
         }
@@ -140,9 +228,12 @@ public class HttpTaskServer {
                 sendResponse(exchange, 200, "{\"message\": \"All tasks deleted\"}");
             } else {
                 int id = Integer.parseInt(parseQueryParams(exchange.getRequestURI().getQuery()).get("id"));
-                if (taskManager.getTask(id) != null) {
-                    taskManager.deleteTask(id);
-                }
+                taskManager.atomically(manager -> {
+                    if (manager.getTask(id) != null) {
+                        manager.deleteTask(id);
+                    }
+                    return null;
+                });
                 sendResponse(exchange, 200, "{\"message\": \"Task deleted\"}");
             }
         }
@@ -156,8 +247,7 @@ public class HttpTaskServer {
             String method = exchange.getRequestMethod();
 
             if (method.equals("GET")) {
-                Collection<Task> tasks = taskManager.getPrioritizedTasks();
-                sendResponse(exchange, 200, gson.toJson(tasks));
+                sendSnapshot(exchange, TaskManager::getPrioritizedTasks);
             } else {
                 sendResponse(exchange, 405, "{\"error\": \"Method not allowed\"}");
             }
@@ -189,15 +279,10 @@ public class HttpTaskServer {
         private void handleGet(HttpExchange exchange) throws IOException {
             Map<String, String> params = parseQueryParams(exchange.getRequestURI().getQuery());
             if (Objects.isNull(params)) {
-                sendResponse(exchange, 200, gson.toJson(taskManager.getSubtasks()));
+                sendSnapshot(exchange, TaskManager::getSubtasks);
             } else {
                 int id = Integer.parseInt(params.get("id"));
-                Optional<Task> task = Optional.ofNullable(taskManager.getSubtask(id));
-                if (task.isPresent()) {
-                    sendResponse(exchange, 200, gson.toJson(task.get()));
-                } else {
-                    sendResponse(exchange, 404, "{\"error\": \"Not found\"}");
-                }
+                sendSnapshot(exchange, manager -> manager.getSubtask(id));
             }
         }
 
@@ -205,11 +290,17 @@ public class HttpTaskServer {
             Optional<Subtask> optionalSubtask = parseRequestBody(exchange, Subtask.class);
             if (optionalSubtask.isPresent()) {
                 Subtask subtask = optionalSubtask.get();
-                if (taskManager.getSubtask(subtask.getId()) != null) {
-                    taskManager.updateSubtask(subtask);
+                boolean updated = taskManager.atomically(manager -> {
+                    if (manager.getSubtask(subtask.getId()) != null) {
+                        manager.updateSubtask(subtask);
+                        return true;
+                    }
+                    manager.addSubtask(subtask);
+                    return false;
+                });
+                if (updated) {
                     sendResponse(exchange, 200, "{\"message\": \"Subtask updated\"}");
                 } else {
-                    taskManager.addSubtask(subtask);
                     sendResponse(exchange, 200, "{\"message\": \"Subtask created\"}");
                 }
             } else {
@@ -220,9 +311,12 @@ public class HttpTaskServer {
         private void handleDelete(HttpExchange exchange) throws IOException {
             Map<String, String> queryParams = parseQueryParams(exchange.getRequestURI().getQuery());
             int subtaskId = Integer.parseInt(queryParams.get("id"));
-            if (taskManager.getSubtask(subtaskId) != null) {
-                taskManager.deleteSubtask(subtaskId);
-            }
+            taskManager.atomically(manager -> {
+                if (manager.getSubtask(subtaskId) != null) {
+                    manager.deleteSubtask(subtaskId);
+                }
+                return null;
+            });
             sendResponse(exchange, 200, "{\"message\": \"Subtask deleted\"}");
         }
     }
@@ -253,15 +347,10 @@ public class HttpTaskServer {
         private void handleGet(HttpExchange exchange) throws IOException {
             Map<String, String> params = parseQueryParams(exchange.getRequestURI().getQuery());
             if (Objects.isNull(params)) {
-                sendResponse(exchange, 200, gson.toJson(taskManager.getEpics()));
+                sendSnapshot(exchange, TaskManager::getEpics);
             } else {
                 int id = Integer.parseInt(params.get("id"));
-                Optional<Epic> epic = Optional.ofNullable(taskManager.getEpic(id));
-                if (epic.isPresent()) {
-                    sendResponse(exchange, 200, gson.toJson(epic.get()));
-                } else {
-                    sendResponse(exchange, 404, "{\"error\": \"Not found\"}");
-                }
+                sendSnapshot(exchange, manager -> manager.getEpic(id));
             }
         }
 
@@ -269,11 +358,17 @@ public class HttpTaskServer {
             Optional<Epic> optionalEpic = parseRequestBody(exchange, Epic.class);
             if (optionalEpic.isPresent()) {
                 Epic epic = optionalEpic.get();
-                if (taskManager.getEpic(epic.getId()) != null) {
-                    taskManager.updateEpic(epic);
+                boolean updated = taskManager.atomically(manager -> {
+                    if (manager.getEpic(epic.getId()) != null) {
+                        manager.updateEpic(epic);
+                        return true;
+                    }
+                    manager.addEpic(epic);
+                    return false;
+                });
+                if (updated) {
                     sendResponse(exchange, 200, "{\"message\": \"Epic updated\"}");
                 } else {
-                    taskManager.addEpic(epic);
                     sendResponse(exchange, 200, "{\"message\": \"Epic created\"}");
                 }
             } else {
@@ -288,9 +383,12 @@ public class HttpTaskServer {
                 return;
             }
             int epicId = Integer.parseInt(queryParams.get("id"));
-            if (taskManager.getEpic(epicId) != null) {
-                taskManager.deleteEpic(epicId);
-            }
+            taskManager.atomically(manager -> {
+                if (manager.getEpic(epicId) != null) {
+                    manager.deleteEpic(epicId);
+                }
+                return null;
+            });
             sendResponse(exchange, 200, "{\"message\": \"Epic deleted\"}");
         }
     }
@@ -302,7 +400,7 @@ public class HttpTaskServer {
             String method = exchange.getRequestMethod();
 
             if (method.equals("GET")) {
-                sendResponse(exchange, 200, gson.toJson(taskManager.getHistory()));
+                sendSnapshot(exchange, TaskManager::getHistory);
             } else {
                 sendResponse(exchange, 405, "{\"error\": \"Method not allowed\"}");
             }
@@ -0,0 +1,368 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Хранилище в памяти на упорядоченной конкурентной карте. Чтение и запись одного ключа не блокируют друг друга,
+ * пакетная запись берёт блокировку на запись, чтобы getAll не увидел пакет наполовину.
+ * <p>
+ * Значение со сроком жизни перестаёт читаться, как только срок истёк, а удаляется понемногу при каждой записи
+ * и целиком при вызове expire(). Если задан бюджет maxBytes, после записи хранилище вытесняет ключи
+ * в порядке EvictionPolicy, пока сумма длин значений не уложится в бюджет. Ключи самой записи пропускаются,
+ * поэтому бюджет может быть превышен не больше чем на один пакет. Об удалённых так ключах хранилище
+ * сообщает RemovalListener: при записи - с её версией, в expire() - с новой версией. Чтение ничего
+ * не удаляет, потому что удалению нужна версия, а выдавать версии вне записи нельзя.
+ */
+public class InMemoryKVStorage implements KVStorage {
+
+    public static final long UNLIMITED = Long.MAX_VALUE;
+    // сколько истёкших значений удаляется при каждой записи
+    private static final int EXPIRE_BATCH = 16;
+
+    private final NavigableMap<String, KVEntry> data = new ConcurrentSkipListMap<>();
+    private final NavigableSet<Expiry> expiring = new ConcurrentSkipListSet<>();
+    private final AtomicLong lastVersion = new AtomicLong();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final ReadWriteLock batchLock = new ReentrantReadWriteLock();
+    private final long maxBytes;
+    private final EvictionPolicy evictionPolicy;
+    private volatile RemovalListener removalListener;
+
+    public InMemoryKVStorage() {
+        this(UNLIMITED, EvictionPolicy.lru());
+    }
+
+    /**
+     * maxBytes - бюджет на сумму длин значений, evictionPolicy - порядок вытеснения при его превышении.
+     */
+    public InMemoryKVStorage(long maxBytes, EvictionPolicy evictionPolicy) {
+        this.maxBytes = maxBytes;
+        // без бюджета вытеснять нечего, и политике незачем следить за доступом
+        this.evictionPolicy = maxBytes == UNLIMITED ? null : Objects.requireNonNull(evictionPolicy);
+    }
+
+    @Override
+    public KVEntry get(String key) {
+        return touch(key, data.get(key), System.currentTimeMillis());
+    }
+
+    @Override
+    public Map<String, KVEntry> getAll(Collection<String> keys) {
+        Map<String, KVEntry> entries = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
+        batchLock.readLock().lock();
+        try {
+            for (String key : keys) {
+                KVEntry entry = touch(key, data.get(key), now);
+                if (entry != null) {
+                    entries.put(key, entry);
+                }
+            }
+        } finally {
+            batchLock.readLock().unlock();
+        }
+        return entries;
+    }
+
+    @Override
+    public Map<String, KVEntry> scan(String prefix, String after, int limit) {
+        Map<String, KVEntry> entries = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
+        batchLock.readLock().lock();
+        try {
+            for (Map.Entry<String, KVEntry> entry : KVStorage.range(data, prefix, after).entrySet()) {
+                if (!entry.getKey().startsWith(prefix) || entries.size() == limit) {
+                    break;
+                }
+                KVEntry live = touch(entry.getKey(), entry.getValue(), now);
+                if (live != null) {
+                    entries.put(entry.getKey(), live);
+                }
+            }
+        } finally {
+            batchLock.readLock().unlock();
+        }
+        return entries;
+    }
+
+    @Override
+    public long put(String key, byte[] value) {
+        return write(key, value, KVEntry.NEVER);
+    }
+
+    @Override
+    public long put(String key, byte[] value, long ttlMillis) {
+        long now = System.currentTimeMillis();
+        return write(key, value, ttlMillis >= KVEntry.NEVER - now ? KVEntry.NEVER : now + ttlMillis);
+    }
+
+    @Override
+    public long putIfVersion(String key, byte[] value, long expectedVersion) {
+        KVEntry[] previous = new KVEntry[1];
+        KVEntry[] written = new KVEntry[1];
+        long version;
+        batchLock.readLock().lock();
+        try {
+            KVEntry result = data.compute(key, (k, old) -> {
+                long current = old == null || old.isExpired(System.currentTimeMillis()) ? ABSENT : old.getVersion();
+                previous[0] = old;
+                written[0] = current == expectedVersion ? new KVEntry(value, lastVersion.incrementAndGet()) : null;
+                return written[0] == null ? old : written[0];
+            });
+            if (result == null || result != written[0]) {
+                return CONFLICT;
+            }
+            replaced(key, previous[0], result);
+            version = result.getVersion();
+        } finally {
+            batchLock.readLock().unlock();
+        }
+        afterWrite(Set.of(key), version);
+        return version;
+    }
+
+    @Override
+    public long putAll(Map<String, byte[]> values) {
+        long version;
+        batchLock.writeLock().lock();
+        try {
+            version = lastVersion.incrementAndGet();
+            values.forEach((key, value) -> {
+                KVEntry entry = new KVEntry(value, version);
+                replaced(key, data.put(key, entry), entry);
+            });
+        } finally {
+            batchLock.writeLock().unlock();
+        }
+        afterWrite(values.keySet(), version);
+        return version;
+    }
+
+    @Override
+    public void apply(long version, Map<String, byte[]> values) {
+        batchLock.writeLock().lock();
+        try {
+            lastVersion.accumulateAndGet(version, Math::max);
+            values.forEach((key, value) -> {
+                if (value == null) {
+                    KVEntry old = data.remove(key);
+                    if (old != null) {
+                        replaced(key, old, null);
+                    }
+                    return;
+                }
+                KVEntry entry = new KVEntry(value, version);
+                replaced(key, data.put(key, entry), entry);
+            });
+        } finally {
+            batchLock.writeLock().unlock();
+        }
+        afterWrite(values.keySet(), version);
+    }
+
+    @Override
+    public long lastVersion() {
+        return lastVersion.get();
+    }
+
+    /**
+     * Сумма длин хранимых значений в байтах.
+     */
+    @Override
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Число ключей, вытесненных из-за бюджета памяти.
+     */
+    @Override
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Число значений, удалённых после истечения срока жизни.
+     */
+    @Override
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    @Override
+    public void setRemovalListener(RemovalListener listener) {
+        removalListener = listener;
+    }
+
+    @Override
+    public void expire() {
+        List<String> removed = new ArrayList<>();
+        expireSome(System.currentTimeMillis(), Integer.MAX_VALUE, removed);
+        if (!removed.isEmpty()) {
+            notifyRemoved(lastVersion.incrementAndGet(), removed);
+        }
+    }
+
+    private long write(String key, byte[] value, long expiresAt) {
+        KVEntry[] previous = new KVEntry[1];
+        KVEntry written;
+        batchLock.readLock().lock();
+        try {
+            // версия выдаётся внутри compute, чтобы при гонке за ключ победила запись с большей версией;
+            // compute может повторить функцию, прежнее значение запоминает последний, успешный вызов
+            written = data.compute(key, (k, old) -> {
+                previous[0] = old;
+                return new KVEntry(value, lastVersion.incrementAndGet(), expiresAt);
+            });
+            replaced(key, previous[0], written);
+        } finally {
+            batchLock.readLock().unlock();
+        }
+        afterWrite(Set.of(key), written.getVersion());
+        return written.getVersion();
+    }
+
+    // истёкшее значение не читается, прочитанное отмечается для политики вытеснения
+    private KVEntry touch(String key, KVEntry entry, long now) {
+        if (entry == null || entry.isExpired(now)) {
+            return null;
+        }
+        if (evictionPolicy != null) {
+            evictionPolicy.read(key);
+        }
+        return entry;
+    }
+
+    private void afterWrite(Collection<String> written, long version) {
+        List<String> removed = new ArrayList<>();
+        expireSome(System.currentTimeMillis(), EXPIRE_BATCH, removed);
+        if (evictionPolicy != null) {
+            evict(written, removed);
+        }
+        if (!removed.isEmpty()) {
+            notifyRemoved(version, removed);
+        }
+    }
+
+    // ключи самой записи политика забывает до конца вытеснения, чтобы за ними найти следующих кандидатов
+    private void evict(Collection<String> written, List<String> removed) {
+        List<String> skipped = new ArrayList<>();
+        while (usedBytes.get() > maxBytes) {
+            String victim = evictionPolicy.victim();
+            if (victim == null) {
+                break;
+            }
+            KVEntry entry = data.get(victim);
+            if (entry == null) {
+                evictionPolicy.removed(victim);
+            } else if (written.contains(victim)) {
+                evictionPolicy.removed(victim);
+                skipped.add(victim);
+            } else if (remove(victim, entry)) {
+                evictions.incrementAndGet();
+                removed.add(victim);
+            }
+        }
+        for (String key : skipped) {
+            KVEntry entry = data.get(key);
+            if (entry != null) {
+                evictionPolicy.written(key, entry);
+            }
+        }
+    }
+
+    private void expireSome(long now, int limit, List<String> removed) {
+        int count = 0;
+        for (Expiry expiry : expiring) {
+            if (count++ == limit || expiry.expiresAt > now) {
+                return;
+            }
+            KVEntry entry = data.get(expiry.key);
+            if (entry != null && entry.getVersion() == expiry.version && remove(expiry.key, entry)) {
+                expirations.incrementAndGet();
+                removed.add(expiry.key);
+            } else {
+                expiring.remove(expiry);
+            }
+        }
+    }
+
+    private void notifyRemoved(long version, List<String> removed) {
+        RemovalListener listener = removalListener;
+        if (listener != null) {
+            listener.removed(version, removed);
+        }
+    }
+
+    private boolean remove(String key, KVEntry entry) {
+        if (!data.remove(key, entry)) {
+            return false;
+        }
+        replaced(key, entry, null);
+        return true;
+    }
+
+    // учёт занятой памяти, сроков жизни и политики после того, как old заменено на current (null - удалено)
+    private void replaced(String key, KVEntry old, KVEntry current) {
+        long delta = 0;
+        if (old != null) {
+            delta -= old.getValue().length;
+            if (old.getExpiresAt() != KVEntry.NEVER) {
+                expiring.remove(new Expiry(old, key));
+            }
+        }
+        if (current != null) {
+            delta += current.getValue().length;
+            if (current.getExpiresAt() != KVEntry.NEVER) {
+                expiring.add(new Expiry(current, key));
+            }
+        }
+        usedBytes.addAndGet(delta);
+        if (evictionPolicy == null) {
+            return;
+        }
+        if (current == null) {
+            evictionPolicy.removed(key);
+        } else {
+            evictionPolicy.written(key, current);
+        }
+    }
+
+    // срок жизни конкретной версии ключа; упорядочены по моменту истечения
+    static class Expiry implements Comparable<Expiry> {
+        final long expiresAt;
+        final String key;
+        final long version;
+
+        Expiry(KVEntry entry, String key) {
+            this.expiresAt = entry.getExpiresAt();
+            this.key = key;
+            this.version = entry.getVersion();
+        }
+
+        @Override
+        public int compareTo(Expiry other) {
+            int byTime = Long.compare(expiresAt, other.expiresAt);
+            if (byTime != 0) {
+                return byTime;
+            }
+            int byKey = key.compareTo(other.key);
+            return byKey != 0 ? byKey : Long.compare(version, other.version);
+        }
+    }
+}
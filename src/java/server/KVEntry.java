@@ -0,0 +1,48 @@
+package server;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Значение в KVServer в байтах, как оно пришло в запросе, вместе с номером версии,
+ * под которым оно было записано, и моментом, после которого значение перестаёт читаться.
+ */
+public class KVEntry {
+    public static final long NEVER = Long.MAX_VALUE;
+
+    private final byte[] value;
+    private final long version;
+    private final long expiresAt;
+
+    public KVEntry(byte[] value, long version) {
+        this(value, version, NEVER);
+    }
+
+    /**
+     * expiresAt - момент в миллисекундах System.currentTimeMillis(), NEVER - бессрочно.
+     */
+    public KVEntry(byte[] value, long version, long expiresAt) {
+        this.value = value;
+        this.version = version;
+        this.expiresAt = expiresAt;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    public String getText() {
+        return new String(value, UTF_8);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isExpired(long now) {
+        return expiresAt <= now;
+    }
+}
@@ -2,34 +2,207 @@ package server;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Type;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.regex.Pattern;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpServer;
 
 /**
  * Постман: https://www.getpostman.com/collections/a83b61d9e1c81c10575c
+ * <p>
+ * Версионированное хранилище ключ-значение по HTTP с пространствами имён, журналом изменений и репликацией.
+ * Значения лежат в KVStorage (по умолчанию - в памяти) и отдаются в байтах, как пришли в /save.
  */
 public class KVServer {
     public static final int PORT = 8078;
+    public static final int BINARY_PORT = 8077;
+    // ответ /load-batch больше этого пишется в тело по мере обхода значений, без сборки в памяти
+    public static final int STREAM_THRESHOLD = 64 * 1024;
+    public static final int MAX_SCAN_LIMIT = 1000;
+    public static final int CHANGE_LOG_CAPACITY = 10_000;
+    // на журналы всех пространств имён вместе
+    public static final long CHANGE_LOG_MAX_BYTES = 64L << 20;
+    // так часто истёкшие значения удаляются, даже если записей нет; в журнал они приходят со значением null
+    public static final long EXPIRE_INTERVAL_MILLIS = 1000;
+    public static final long MAX_WATCH_TIMEOUT_MILLIS = 30_000;
+    public static final int MAX_NAMESPACES = 1000;
+    // новый API_TOKEN сверх этого числа отзывает самый старый в пространстве
+    public static final int MAX_TOKENS_PER_NAMESPACE = 100;
+    public static final String DEFAULT_NAMESPACE = "default";
+    private static final String CLIENT_NAMESPACE_PREFIX = "client-";
+    private static final Pattern NAMESPACE_NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    private static final long READ_YOUR_WRITES_TIMEOUT_MILLIS = 1000;
+    private static final long NOT_CONDITIONAL = -2;
+    private static final long NO_TTL = 0;
+    private static final long INVALID_TTL = -1;
+    private static final Type BATCH_TYPE = new TypeToken<Map<String, String>>() {}.getType();
+    private static final Type KEYS_TYPE = new TypeToken<List<String>>() {}.getType();
+    private final int port;
     private final String apiToken;
     private final HttpServer server;
-    private final Map<String, String> data = new HashMap<>();
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final Namespace defaultNamespace;
+    // создание пространств имён под блокировкой этой карты, чтобы не превысить MAX_NAMESPACES
+    private final Map<String, Namespace> namespaces = new HashMap<>();
+    // API_TOKEN клиента - его пространство имён
+    private final Map<String, Namespace> tokens = new ConcurrentHashMap<>();
+    // API_TOKEN, выданные в пространство, от старых к новым; под блокировкой namespaces
+    private final Map<String, Deque<String>> issuedTokens = new HashMap<>();
+    // номер следующего пространства, создаваемого /register без параметров; под блокировкой namespaces
+    private int nextClientNamespace = 1;
+    // байты журналов изменений всех пространств имён
+    private final AtomicLong changeLogBytes = new AtomicLong();
+    private final Function<String, KVStorage> namespaceStorage;
+    private final long namespaceQuotaBytes;
+    private final ScheduledThreadPoolExecutor watchTimer;
+    private final Replicator replicator;
+    private final BinaryServer binaryServer;
+    private final Gson gson = new Gson();
+    private volatile String epoch = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicInteger delayedRequests = new AtomicInteger();
+    private volatile long injectedLatencyMillis;
 
     public KVServer() throws IOException {
-        apiToken = generateApiToken();
-        server = HttpServer.create(new InetSocketAddress("localhost", PORT), 0);
+        this(new InMemoryKVStorage());
+    }
+
+    public KVServer(KVStorage storage) throws IOException {
+        this(PORT, storage);
+    }
+
+    /**
+     * Пул потоков, переданный снаружи, сервер не останавливает.
+     */
+    public KVServer(KVStorage storage, ExecutorService executor) throws IOException {
+        this(PORT, storage, executor, false, null, null, 0, name -> new InMemoryKVStorage(),
+                Namespace.UNLIMITED);
+    }
+
+    public KVServer(int port, KVStorage storage) throws IOException {
+        this(port, storage, defaultExecutor(), true, null, null, 0, name -> new InMemoryKVStorage(),
+                Namespace.UNLIMITED);
+    }
+
+    /**
+     * Пространства имён, созданные через /register?namespace=..., хранят значения в хранилищах,
+     * которые namespaceStorage создаёт по имени пространства, и занимают не больше namespaceQuotaBytes байт каждое.
+     */
+    public KVServer(int port, KVStorage storage, Function<String, KVStorage> namespaceStorage,
+                    long namespaceQuotaBytes) throws IOException {
+        this(port, storage, defaultExecutor(), true, null, null, 0, namespaceStorage, namespaceQuotaBytes);
+    }
+
+    /**
+     * Кроме HTTP на port сервер принимает чтения и безусловные записи по двоичному протоколу (см. BinaryServer)
+     * на binaryPort: без разбора HTTP, с проверкой API_TOKEN один раз на соединение.
+     */
+    public KVServer(int port, KVStorage storage, int binaryPort) throws IOException {
+        this(port, storage, defaultExecutor(), true, null, null, binaryPort, name -> new InMemoryKVStorage(),
+                Namespace.UNLIMITED);
+    }
+
+    /**
+     * Реплика лидера по адресу leaderUrl. После start() догоняет записи лидера в фоне и повторяет их
+     * с версиями лидера, поэтому ETag реплики и лидера совпадают. Реплика принимает только чтение,
+     * повторяет только пространство по умолчанию и токенов не выдаёт. leaderApiToken - API_TOKEN лидера,
+     * его же реплика принимает от клиентов.
+     */
+    public KVServer(int port, KVStorage storage, String leaderUrl, String leaderApiToken) throws IOException {
+        this(port, storage, defaultExecutor(), true, leaderUrl, leaderApiToken, 0, name -> new InMemoryKVStorage(),
+                Namespace.UNLIMITED);
+    }
+
+    private KVServer(int port, KVStorage storage, ExecutorService executor, boolean ownsExecutor,
+                     String leaderUrl, String leaderApiToken, int binaryPort,
+                     Function<String, KVStorage> namespaceStorage, long namespaceQuotaBytes) throws IOException {
+        this.port = port;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.namespaceStorage = namespaceStorage;
+        this.namespaceQuotaBytes = namespaceQuotaBytes;
+        defaultNamespace = new Namespace(DEFAULT_NAMESPACE, storage, Namespace.UNLIMITED, changeLogBytes);
+        namespaces.put(DEFAULT_NAMESPACE, defaultNamespace);
+        if (leaderUrl == null) {
+            replicator = null;
+            apiToken = generateApiToken();
+        } else {
+            replicator = new Replicator(leaderUrl, leaderApiToken, storage, defaultNamespace.changeLog,
+                    leaderEpoch -> epoch = leaderEpoch);
+            apiToken = leaderApiToken;
+        }
+        tokens.put(apiToken, defaultNamespace);
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.setExecutor(executor);
         server.createContext("/register", this::register);
-        server.createContext("/save", this::save);
-        server.createContext("/load", this::load);
+        for (HttpContext context : List.of(server.createContext("/save", this::save),
+                server.createContext("/load", this::load),
+                server.createContext("/save-batch", this::saveBatch),
+                server.createContext("/load-batch", this::loadBatch),
+                server.createContext("/scan", this::scan))) {
+            context.getFilters().add(new LatencyFilter());
+        }
+        server.createContext("/changes", this::changes);
+        server.createContext("/watch", this::watch);
+        server.createContext("/stats", this::stats);
+        watchTimer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "kv-watch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchTimer.setRemoveOnCancelPolicy(true);
+        binaryServer = binaryPort == 0 ? null : new BinaryServer(binaryPort, this, executor);
+    }
+
+    // запросы обрабатываются параллельно, по умолчанию - на пуле по числу ядер
+    private static ExecutorService defaultExecutor() {
+        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
     }
 
+    /**
+     * Каждая запись получает новый номер версии, /load и /save возвращают его в ETag. С If-None-Match
+     * /load отвечает 304 без тела, если значение не менялось. ETag включает момент запуска сервера,
+     * поэтому после перезапуска старые версии не совпадут.
+     */
     private void load(HttpExchange h) throws IOException {
         try {
-            if (!hasAuth(h)) {
+            Namespace namespace = namespaceOf(h);
+            if (namespace == null) {
                 System.out.println("Запрос неавторизован, нужен параметр в query API_TOKEN со значением апи-ключа");
                 h.sendResponseHeaders(403, 0);
                 return;
@@ -41,13 +214,22 @@ public class KVServer {
                     h.sendResponseHeaders(400, 0);
                     return;
                 }
-                String value = data.get(key);
-                if (value == null) {
+                if (!caughtUp(h, namespace)) {
+                    return;
+                }
+                KVEntry entry = namespace.storage.get(key);
+                if (entry == null) {
                     System.out.println("Не найдено значение для ключа " + key);
                     h.sendResponseHeaders(404, 0);
                     return;
                 }
-                sendText(h, value);
+                String etag = etag(entry.getVersion());
+                h.getResponseHeaders().add("ETag", etag);
+                if (etag.equals(h.getRequestHeaders().getFirst("If-None-Match"))) {
+                    h.sendResponseHeaders(304, -1);
+                    return;
+                }
+                sendBytes(h, entry.getValue());
             } else {
                 System.out.println("/load ждёт GET-запрос, а получил: " + h.getRequestMethod());
                 h.sendResponseHeaders(405, 0);
@@ -57,15 +239,26 @@ public class KVServer {
         }
     }
 
-
+    /**
+     * С If-Match, If-None-Match: * или expectedVersion значение записывается, только если версия ключа
+     * не изменилась (для * и expectedVersion=0 - если ключа ещё нет), иначе ответ 409 с ETag текущего значения.
+     * ttl безусловной записи - срок жизни значения в миллисекундах. Ответ содержит версию в X-Version,
+     * запись сверх квоты пространства отклоняется с кодом 507.
+     */
     private void save(HttpExchange h) throws IOException {
         try {
             System.out.println("\n/save");
-            if (!hasAuth(h)) {
+            Namespace namespace = namespaceOf(h);
+            if (namespace == null) {
                 System.out.println("Запрос неавторизован, нужен параметр в query API_TOKEN со значением апи-ключа");
                 h.sendResponseHeaders(403, 0);
                 return;
             }
+            if (replicator != null) {
+                System.out.println("Реплика принимает только чтение, записи отправляются лидеру");
+                h.sendResponseHeaders(405, 0);
+                return;
+            }
             if ("POST".equals(h.getRequestMethod())) {
                 String key = h.getRequestURI().getPath().substring("/save/".length());
                 if (key.isEmpty()) {
@@ -73,14 +266,48 @@ public class KVServer {
                     h.sendResponseHeaders(400, 0);
                     return;
                 }
-                String value = readText(h);
-                if (value.isEmpty()) {
+                byte[] value = readBytes(h);
+                if (value.length == 0) {
                     System.out.println("Value для сохранения пустой. value указывается в теле запроса");
                     h.sendResponseHeaders(400, 0);
                     return;
                 }
-                data.put(key, value);
+                long expectedVersion = expectedVersion(h);
+                long ttlMillis = ttlMillis(h);
+                if (ttlMillis == INVALID_TTL || ttlMillis != NO_TTL && expectedVersion != NOT_CONDITIONAL) {
+                    System.out.println("ttl указывается в миллисекундах больше нуля и только для безусловной записи");
+                    h.sendResponseHeaders(400, 0);
+                    return;
+                }
+                long version;
+                try {
+                    if (expectedVersion != NOT_CONDITIONAL) {
+                        version = namespace.putIfVersion(key, value, expectedVersion);
+                    } else {
+                        version = ttlMillis == NO_TTL ? namespace.put(key, value)
+                                : namespace.put(key, value, ttlMillis);
+                    }
+                } catch (UnsupportedOperationException e) {
+                    System.out.println(e.getMessage());
+                    h.sendResponseHeaders(501, 0);
+                    return;
+                } catch (QuotaExceededException e) {
+                    System.out.println(e.getMessage());
+                    h.sendResponseHeaders(507, 0);
+                    return;
+                }
+                if (version == KVStorage.CONFLICT) {
+                    KVEntry current = namespace.storage.get(key);
+                    if (current != null) {
+                        h.getResponseHeaders().add("ETag", etag(current.getVersion()));
+                    }
+                    System.out.println("Значение для ключа " + key + " изменилось с ожидаемой версии, не сохранено");
+                    h.sendResponseHeaders(409, 0);
+                    return;
+                }
                 System.out.println("Значение для ключа " + key + " успешно обновлено!");
+                h.getResponseHeaders().add("ETag", etag(version));
+                h.getResponseHeaders().add("X-Version", String.valueOf(version));
                 h.sendResponseHeaders(200, 0);
             } else {
                 System.out.println("/save ждёт POST-запрос, а получил: " + h.getRequestMethod());
@@ -91,44 +318,758 @@ public class KVServer {
         }
     }
 
-    private void register(HttpExchange h) throws IOException {
+    /**
+     * Сохраняет все пары из JSON-объекта {"key": "value", ...} в теле запроса.
+     * Пакет применяется целиком или не применяется вовсе, все значения получают одну версию.
+     * Тело разбирается прямо из потока запроса.
+     */
+    private void saveBatch(HttpExchange h) throws IOException {
         try {
-            System.out.println("\n/register");
+            System.out.println("\n/save-batch");
+            Namespace namespace = namespaceOf(h);
+            if (namespace == null) {
+                System.out.println("Запрос неавторизован, нужен параметр в query API_TOKEN со значением апи-ключа");
+                h.sendResponseHeaders(403, 0);
+                return;
+            }
+            if (replicator != null) {
+                System.out.println("Реплика принимает только чтение, записи отправляются лидеру");
+                h.sendResponseHeaders(405, 0);
+                return;
+            }
+            if ("POST".equals(h.getRequestMethod())) {
+                Map<String, byte[]> values = readBatch(h);
+                if (values == null || values.isEmpty()) {
+                    System.out.println("Пакет для сохранения пустой. Пары key-value указываются в теле запроса");
+                    h.sendResponseHeaders(400, 0);
+                    return;
+                }
+                for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+                    if (entry.getKey().isEmpty() || entry.getValue() == null || entry.getValue().length == 0) {
+                        System.out.println("В пакете есть пустой key или value, пакет не сохранён");
+                        h.sendResponseHeaders(400, 0);
+                        return;
+                    }
+                }
+                long version;
+                try {
+                    version = namespace.putAll(values);
+                } catch (QuotaExceededException e) {
+                    System.out.println(e.getMessage());
+                    h.sendResponseHeaders(507, 0);
+                    return;
+                }
+                System.out.println("Пакет из " + values.size() + " значений успешно сохранён!");
+                h.getResponseHeaders().add("ETag", etag(version));
+                h.getResponseHeaders().add("X-Version", String.valueOf(version));
+                h.sendResponseHeaders(200, 0);
+            } else {
+                System.out.println("/save-batch ждёт POST-запрос, а получил: " + h.getRequestMethod());
+                h.sendResponseHeaders(405, 0);
+            }
+        } finally {
+            h.close();
+        }
+    }
+
+    /**
+     * Принимает JSON-массив ключей и возвращает JSON-объект с найденными значениями.
+     * Отсутствующие ключи в ответ не попадают.
+     * <p>
+     * Если вместо массива передан объект {"key": "etag", ...}, ответ - объект
+     * {"key": {"etag": "...", "value": "..."}, ...}, где value нет у значений, чей ETag совпал с переданным.
+     */
+    private void loadBatch(HttpExchange h) throws IOException {
+        try {
+            Namespace namespace = namespaceOf(h);
+            if (namespace == null) {
+                System.out.println("Запрос неавторизован, нужен параметр в query API_TOKEN со значением апи-ключа");
+                h.sendResponseHeaders(403, 0);
+                return;
+            }
+            if ("POST".equals(h.getRequestMethod())) {
+                JsonElement request = parseJson(readText(h), JsonElement.class);
+                if (!caughtUp(h, namespace)) {
+                    return;
+                }
+                if (request != null && request.isJsonObject()) {
+                    Map<String, String> etags = parseJson(request, BATCH_TYPE);
+                    if (etags != null) {
+                        sendEntries(h, namespace.storage.getAll(etags.keySet()), etags, false);
+                        return;
+                    }
+                }
+                List<String> keys = request != null && request.isJsonArray() ? parseJson(request, KEYS_TYPE) : null;
+                if (keys == null) {
+                    System.out.println("Список ключей для загрузки пустой. Ключи указываются в теле запроса");
+                    h.sendResponseHeaders(400, 0);
+                    return;
+                }
+                sendEntries(h, namespace.storage.getAll(keys), null, false);
+            } else {
+                System.out.println("/load-batch ждёт POST-запрос, а получил: " + h.getRequestMethod());
+                h.sendResponseHeaders(405, 0);
+            }
+        } finally {
+            h.close();
+        }
+    }
+
+    // без etags - объект key: value, с etags - объект key: {etag, value}, с versions - key: {version, value}
+    private void sendEntries(HttpExchange h, Map<String, KVEntry> entries, Map<String, String> etags,
+                             boolean versions) throws IOException {
+        long size = 0;
+        for (KVEntry entry : entries.values()) {
+            size += entry.getValue().length;
+        }
+        if (size <= STREAM_THRESHOLD) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream((int) size + 64 * entries.size() + 2);
+            writeEntries(new OutputStreamWriter(body, UTF_8), entries, etags, versions);
+            sendBytes(h, body.toByteArray());
+            return;
+        }
+        h.getResponseHeaders().add("Content-Type", "application/json");
+        h.sendResponseHeaders(200, 0);
+        writeEntries(new BufferedWriter(new OutputStreamWriter(h.getResponseBody(), UTF_8), 1 << 16),
+                entries, etags, versions);
+    }
+
+    private void writeEntries(Writer out, Map<String, KVEntry> entries, Map<String, String> etags,
+                              boolean versions) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        for (Map.Entry<String, KVEntry> entry : entries.entrySet()) {
+            writer.name(entry.getKey());
+            if (versions) {
+                writer.beginObject();
+                writer.name("version").value(entry.getValue().getVersion());
+                writer.name("value").value(entry.getValue().getText());
+                writer.endObject();
+                continue;
+            }
+            if (etags == null) {
+                writer.value(entry.getValue().getText());
+                continue;
+            }
+            String etag = etag(entry.getValue().getVersion());
+            writer.beginObject();
+            writer.name("etag").value(etag);
+            if (!etag.equals(etags.get(entry.getKey()))) {
+                writer.name("value").value(entry.getValue().getText());
+            }
+            writer.endObject();
+        }
+        writer.endObject();
+        writer.flush();
+    }
+
+    /**
+     * GET /scan?prefix=...&after=...&limit=... возвращает JSON-объект с записями, чьи ключи начинаются
+     * с prefix и больше after, в порядке ключей. Если записей ровно limit, следующую страницу
+     * можно запросить с after, равным последнему ключу. С versions=true каждое значение приходит
+     * вместе с версией: {"key": {"version": ..., "value": ...}}.
+     */
+    private void scan(HttpExchange h) throws IOException {
+        try {
+            Namespace namespace = namespaceOf(h);
+            if (namespace == null) {
+                System.out.println("Запрос неавторизован, нужен параметр в query API_TOKEN со значением апи-ключа");
+                h.sendResponseHeaders(403, 0);
+                return;
+            }
+            if ("GET".equals(h.getRequestMethod())) {
+                Map<String, String> query = queryParams(h);
+                int limit;
+                try {
+                    limit = Integer.parseInt(query.getOrDefault("limit", String.valueOf(MAX_SCAN_LIMIT)));
+                } catch (NumberFormatException e) {
+                    limit = 0;
+                }
+                if (limit <= 0 || limit > MAX_SCAN_LIMIT) {
+                    System.out.println("limit для /scan должен быть от 1 до " + MAX_SCAN_LIMIT);
+                    h.sendResponseHeaders(400, 0);
+                    return;
+                }
+                if (!caughtUp(h, namespace)) {
+                    return;
+                }
+                sendEntries(h, namespace.storage.scan(query.getOrDefault("prefix", ""), query.get("after"), limit),
+                        null, "true".equals(query.get("versions")));
+            } else {
+                System.out.println("/scan ждёт GET-запрос, а получил: " + h.getRequestMethod());
+                h.sendResponseHeaders(405, 0);
+            }
+        } finally {
+            h.close();
+        }
+    }
+
+    /**
+     * GET /changes?since=...&limit=... возвращает {"epoch": ..., "version": ..., "changes": [{"version": ...,
+     * "values": {...}}, ...]} с записями после версии since. Если они уже вытеснены из журнала
+     * или since больше текущей версии (версия прошлого запуска сервера), отвечает 410 с epoch и version:
+     * реплике нужно перечитать хранилище и продолжить с этой версии.
+     */
+    private void changes(HttpExchange h) throws IOException {
+        try {
+            Namespace namespace = namespaceOf(h);
+            if (namespace == null) {
+                System.out.println("Запрос неавторизован, нужен параметр в query API_TOKEN со значением апи-ключа");
+                h.sendResponseHeaders(403, 0);
+                return;
+            }
+            if ("GET".equals(h.getRequestMethod())) {
+                Map<String, String> query = queryParams(h);
+                long since;
+                int limit;
+                try {
+                    since = Long.parseLong(query.getOrDefault("since", "0"));
+                    limit = Integer.parseInt(query.getOrDefault("limit", String.valueOf(MAX_SCAN_LIMIT)));
+                } catch (NumberFormatException e) {
+                    System.out.println("since и limit для /changes должны быть числами");
+                    h.sendResponseHeaders(400, 0);
+                    return;
+                }
+                writeChanges(h, namespace, since, limit);
+            } else {
+                System.out.println("/changes ждёт GET-запрос, а получил: " + h.getRequestMethod());
+                h.sendResponseHeaders(405, 0);
+            }
+        } finally {
+            h.close();
+        }
+    }
+
+    /**
+     * GET /watch?since=...&limit=...&timeout=... отвечает так же, как /changes, но если записей после since
+     * ещё нет, держит запрос до первой из них или до timeout миллисекунд (не больше MAX_WATCH_TIMEOUT_MILLIS)
+     * и тогда возвращает пустой список. Без since сразу возвращает текущую версию, с которой начинается подписка.
+     * Ожидающий запрос не занимает поток пула: ответ пишет тот, кто первым заберёт его из журнала.
+     */
+    private void watch(HttpExchange h) throws IOException {
+        boolean parked = false;
+        try {
+            Namespace namespace = namespaceOf(h);
+            if (namespace == null) {
+                System.out.println("Запрос неавторизован, нужен параметр в query API_TOKEN со значением апи-ключа");
+                h.sendResponseHeaders(403, 0);
+                return;
+            }
             if ("GET".equals(h.getRequestMethod())) {
-                sendText(h, apiToken);
+                Map<String, String> query = queryParams(h);
+                long since;
+                int limit;
+                long timeoutMillis;
+                try {
+                    since = Long.parseLong(query.getOrDefault("since",
+                            String.valueOf(namespace.changeLog.lastVersion())));
+                    limit = Integer.parseInt(query.getOrDefault("limit", String.valueOf(MAX_SCAN_LIMIT)));
+                    timeoutMillis = Long.parseLong(query.getOrDefault("timeout",
+                            String.valueOf(MAX_WATCH_TIMEOUT_MILLIS)));
+                } catch (NumberFormatException e) {
+                    System.out.println("since, limit и timeout для /watch должны быть числами");
+                    h.sendResponseHeaders(400, 0);
+                    return;
+                }
+                if (timeoutMillis > 0 && query.containsKey("since")) {
+                    Watch watch = new Watch(h, namespace, since, limit);
+                    parked = namespace.changeLog.watch(since, watch);
+                    if (parked) {
+                        watch.timeout = watchTimer.schedule(watch::expire,
+                                Math.min(timeoutMillis, MAX_WATCH_TIMEOUT_MILLIS), TimeUnit.MILLISECONDS);
+                        return;
+                    }
+                }
+                writeChanges(h, namespace, since, limit);
             } else {
+                System.out.println("/watch ждёт GET-запрос, а получил: " + h.getRequestMethod());
+                h.sendResponseHeaders(405, 0);
+            }
+        } finally {
+            if (!parked) {
+                h.close();
+            }
+        }
+    }
+
+    // since больше последней версии - версия другого запуска сервера, её изменений в журнале нет
+    private void writeChanges(HttpExchange h, Namespace namespace, long since, int limit) throws IOException {
+        long version = namespace.changeLog.lastVersion();
+        List<ChangeLog.Change> changes = since > version ? null
+                : namespace.changeLog.since(since, Math.min(Math.max(limit, 1), MAX_SCAN_LIMIT));
+        h.getResponseHeaders().add("Content-Type", "application/json");
+        h.sendResponseHeaders(changes == null ? 410 : 200, 0);
+        JsonWriter writer = new JsonWriter(new BufferedWriter(
+                new OutputStreamWriter(h.getResponseBody(), UTF_8), 1 << 16));
+        writer.beginObject();
+        writer.name("epoch").value(epoch);
+        writer.name("version").value(version);
+        if (changes != null) {
+            writer.name("changes").beginArray();
+            for (ChangeLog.Change change : changes) {
+                writer.beginObject();
+                writer.name("version").value(change.version);
+                writer.name("values").beginObject();
+                for (Map.Entry<String, byte[]> value : change.values.entrySet()) {
+                    writer.name(value.getKey());
+                    if (value.getValue() == null) {
+                        writer.nullValue();
+                    } else {
+                        writer.value(new String(value.getValue(), UTF_8));
+                    }
+                }
+                writer.endObject();
+                writer.endObject();
+            }
+            writer.endArray();
+        }
+        writer.endObject();
+        writer.flush();
+    }
+
+    /**
+     * GET /stats возвращает {"usedBytes": ..., "evictions": ..., "expirations": ..., "changeLogBytes": ...}
+     * для пространства имён API_TOKEN; -1 - хранилище этого не считает. changeLogBytes - общий для всех пространств.
+     */
+    private void stats(HttpExchange h) throws IOException {
+        try {
+            Namespace namespace = namespaceOf(h);
+            if (namespace == null) {
+                System.out.println("Запрос неавторизован, нужен параметр в query API_TOKEN со значением апи-ключа");
+                h.sendResponseHeaders(403, 0);
+                return;
+            }
+            if ("GET".equals(h.getRequestMethod())) {
+                Map<String, Long> stats = new LinkedHashMap<>();
+                stats.put("usedBytes", namespace.storage.getUsedBytes());
+                stats.put("evictions", namespace.storage.getEvictions());
+                stats.put("expirations", namespace.storage.getExpirations());
+                stats.put("changeLogBytes", namespace.changeLog.getUsedBytes());
+                sendText(h, gson.toJson(stats));
+            } else {
+                System.out.println("/stats ждёт GET-запрос, а получил: " + h.getRequestMethod());
+                h.sendResponseHeaders(405, 0);
+            }
+        } finally {
+            h.close();
+        }
+    }
+
+    // реплика ждёт, пока догонит версию из X-Min-Version, которую клиент уже записал на лидер; не догнала - 503
+    private boolean caughtUp(HttpExchange h, Namespace namespace) throws IOException {
+        String minVersion = h.getRequestHeaders().getFirst("X-Min-Version");
+        if (minVersion == null) {
+            return true;
+        }
+        try {
+            if (namespace.changeLog.await(Long.parseLong(minVersion), READ_YOUR_WRITES_TIMEOUT_MILLIS)) {
+                return true;
+            }
+        } catch (NumberFormatException e) {
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("Реплика ещё не получила версию " + minVersion);
+        h.sendResponseHeaders(503, 0);
+        return false;
+    }
+
+    /**
+     * API_TOKEN сервера печатается при запуске и открывает пространство по умолчанию, /register его не отдаёт.
+     * Без параметров создаёт клиенту новое пространство, с namespace выдаёт API_TOKEN в пространство с этим именем,
+     * а в уже существующее - только с API_TOKEN этого пространства или сервера. С одним API_TOKEN выдаёт ещё один
+     * в его пространство. У пространства своё хранилище, журнал и квота, его API_TOKEN видят только его ключи.
+     */
+    private void register(HttpExchange h) throws IOException {
+        try {
+            System.out.println("\n/register");
+            if (!"GET".equals(h.getRequestMethod())) {
                 System.out.println("/register ждёт GET-запрос, а получил " + h.getRequestMethod());
                 h.sendResponseHeaders(405, 0);
+                return;
+            }
+            if (replicator != null) {
+                System.out.println("Реплика не выдаёт API_TOKEN, её клиенты работают с API_TOKEN лидера");
+                h.sendResponseHeaders(405, 0);
+                return;
+            }
+            Map<String, String> params = queryParams(h);
+            String name = params.get("namespace");
+            String credential = params.get("API_TOKEN");
+            Namespace owner = namespaceOf(credential);
+            if (credential != null && owner == null) {
+                System.out.println("Сервер не выдавал API_TOKEN " + credential);
+                h.sendResponseHeaders(403, 0);
+                return;
+            }
+            if (name != null && !NAMESPACE_NAME.matcher(name).matches()) {
+                System.out.println("Имя пространства имён - от 1 до 64 латинских букв, цифр, _ и -");
+                h.sendResponseHeaders(400, 0);
+                return;
             }
+            Namespace namespace = null;
+            boolean forbidden = false;
+            try {
+                synchronized (namespaces) {
+                    if (name == null) {
+                        namespace = owner != null ? owner : createClientNamespace();
+                    } else {
+                        Namespace existing = namespaces.get(name);
+                        forbidden = existing != null && existing != owner && !apiToken.equals(credential);
+                        if (!forbidden) {
+                            namespace = createNamespace(name);
+                        }
+                    }
+                }
+            } catch (KVStorageException | IllegalArgumentException e) {
+                System.out.println("Не удалось создать пространство имён " + name + ": " + e.getMessage());
+                h.sendResponseHeaders(500, 0);
+                return;
+            }
+            if (forbidden) {
+                System.out.println("API_TOKEN в пространство имён " + name
+                        + " выдаётся только с API_TOKEN этого пространства или сервера");
+                h.sendResponseHeaders(403, 0);
+                return;
+            }
+            if (namespace == null) {
+                System.out.println("Создано максимальное число пространств имён: " + MAX_NAMESPACES);
+                h.sendResponseHeaders(507, 0);
+                return;
+            }
+            sendText(h, issueToken(namespace));
         } finally {
             h.close();
         }
     }
 
     public void start() {
-        System.out.println("Запускаем сервер на порту " + PORT);
-        System.out.println("Открой в браузере http://localhost:" + PORT + "/");
+        System.out.println("Запускаем сервер на порту " + port);
+        System.out.println("Открой в браузере http://localhost:" + port + "/");
         System.out.println("API_TOKEN: " + apiToken);
         server.start();
+        if (binaryServer != null) {
+            binaryServer.start();
+        }
+        if (replicator != null) {
+            replicator.start();
+        }
+        watchTimer.scheduleWithFixedDelay(this::expire, EXPIRE_INTERVAL_MILLIS, EXPIRE_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    // исключение остановило бы периодический запуск, поэтому оно только печатается
+    private void expire() {
+        List<Namespace> current;
+        synchronized (namespaces) {
+            current = List.copyOf(namespaces.values());
+        }
+        for (Namespace namespace : current) {
+            try {
+                namespace.expire();
+            } catch (RuntimeException e) {
+                System.out.println("Не удалось удалить истёкшие значения в " + namespace.name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public void stop() {
+        if (replicator != null) {
+            replicator.stop();
+        }
+        server.stop(0);
+        if (binaryServer != null) {
+            binaryServer.stop();
+        }
+        watchTimer.shutdownNow();
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+        System.out.println("Остановили сервер на порту " + port);
+    }
+
+    /**
+     * Для проверки клиентов: следующие requests запросов к /save, /load, /save-batch, /load-batch и /scan
+     * сервер начнёт обрабатывать только через millis миллисекунд.
+     */
+    public void injectLatency(long millis, int requests) {
+        injectedLatencyMillis = millis;
+        delayedRequests.set(requests);
+    }
+
+    boolean isReplica() {
+        return replicator != null;
+    }
+
+    /**
+     * Пространство имён, выданное вместе с token, или null, если сервер такой API_TOKEN не выдавал.
+     */
+    Namespace namespaceOf(String token) {
+        return token == null ? null : tokens.get(token);
+    }
+
+    String getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * API_TOKEN сервера: открывает пространство имён по умолчанию и позволяет получить через /register
+     * API_TOKEN в любое пространство.
+     */
+    public String getApiToken() {
+        return apiToken;
+    }
+
+    ExecutorService getExecutor() {
+        return executor;
+    }
+
+    // null, если пространства ещё нет, а создавать новые уже нельзя
+    private Namespace createNamespace(String name) {
+        synchronized (namespaces) {
+            Namespace namespace = namespaces.get(name);
+            if (namespace == null && namespaces.size() < MAX_NAMESPACES) {
+                namespace = new Namespace(name, namespaceStorage.apply(name), namespaceQuotaBytes, changeLogBytes);
+                namespaces.put(name, namespace);
+            }
+            return namespace;
+        }
+    }
+
+    // null, если создавать новые пространства уже нельзя
+    private Namespace createClientNamespace() {
+        synchronized (namespaces) {
+            String name = CLIENT_NAMESPACE_PREFIX + nextClientNamespace++;
+            while (namespaces.containsKey(name)) {
+                name = CLIENT_NAMESPACE_PREFIX + nextClientNamespace++;
+            }
+            return createNamespace(name);
+        }
+    }
+
+    // сверх MAX_TOKENS_PER_NAMESPACE отзывается самый старый API_TOKEN пространства
+    private String issueToken(Namespace namespace) {
+        String token = generateApiToken();
+        synchronized (namespaces) {
+            Deque<String> issued = issuedTokens.computeIfAbsent(namespace.name, name -> new ArrayDeque<>());
+            issued.addLast(token);
+            tokens.put(token, namespace);
+            if (issued.size() > MAX_TOKENS_PER_NAMESPACE) {
+                tokens.remove(issued.removeFirst());
+            }
+        }
+        return token;
     }
 
     private String generateApiToken() {
-        return "" + System.currentTimeMillis();
+        return UUID.randomUUID().toString();
+    }
+
+    private Namespace namespaceOf(HttpExchange h) {
+        return namespaceOf(queryParams(h).get("API_TOKEN"));
     }
 
-    protected boolean hasAuth(HttpExchange h) {
+    private Map<String, String> queryParams(HttpExchange h) {
+        Map<String, String> params = new HashMap<>();
         String rawQuery = h.getRequestURI().getRawQuery();
-        return rawQuery != null && (rawQuery.contains("API_TOKEN=" + apiToken) || rawQuery.contains("API_TOKEN=DEBUG"));
+        if (rawQuery == null) {
+            return params;
+        }
+        for (String param : rawQuery.split("&")) {
+            int separator = param.indexOf('=');
+            if (separator > 0) {
+                params.put(URLDecoder.decode(param.substring(0, separator), UTF_8),
+                        URLDecoder.decode(param.substring(separator + 1), UTF_8));
+            }
+        }
+        return params;
+    }
+
+    // ожидаемая версия из If-Match, If-None-Match: * или expectedVersion;
+    // ETag другого запуска сервера не совпадает ни с какой версией
+    private long expectedVersion(HttpExchange h) {
+        String ifMatch = h.getRequestHeaders().getFirst("If-Match");
+        if (ifMatch != null) {
+            return versionOf(ifMatch);
+        }
+        if ("*".equals(h.getRequestHeaders().getFirst("If-None-Match"))) {
+            return KVStorage.ABSENT;
+        }
+        String expectedVersion = queryParams(h).get("expectedVersion");
+        if (expectedVersion != null) {
+            try {
+                return Long.parseLong(expectedVersion);
+            } catch (NumberFormatException e) {
+                return KVStorage.CONFLICT;
+            }
+        }
+        return NOT_CONDITIONAL;
+    }
+
+    // версия из ETag этого запуска сервера, для чужого ETag - CONFLICT
+    long versionOf(String etag) {
+        String prefix = "\"" + epoch + ".";
+        if (!etag.startsWith(prefix) || !etag.endsWith("\"")) {
+            return KVStorage.CONFLICT;
+        }
+        try {
+            return Long.parseLong(etag.substring(prefix.length(), etag.length() - 1));
+        } catch (NumberFormatException e) {
+            return KVStorage.CONFLICT;
+        }
+    }
+
+    private long ttlMillis(HttpExchange h) {
+        String ttl = queryParams(h).get("ttl");
+        if (ttl == null) {
+            return NO_TTL;
+        }
+        try {
+            long ttlMillis = Long.parseLong(ttl);
+            return ttlMillis > 0 ? ttlMillis : INVALID_TTL;
+        } catch (NumberFormatException e) {
+            return INVALID_TTL;
+        }
+    }
+
+    String etag(long version) {
+        return "\"" + epoch + "." + version + "\"";
+    }
+
+    private <T> T parseJson(String json, Type type) {
+        try {
+            return gson.fromJson(json, type);
+        } catch (JsonParseException e) {
+            System.out.println("Тело запроса не является корректным JSON: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private <T> T parseJson(JsonElement json, Type type) {
+        try {
+            return gson.fromJson(json, type);
+        } catch (JsonParseException e) {
+            System.out.println("Тело запроса не является корректным JSON: " + e.getMessage());
+            return null;
+        }
     }
 
     protected String readText(HttpExchange h) throws IOException {
-        return new String(h.getRequestBody().readAllBytes(), UTF_8);
+        return new String(readBytes(h), UTF_8);
+    }
+
+    // при известной длине тело читается сразу в массив нужного размера
+    protected byte[] readBytes(HttpExchange h) throws IOException {
+        String contentLength = h.getRequestHeaders().getFirst("Content-Length");
+        if (contentLength != null) {
+            try {
+                return h.getRequestBody().readNBytes(Integer.parseInt(contentLength));
+            } catch (NumberFormatException e) {
+                System.out.println("Некорректный заголовок Content-Length: " + contentLength);
+            }
+        }
+        return h.getRequestBody().readAllBytes();
+    }
+
+    // значения разбираются из тела запроса по мере чтения, null на месте значения остаётся null
+    private Map<String, byte[]> readBatch(HttpExchange h) {
+        Map<String, byte[]> values = new LinkedHashMap<>();
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(h.getRequestBody(), UTF_8));
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String key = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    values.put(key, null);
+                } else {
+                    values.put(key, reader.nextString().getBytes(UTF_8));
+                }
+            }
+            reader.endObject();
+            return values;
+        } catch (IOException | IllegalStateException e) {
+            System.out.println("Тело запроса не является корректным JSON: " + e.getMessage());
+            return null;
+        }
     }
 
     protected void sendText(HttpExchange h, String text) throws IOException {
-        byte[] resp = text.getBytes(UTF_8);
+        sendBytes(h, text.getBytes(UTF_8));
+    }
+
+    protected void sendBytes(HttpExchange h, byte[] resp) throws IOException {
         h.getResponseHeaders().add("Content-Type", "application/json");
         h.sendResponseHeaders(200, resp.length);
         h.getResponseBody().write(resp);
     }
-}
\ No newline at end of file
+
+    private class LatencyFilter extends Filter {
+
+        @Override
+        public void doFilter(HttpExchange h, Chain chain) throws IOException {
+            if (delayedRequests.getAndUpdate(left -> Math.max(left - 1, 0)) > 0) {
+                try {
+                    Thread.sleep(injectedLatencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            chain.doFilter(h);
+        }
+
+        @Override
+        public String description() {
+            return "Искусственная задержка ответа";
+        }
+    }
+
+    // ожидающий /watch: отвечает либо запись в журнал, либо таймаут - кто первым заберёт его из журнала
+    private class Watch implements Runnable {
+        private final HttpExchange h;
+        private final Namespace namespace;
+        private final long since;
+        private final int limit;
+        private volatile ScheduledFuture<?> timeout;
+
+        Watch(HttpExchange h, Namespace namespace, long since, int limit) {
+            this.h = h;
+            this.namespace = namespace;
+            this.since = since;
+            this.limit = limit;
+        }
+
+        // вызывается журналом под его блокировкой, поэтому ответ пишется в пуле запросов
+        @Override
+        public void run() {
+            ScheduledFuture<?> pending = timeout;
+            if (pending != null) {
+                pending.cancel(false);
+            }
+            respond();
+        }
+
+        void expire() {
+            if (namespace.changeLog.unwatch(this)) {
+                respond();
+            }
+        }
+
+        private void respond() {
+            try {
+                executor.execute(() -> {
+                    try {
+                        writeChanges(h, namespace, since, limit);
+                    } catch (IOException e) {
+                        System.out.println("Не удалось ответить на /watch: " + e.getMessage());
+                    } finally {
+                        h.close();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                h.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package server;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * Хранилище значений KVServer. Методы вызываются из нескольких потоков одновременно:
+ * запись одного ключа атомарна, пакет записывается целиком и читается целиком.
+ * Ключи упорядочены, поэтому их можно перебирать по префиксу страницами.
+ */
+public interface KVStorage {
+
+    /**
+     * Версия отсутствующего ключа для putIfVersion.
+     */
+    long ABSENT = 0;
+
+    /**
+     * Результат putIfVersion, если текущая версия ключа не совпала с ожидаемой.
+     */
+    long CONFLICT = -1;
+
+    KVEntry get(String key);
+
+    /**
+     * Возвращает записи по найденным ключам. Пакет, записанный через putAll, виден либо целиком, либо никак.
+     */
+    Map<String, KVEntry> getAll(Collection<String> keys);
+
+    /**
+     * Возвращает до limit записей с ключами, начинающимися с prefix и большими after, в порядке ключей.
+     * after может быть null, тогда перебор идёт с начала префикса.
+     */
+    Map<String, KVEntry> scan(String prefix, String after, int limit);
+
+    /**
+     * Сохраняет значение и возвращает его новую версию.
+     */
+    long put(String key, byte[] value);
+
+    /**
+     * Сохраняет значение, которое перестаёт читаться через ttlMillis миллисекунд, и возвращает его новую версию.
+     *
+     * @throws UnsupportedOperationException если хранилище не поддерживает срок жизни значений
+     */
+    default long put(String key, byte[] value, long ttlMillis) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " не поддерживает срок жизни значений");
+    }
+
+    /**
+     * Сохраняет значение, только если текущая версия ключа равна expectedVersion (ABSENT - ключа ещё нет).
+     * Возвращает новую версию или CONFLICT.
+     */
+    long putIfVersion(String key, byte[] value, long expectedVersion);
+
+    /**
+     * Сохраняет все значения под одной новой версией и возвращает её.
+     */
+    long putAll(Map<String, byte[]> values);
+
+    /**
+     * Записывает значения под версией, присвоенной другим сервером: так реплика повторяет записи лидера.
+     * Значение null удаляет ключ.
+     */
+    void apply(long version, Map<String, byte[]> values);
+
+    /**
+     * Наибольшая выданная версия.
+     */
+    long lastVersion();
+
+    /**
+     * Сколько байт занимают хранимые значения или -1, если хранилище этого не считает.
+     */
+    default long getUsedBytes() {
+        return -1;
+    }
+
+    /**
+     * Сколько ключей хранилище вытеснило из-за бюджета памяти или -1, если оно ничего не вытесняет.
+     */
+    default long getEvictions() {
+        return -1;
+    }
+
+    /**
+     * Сколько значений хранилище удалило по истечении срока жизни или -1, если срока жизни нет.
+     */
+    default long getExpirations() {
+        return -1;
+    }
+
+    /**
+     * Задаёт, кому сообщать о ключах, которые хранилище удалило само: по сроку жизни или вытеснением.
+     * Хранилище, которое само ключей не удаляет, listener не вызывает.
+     */
+    default void setRemovalListener(RemovalListener listener) {
+    }
+
+    /**
+     * Удаляет значения, срок жизни которых истёк, под новой версией и сообщает о них RemovalListener.
+     */
+    default void expire() {
+    }
+
+    /**
+     * Получает ключи, удалённые хранилищем без запроса на удаление.
+     */
+    interface RemovalListener {
+
+        /**
+         * Ключи удалены под версией version. Удалённые во время записи получают версию этой записи,
+         * и listener вызывается в потоке записи до её возврата.
+         */
+        void removed(long version, Collection<String> keys);
+    }
+
+    /**
+     * Часть упорядоченной карты, с которой начинается перебор по префиксу после ключа after.
+     */
+    static <V> NavigableMap<String, V> range(NavigableMap<String, V> map, String prefix, String after) {
+        if (after == null || after.compareTo(prefix) < 0) {
+            return map.tailMap(prefix, true);
+        }
+        return map.tailMap(after, false);
+    }
+}
@@ -0,0 +1,12 @@
+package server;
+
+public class KVStorageException extends RuntimeException {
+
+    public KVStorageException(String message, Exception e) {
+        super(message, e);
+    }
+
+    public KVStorageException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,477 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Хранилище в файле-журнале. Каждая запись дописывается в конец журнала, в памяти хранится только
+ * индекс ключ - смещение значения в файле. Запись журнала: длина, CRC32 и пакет значений под одной версией,
+ * поэтому пакет после сбоя восстанавливается целиком или не восстанавливается вовсе.
+ * Удаление ключа через apply записывается как значение длиной -1.
+ * <p>
+ * При открытии журнал читается от начала, индекс строится заново, а недописанный хвост обрезается.
+ * Когда устаревшие значения занимают больше половины журнала, он в фоне переписывается
+ * только с актуальными значениями. Записи во время переписывания не блокируются.
+ */
+public class LogStructuredKVStorage implements KVStorage, Closeable {
+
+    /**
+     * Когда журнал сбрасывается на диск: после каждой записи, раз в syncIntervalMillis или на усмотрение ОС.
+     */
+    public enum SyncPolicy {
+        ALWAYS,
+        INTERVAL,
+        NEVER
+    }
+
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 1000;
+    private static final int HEADER_BYTES = 8;
+    // версия и число значений в записи, длины ключа и значения
+    private static final int RECORD_OVERHEAD = HEADER_BYTES + 12 + 8;
+    private static final long MIN_COMPACTION_BYTES = 1 << 20;
+    private static final int REMOVED_LENGTH = -1;
+    // отметка удалённого ключа среди прочитанных из журнала
+    private static final Location REMOVED = new Location(null, 0, REMOVED_LENGTH, 0, 0);
+
+    private final Path path;
+    private final SyncPolicy syncPolicy;
+    private final NavigableMap<String, Location> index = new ConcurrentSkipListMap<>();
+    // читатели держат блокировку на чтение, пакеты и подмена журнала - на запись
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // порядок дописывания в журнал
+    private final Object appendLock = new Object();
+    private final ScheduledExecutorService background;
+    private LogFile log;
+    private long lastVersion;
+    private long liveBytes;
+    private boolean dirty;
+    private boolean compacting;
+
+    public LogStructuredKVStorage(Path path) throws IOException {
+        this(path, SyncPolicy.INTERVAL, DEFAULT_SYNC_INTERVAL_MILLIS);
+    }
+
+    public LogStructuredKVStorage(Path path, SyncPolicy syncPolicy, long syncIntervalMillis) throws IOException {
+        this.path = path;
+        this.syncPolicy = syncPolicy;
+        Files.deleteIfExists(compactionPath());
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        log = new LogFile(channel, 0);
+        long size = channel.size();
+        long end = scan(log, 0, size, index);
+        index.values().removeIf(location -> location == REMOVED);
+        if (end < size) {
+            System.out.println("Журнал " + path + " обрезан с " + size + " до " + end + " байт");
+            channel.truncate(end);
+        }
+        log.size = end;
+        liveBytes = liveBytes();
+        background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "kv-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (syncPolicy == SyncPolicy.INTERVAL) {
+            background.scheduleWithFixedDelay(this::sync, syncIntervalMillis, syncIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public KVEntry get(String key) {
+        lock.readLock().lock();
+        try {
+            Location location = index.get(key);
+            return location == null ? null : read(location);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, KVEntry> getAll(Collection<String> keys) {
+        Map<String, KVEntry> entries = new LinkedHashMap<>();
+        lock.readLock().lock();
+        try {
+            for (String key : keys) {
+                Location location = index.get(key);
+                if (location != null) {
+                    entries.put(key, read(location));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return entries;
+    }
+
+    @Override
+    public Map<String, KVEntry> scan(String prefix, String after, int limit) {
+        Map<String, KVEntry> entries = new LinkedHashMap<>();
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<String, Location> entry : KVStorage.range(index, prefix, after).entrySet()) {
+                if (!entry.getKey().startsWith(prefix) || entries.size() == limit) {
+                    break;
+                }
+                entries.put(entry.getKey(), read(entry.getValue()));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return entries;
+    }
+
+    @Override
+    public long put(String key, byte[] value) {
+        return putAll(Map.of(key, value));
+    }
+
+    @Override
+    public long putIfVersion(String key, byte[] value, long expectedVersion) {
+        synchronized (appendLock) {
+            Location current = index.get(key);
+            if ((current == null ? ABSENT : current.version) != expectedVersion) {
+                return CONFLICT;
+            }
+            return append(lastVersion + 1, Map.of(key, value));
+        }
+    }
+
+    @Override
+    public long putAll(Map<String, byte[]> values) {
+        synchronized (appendLock) {
+            return append(lastVersion + 1, values);
+        }
+    }
+
+    @Override
+    public void apply(long version, Map<String, byte[]> values) {
+        synchronized (appendLock) {
+            append(version, values);
+        }
+    }
+
+    @Override
+    public long lastVersion() {
+        synchronized (appendLock) {
+            return lastVersion;
+        }
+    }
+
+    /**
+     * Размер актуальных записей журнала в байтах: значения вместе с ключами и заголовками записей.
+     */
+    @Override
+    public long getUsedBytes() {
+        synchronized (appendLock) {
+            return liveBytes;
+        }
+    }
+
+    /**
+     * Сбрасывает журнал на диск, если с прошлого сброса были записи.
+     */
+    public void sync() {
+        synchronized (appendLock) {
+            if (!dirty) {
+                return;
+            }
+            try {
+                log.channel.force(false);
+                dirty = false;
+            } catch (IOException e) {
+                System.out.println("Не удалось сбросить журнал " + path + " на диск: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        background.shutdown();
+        try {
+            background.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (appendLock) {
+            log.channel.force(false);
+            log.channel.close();
+        }
+    }
+
+    // вызывается под appendLock
+    private long append(long version, Map<String, byte[]> values) {
+        ByteBuffer record = encode(version, values);
+        long start = log.size;
+        try {
+            writeFully(log.channel, record, start);
+            if (syncPolicy == SyncPolicy.ALWAYS) {
+                log.channel.force(false);
+            } else {
+                dirty = true;
+            }
+        } catch (IOException e) {
+            throw new KVStorageException("Не удалось дописать значения в журнал " + path, e);
+        }
+        log.size += record.limit();
+        lastVersion = Math.max(lastVersion, version);
+        Map<String, Location> locations = new HashMap<>();
+        locate(log, start + HEADER_BYTES, record.position(HEADER_BYTES).slice(), locations);
+        if (locations.size() == 1) {
+            publish(locations);
+        } else {
+            lock.writeLock().lock();
+            try {
+                publish(locations);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        if (!compacting && log.size > MIN_COMPACTION_BYTES && liveBytes * 2 < log.size) {
+            compacting = true;
+            background.execute(this::compact);
+        }
+        return version;
+    }
+
+    private void publish(Map<String, Location> locations) {
+        locations.forEach((key, location) -> {
+            Location old = location == REMOVED ? index.remove(key) : index.put(key, location);
+            liveBytes += location.bytes - (old == null ? 0 : old.bytes);
+        });
+    }
+
+    /**
+     * Переписывает актуальные значения в новый журнал. Дописанное за время копирования переносится
+     * в конец нового журнала под блокировкой, после чего новый журнал подменяет старый.
+     */
+    private void compact() {
+        Path compactionPath = compactionPath();
+        try {
+            LogFile old;
+            long end;
+            Map<String, Location> snapshot;
+            synchronized (appendLock) {
+                old = log;
+                end = old.size;
+                snapshot = new HashMap<>(index);
+            }
+            FileChannel channel = FileChannel.open(compactionPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            LogFile compacted = new LogFile(channel, 0);
+            Map<String, Location> moved = new HashMap<>();
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+            for (Map.Entry<String, Location> entry : snapshot.entrySet()) {
+                Location location = entry.getValue();
+                ByteBuffer record = encode(location.version,
+                        Map.of(entry.getKey(), read(location).getValue()));
+                locate(compacted, compacted.size + HEADER_BYTES, record.duplicate().position(HEADER_BYTES).slice(),
+                        moved);
+                out.write(record.array(), 0, record.limit());
+                compacted.size += record.limit();
+            }
+            out.flush();
+
+            synchronized (appendLock) {
+                long tail = old.size - end;
+                long copied = 0;
+                while (copied < tail) {
+                    copied += old.channel.transferTo(end + copied, tail - copied, channel);
+                }
+                Map<String, Location> appended = new LinkedHashMap<>();
+                scan(compacted, compacted.size, compacted.size + tail, appended);
+                compacted.size += tail;
+                channel.force(false);
+                lock.writeLock().lock();
+                try {
+                    moved.forEach((key, location) -> index.replace(key, snapshot.get(key), location));
+                    appended.forEach((key, location) -> {
+                        if (location == REMOVED) {
+                            index.remove(key);
+                        } else {
+                            index.put(key, location);
+                        }
+                    });
+                    Files.move(compactionPath, path, StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                    log = compacted;
+                    old.channel.close();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                liveBytes = liveBytes();
+                System.out.println("Журнал " + path + " сжат с " + old.size + " до " + compacted.size + " байт");
+            }
+        } catch (IOException | KVStorageException e) {
+            System.out.println("Не удалось сжать журнал " + path + ": " + e.getMessage());
+            try {
+                Files.deleteIfExists(compactionPath);
+            } catch (IOException ignored) {
+                // останется до следующего открытия хранилища
+            }
+        } finally {
+            synchronized (appendLock) {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * Читает записи журнала в диапазоне и раскладывает значения в locations.
+     * Возвращает конец последней целой записи с верной контрольной суммой.
+     */
+    private long scan(LogFile file, long from, long to, Map<String, Location> locations) throws IOException {
+        long position = from;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (position + HEADER_BYTES <= to) {
+            header.clear();
+            readFully(file.channel, header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 12 || position + HEADER_BYTES + length > to) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(file.channel, payload, position + HEADER_BYTES);
+            CRC32 crc = new CRC32();
+            crc.update(payload.array());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            payload.flip();
+            lastVersion = Math.max(lastVersion, locate(file, position + HEADER_BYTES, payload, locations));
+            position += HEADER_BYTES + length;
+        }
+        return position;
+    }
+
+    // payload начинается со смещения base в файле, возвращает версию записи
+    private long locate(LogFile file, long base, ByteBuffer payload, Map<String, Location> locations) {
+        long version = payload.getLong();
+        int count = payload.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[payload.getInt()];
+            payload.get(key);
+            int length = payload.getInt();
+            if (length == REMOVED_LENGTH) {
+                locations.put(new String(key, StandardCharsets.UTF_8), REMOVED);
+                continue;
+            }
+            long bytes = RECORD_OVERHEAD + key.length + length;
+            locations.put(new String(key, StandardCharsets.UTF_8),
+                    new Location(file, base + payload.position(), length, version, bytes));
+            payload.position(payload.position() + length);
+        }
+        return version;
+    }
+
+    private ByteBuffer encode(long version, Map<String, byte[]> values) {
+        Map<byte[], byte[]> encoded = new LinkedHashMap<>();
+        int length = 12;
+        for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] value = entry.getValue();
+            encoded.put(key, value);
+            length += 8 + key.length + (value == null ? 0 : value.length);
+        }
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + length);
+        record.putInt(length).putInt(0).putLong(version).putInt(values.size());
+        encoded.forEach((key, value) -> {
+            record.putInt(key.length).put(key);
+            if (value == null) {
+                record.putInt(REMOVED_LENGTH);
+            } else {
+                record.putInt(value.length).put(value);
+            }
+        });
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER_BYTES, length);
+        record.putInt(4, (int) crc.getValue());
+        return record.flip();
+    }
+
+    private KVEntry read(Location location) {
+        ByteBuffer value = ByteBuffer.allocate(location.length);
+        try {
+            readFully(location.file.channel, value, location.offset);
+        } catch (IOException e) {
+            throw new KVStorageException("Не удалось прочитать значение из журнала " + path, e);
+        }
+        return new KVEntry(value.array(), location.version);
+    }
+
+    private long liveBytes() {
+        return index.values().stream().mapToLong(location -> location.bytes).sum();
+    }
+
+    private Path compactionPath() {
+        return path.resolveSibling(path.getFileName() + ".compact");
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new KVStorageException("Неожиданный конец журнала");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        ByteBuffer source = buffer.duplicate();
+        while (source.hasRemaining()) {
+            channel.write(source, position + source.position());
+        }
+    }
+
+    private static class LogFile {
+        private final FileChannel channel;
+        private long size;
+
+        LogFile(FileChannel channel, long size) {
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    private static class Location {
+        private final LogFile file;
+        private final long offset;
+        private final int length;
+        private final long version;
+        // сколько байт журнала занимало бы значение, записанное отдельно
+        private final long bytes;
+
+        Location(LogFile file, long offset, int length, long version, long bytes) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.version = version;
+            this.bytes = bytes;
+        }
+    }
+}
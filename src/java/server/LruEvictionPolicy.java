@@ -0,0 +1,30 @@
+package server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// ключи в LinkedHashMap в порядке доступа: в начале - самый давний
+class LruEvictionPolicy implements EvictionPolicy {
+
+    private final Map<String, Boolean> keys = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Override
+    public synchronized void written(String key, KVEntry entry) {
+        keys.put(key, Boolean.TRUE);
+    }
+
+    @Override
+    public synchronized void read(String key) {
+        keys.get(key);
+    }
+
+    @Override
+    public synchronized void removed(String key) {
+        keys.remove(key);
+    }
+
+    @Override
+    public synchronized String victim() {
+        return keys.isEmpty() ? null : keys.keySet().iterator().next();
+    }
+}
@@ -0,0 +1,121 @@
+package server;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Пространство имён KVServer: своё хранилище, свой журнал изменений и своя блокировка записи.
+ * Ключи разных пространств не пересекаются, а записи в одно пространство не ждут записей в другое.
+ * <p>
+ * Если задана квота quotaBytes, запись, после которой значения пространства займут больше quotaBytes байт,
+ * отклоняется QuotaExceededException. Квота проверяется до записи по длинам новых и прежних значений,
+ * а занятое место берётся из KVStorage.getUsedBytes().
+ * <p>
+ * Ключи, которые хранилище удалило само (истёк срок жизни, вытеснены), попадают в журнал со значением null:
+ * удалённые во время записи - в запись журнала с её версией, удалённые в expire() - отдельной записью.
+ */
+class Namespace {
+    static final long UNLIMITED = Long.MAX_VALUE;
+
+    final String name;
+    final KVStorage storage;
+    final ChangeLog changeLog;
+    private final long quotaBytes;
+    // запись в хранилище и в журнал изменений под одной блокировкой, чтобы журнал шёл в порядке версий
+    private final Object writeLock = new Object();
+    // ключи, удалённые хранилищем во время текущей записи; null - запись не идёт
+    private Map<String, byte[]> removedByWrite;
+
+    /**
+     * changeLogBytes - счётчик байт журналов, общий для всех пространств сервера.
+     */
+    Namespace(String name, KVStorage storage, long quotaBytes, AtomicLong changeLogBytes) {
+        if (quotaBytes != UNLIMITED && storage.getUsedBytes() < 0) {
+            throw new IllegalArgumentException(storage.getClass().getSimpleName()
+                    + " не считает занятые байты, квота для пространства " + name + " невозможна");
+        }
+        this.name = name;
+        this.storage = storage;
+        this.quotaBytes = quotaBytes;
+        changeLog = new ChangeLog(KVServer.CHANGE_LOG_CAPACITY, KVServer.CHANGE_LOG_MAX_BYTES, changeLogBytes,
+                storage.lastVersion());
+        storage.setRemovalListener(this::removed);
+    }
+
+    long put(String key, byte[] value) {
+        return write(Map.of(key, value), () -> storage.put(key, value));
+    }
+
+    /**
+     * @throws UnsupportedOperationException если хранилище не поддерживает срок жизни значений
+     */
+    long put(String key, byte[] value, long ttlMillis) {
+        return write(Map.of(key, value), () -> storage.put(key, value, ttlMillis));
+    }
+
+    /**
+     * Сохраняет значение, только если версия ключа равна expectedVersion. Возвращает новую версию или CONFLICT.
+     */
+    long putIfVersion(String key, byte[] value, long expectedVersion) {
+        return write(Map.of(key, value), () -> storage.putIfVersion(key, value, expectedVersion));
+    }
+
+    long putAll(Map<String, byte[]> values) {
+        return write(values, () -> storage.putAll(values));
+    }
+
+    /**
+     * Удаляет из хранилища истёкшие значения и записывает их удаление в журнал.
+     */
+    void expire() {
+        synchronized (writeLock) {
+            storage.expire();
+        }
+    }
+
+    private long write(Map<String, byte[]> values, LongSupplier write) {
+        synchronized (writeLock) {
+            checkQuota(values);
+            removedByWrite = new HashMap<>();
+            try {
+                long version = write.getAsLong();
+                if (version != KVStorage.CONFLICT) {
+                    removedByWrite.putAll(values);
+                    changeLog.append(version, removedByWrite);
+                }
+                return version;
+            } finally {
+                removedByWrite = null;
+            }
+        }
+    }
+
+    // вне записи, в expire() или при повторе записей лидера, удаление - отдельная запись журнала
+    private void removed(long version, Collection<String> keys) {
+        synchronized (writeLock) {
+            Map<String, byte[]> removed = removedByWrite == null ? new HashMap<>() : removedByWrite;
+            keys.forEach(key -> removed.put(key, null));
+            if (removedByWrite == null) {
+                changeLog.append(version, removed);
+            }
+        }
+    }
+
+    // без квоты прежние значения не читаются, запись не дороже, чем без пространств имён
+    private void checkQuota(Map<String, byte[]> values) {
+        if (quotaBytes == UNLIMITED) {
+            return;
+        }
+        long added = 0;
+        for (Map.Entry<String, byte[]> value : values.entrySet()) {
+            KVEntry previous = storage.get(value.getKey());
+            added += value.getValue().length - (previous == null ? 0 : previous.getValue().length);
+        }
+        if (storage.getUsedBytes() + added > quotaBytes) {
+            throw new QuotaExceededException(name, quotaBytes);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package server;
+
+/**
+ * Запись не выполнена: значения пространства имён заняли бы больше места, чем разрешает его квота.
+ */
+public class QuotaExceededException extends RuntimeException {
+
+    public QuotaExceededException(String namespace, long quotaBytes) {
+        super("Квота пространства имён " + namespace + " в " + quotaBytes + " байт исчерпана");
+    }
+}
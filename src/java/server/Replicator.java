@@ -0,0 +1,269 @@
+package server;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Поток реплики: забирает у лидера изменения из /changes и повторяет их в своём хранилище.
+ * Если лидер уже вытеснил нужные изменения из журнала, хранилище перечитывается через /scan,
+ * а журнал реплики начинается с версии лидера на момент перечитывания. Значения при перечитывании
+ * получают свои версии с лидера, а ключи реплики, которых у лидера нет, удаляются.
+ */
+class Replicator implements Runnable {
+
+    static final int PAGE_SIZE = 1000;
+    private static final long POLL_MILLIS = 50;
+    private static final long RETRY_MILLIS = 1000;
+
+    private final String leaderUrl;
+    private final String apiToken;
+    private final KVStorage storage;
+    private final ChangeLog changeLog;
+    private final Consumer<String> epochListener;
+    private final HttpClient client = HttpClient.newHttpClient();
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * apiToken - API_TOKEN лидера: реплика читает с ним журнал лидера и принимает запросы только с ним.
+     */
+    Replicator(String leaderUrl, String apiToken, KVStorage storage, ChangeLog changeLog,
+               Consumer<String> epochListener) {
+        this.leaderUrl = leaderUrl;
+        this.apiToken = apiToken;
+        this.storage = storage;
+        this.changeLog = changeLog;
+        this.epochListener = epochListener;
+    }
+
+    void start() {
+        running = true;
+        thread = new Thread(this, "kv-replication");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                if (!pull()) {
+                    Thread.sleep(POLL_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Не удалось получить изменения от лидера " + leaderUrl + ": " + e.getMessage());
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // true, если пришла полная страница изменений и за следующей стоит идти сразу
+    private boolean pull() throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = get("/changes?since=" + changeLog.lastVersion()
+                + "&limit=" + PAGE_SIZE);
+        try (JsonReader reader = new JsonReader(new InputStreamReader(response.body(), UTF_8))) {
+            if (response.statusCode() == 410) {
+                resync(reader);
+                return true;
+            }
+            if (response.statusCode() != 200) {
+                throw new IOException("лидер вернул код состояния " + response.statusCode());
+            }
+            int count = 0;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("epoch")) {
+                    epochListener.accept(reader.nextString());
+                } else if (name.equals("changes")) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        applyChange(reader);
+                        count++;
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return count == PAGE_SIZE;
+        }
+    }
+
+    private void applyChange(JsonReader reader) throws IOException {
+        long version = 0;
+        Map<String, byte[]> values = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("version")) {
+                version = reader.nextLong();
+            } else if (name.equals("values")) {
+                values = readValues(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (values == null) {
+            throw new IOException("изменение " + version + " пришло без значений");
+        }
+        storage.apply(version, values);
+        changeLog.append(version, values);
+    }
+
+    // версия лидера снимается до перебора: всё записанное после неё придёт из журнала ещё раз
+    private void resync(JsonReader status) throws IOException, InterruptedException {
+        long version = -1;
+        status.beginObject();
+        while (status.hasNext()) {
+            String name = status.nextName();
+            if (name.equals("epoch")) {
+                epochListener.accept(status.nextString());
+            } else if (name.equals("version")) {
+                version = status.nextLong();
+            } else {
+                status.skipValue();
+            }
+        }
+        status.endObject();
+        if (version < 0) {
+            throw new IOException("лидер не сообщил версию для перечитывания");
+        }
+        System.out.println("Реплика отстала от журнала лидера, перечитываем хранилище до версии " + version);
+        String after = null;
+        boolean last;
+        do {
+            HttpResponse<InputStream> response = get("/scan?prefix=&versions=true&limit=" + PAGE_SIZE
+                    + (after == null ? "" : "&after=" + URLEncoder.encode(after, UTF_8)));
+            if (response.statusCode() != 200) {
+                response.body().close();
+                throw new IOException("лидер вернул код состояния " + response.statusCode());
+            }
+            Map<Long, Map<String, byte[]>> page = new TreeMap<>();
+            String pageEnd;
+            try (JsonReader reader = new JsonReader(new InputStreamReader(response.body(), UTF_8))) {
+                pageEnd = readVersionedPage(reader, page);
+            }
+            last = page.values().stream().mapToInt(Map::size).sum() < PAGE_SIZE;
+            page.forEach(storage::apply);
+            Set<String> present = new HashSet<>();
+            page.values().forEach(values -> present.addAll(values.keySet()));
+            removeMissing(after, last ? null : pageEnd, present, version);
+            after = pageEnd;
+        } while (!last);
+        changeLog.reset(version);
+    }
+
+    // страница {"key": {"version": ..., "value": ...}} раскладывается по версиям, возвращает последний ключ
+    private String readVersionedPage(JsonReader reader, Map<Long, Map<String, byte[]>> page) throws IOException {
+        String lastKey = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            lastKey = reader.nextName();
+            long version = -1;
+            byte[] value = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("version")) {
+                    version = reader.nextLong();
+                } else if (name.equals("value")) {
+                    value = reader.nextString().getBytes(UTF_8);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (version < 0 || value == null) {
+                throw new IOException("лидер вернул ключ " + lastKey + " без версии или значения");
+            }
+            page.computeIfAbsent(version, v -> new LinkedHashMap<>()).put(lastKey, value);
+        }
+        reader.endObject();
+        return lastKey;
+    }
+
+    // удаляет ключи реплики после from и до to включительно (null - до конца), которых нет у лидера
+    private void removeMissing(String from, String to, Set<String> present, long version) {
+        String after = from;
+        while (true) {
+            Map<String, KVEntry> local = storage.scan("", after, PAGE_SIZE);
+            Map<String, byte[]> missing = new HashMap<>();
+            boolean done = local.size() < PAGE_SIZE;
+            for (String key : local.keySet()) {
+                if (to != null && key.compareTo(to) > 0) {
+                    done = true;
+                    break;
+                }
+                if (!present.contains(key)) {
+                    missing.put(key, null);
+                }
+                after = key;
+            }
+            if (!missing.isEmpty()) {
+                System.out.println("Удаляем " + missing.size() + " ключей, которых нет у лидера");
+                storage.apply(version, missing);
+            }
+            if (done) {
+                return;
+            }
+        }
+    }
+
+    private Map<String, byte[]> readValues(JsonReader reader) throws IOException {
+        Map<String, byte[]> values = new LinkedHashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                values.put(key, null);
+            } else {
+                values.put(key, reader.nextString().getBytes(UTF_8));
+            }
+        }
+        reader.endObject();
+        return values;
+    }
+
+    private HttpResponse<InputStream> get(String path) throws IOException, InterruptedException {
+        String separator = path.contains("?") ? "&" : "?";
+        return client.send(HttpRequest.newBuilder()
+                .uri(URI.create(leaderUrl + path + separator + "API_TOKEN=" + apiToken))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofInputStream());
+    }
+}
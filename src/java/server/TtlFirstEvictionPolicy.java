@@ -0,0 +1,41 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+class TtlFirstEvictionPolicy extends LruEvictionPolicy {
+
+    private final NavigableSet<InMemoryKVStorage.Expiry> expiring = new TreeSet<>();
+    private final Map<String, InMemoryKVStorage.Expiry> expiries = new HashMap<>();
+
+    @Override
+    public synchronized void written(String key, KVEntry entry) {
+        super.written(key, entry);
+        forget(key);
+        if (entry.getExpiresAt() != KVEntry.NEVER) {
+            InMemoryKVStorage.Expiry expiry = new InMemoryKVStorage.Expiry(entry, key);
+            expiring.add(expiry);
+            expiries.put(key, expiry);
+        }
+    }
+
+    @Override
+    public synchronized void removed(String key) {
+        super.removed(key);
+        forget(key);
+    }
+
+    @Override
+    public synchronized String victim() {
+        return expiring.isEmpty() ? super.victim() : expiring.first().key;
+    }
+
+    private void forget(String key) {
+        InMemoryKVStorage.Expiry expiry = expiries.remove(key);
+        if (expiry != null) {
+            expiring.remove(expiry);
+        }
+    }
+}
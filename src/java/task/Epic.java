@@ -14,6 +14,17 @@ public class Epic extends Task {
     public Epic() {
     }
 
+    protected Epic(Epic other) {
+        super(other);
+        subtaskIds.addAll(other.subtaskIds);
+        endTime = other.endTime == null ? null : new Date(other.endTime.getTime());
+    }
+
+    @Override
+    public Epic copy() {
+        return new Epic(this);
+    }
+
     public Collection<Integer> getSubtaskIds() {
         return Collections.unmodifiableCollection(subtaskIds);
     }
@@ -16,6 +16,16 @@ public class Subtask extends Task {
         this.epicId = epicId;
     }
 
+    protected Subtask(Subtask other) {
+        super(other);
+        epicId = other.epicId;
+    }
+
+    @Override
+    public Subtask copy() {
+        return new Subtask(this);
+    }
+
     public Integer getEpicId() {
         return epicId;
     }
@@ -1,13 +1,16 @@
 package task;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.Objects;
 
 public class Task implements Comparable<Task> {
 
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd/MM/yyyy:HH-mm")
+            .withZone(ZoneOffset.UTC);
+
     private int id;
     private String name;
     private String description;
@@ -24,6 +27,15 @@ public class Task implements Comparable<Task> {
     public Task() {
     }
 
+    protected Task(Task other) {
+        id = other.id;
+        name = other.name;
+        description = other.description;
+        status = other.status;
+        duration = other.duration;
+        startTime = other.startTime == null ? null : new Date(other.startTime.getTime());
+    }
+
     public Task(String name, String description, TaskStatus status, int duration, Date startTime) {
         this.name = name;
         this.description = description;
@@ -32,6 +44,13 @@ public class Task implements Comparable<Task> {
         this.startTime = startTime;
     }
 
+    /**
+     * Копия задачи, которую можно читать и сериализовать без блокировки менеджера.
+     */
+    public Task copy() {
+        return new Task(this);
+    }
+
     public long getDuration() {
         return duration;
     }
@@ -88,18 +107,14 @@ public class Task implements Comparable<Task> {
         if (Objects.isNull(startTime)) {
             return null;
         }
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTime(startTime);
-        calendar.add(Calendar.MINUTE, duration);
-        return calendar.getTime();
+        return new Date(startTime.getTime() + duration * 60_000L);
     }
 
     protected String printFormatDate(Date date) {
         if (date == null) {
             return "null";
         }
-        SimpleDateFormat formatDate = new SimpleDateFormat("dd/MM/yyyy:HH-mm");
-        return formatDate.format(date);
+        return DATE_FORMAT.format(date.toInstant());
     }
 
     @Override
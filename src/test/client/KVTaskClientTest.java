@@ -0,0 +1,289 @@
+package client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import server.InMemoryKVStorage;
+import server.KVEntry;
+import server.KVServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+class KVTaskClientTest {
+
+    public static String URL = "http://localhost:" + KVServer.PORT;
+    static final int BINARY_HTTP_PORT = 8088;
+    static final int STUB_PORT = 8089;
+
+    ExecutorService executor;
+    KVServer server;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        // задержанные запросы занимают поток сервера, поэтому пул не ограничен
+        executor = Executors.newCachedThreadPool();
+        server = new KVServer(new InMemoryKVStorage(), executor);
+        server.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void testStalledReadMustFailInsteadOfReturningEmptyValue() {
+        KVTaskClient client = client(new RequestPolicy(1000, 200, 1, 10, 5, 1000, false));
+        client.put("task:1", "{\"id\": 1}");
+        server.injectLatency(1000, 2);
+
+        Assertions.assertThrows(KVUnavailableException.class, () -> client.load("task:1"));
+    }
+
+    @Test
+    void testReadMustBeRetriedAfterTimeout() {
+        KVTaskClient client = client(new RequestPolicy(1000, 300, 2, 10, 5, 1000, false));
+        client.put("task:1", "{\"id\": 1}");
+        server.injectLatency(1000, 1);
+
+        Assertions.assertEquals("{\"id\": 1}", client.load("task:1"));
+    }
+
+    @Test
+    void testOpenCircuitBreakerMustFailFastUntilProbeSucceeds() throws InterruptedException {
+        KVTaskClient client = client(new RequestPolicy(1000, 200, 0, 10, 2, 300, false));
+        client.put("task:1", "{\"id\": 1}");
+        server.injectLatency(1000, 2);
+        Assertions.assertThrows(KVUnavailableException.class, () -> client.load("task:1"));
+        Assertions.assertThrows(KVUnavailableException.class, () -> client.load("task:1"));
+
+        long start = System.currentTimeMillis();
+        Assertions.assertThrows(KVUnavailableException.class, () -> client.load("task:1"));
+        Assertions.assertTrue(System.currentTimeMillis() - start < 100);
+        Assertions.assertFalse(client.put("task:1", "{\"id\": 2}"));
+
+        Thread.sleep(400);
+        Assertions.assertEquals("{\"id\": 1}", client.load("task:1"));
+        Assertions.assertTrue(client.put("task:1", "{\"id\": 2}"));
+    }
+
+    @Test
+    void testHedgedReadMustNotWaitForStalledRequest() {
+        KVTaskClient client = client(new RequestPolicy(1000, 5000, 0, 10, 5, 1000, true));
+        client.put("task:1", "{\"id\": 1}");
+        for (int i = 0; i < 2 * LatencyWindow.MIN_SAMPLES; i++) {
+            client.loadAll(List.of("task:1"));
+        }
+        server.injectLatency(2000, 1);
+
+        long start = System.currentTimeMillis();
+        Assertions.assertEquals("{\"id\": 1}", client.load("task:1"));
+        Assertions.assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    @Test
+    void testBinaryClientMustShareValuesWithHttpClient() throws IOException {
+        KVServer binaryServer = new KVServer(BINARY_HTTP_PORT, new InMemoryKVStorage(), KVServer.BINARY_PORT);
+        binaryServer.start();
+        try {
+            String url = "http://localhost:" + BINARY_HTTP_PORT;
+            KVTaskClient binaryClient = new KVTaskClient(url, KVServer.BINARY_PORT,
+                    KVTaskClient.DEFAULT_MAX_IN_FLIGHT_REQUESTS, 0, RequestPolicy.DEFAULT);
+            KVTaskClient httpClient = new KVTaskClient(url, null, binaryClient.getApiToken());
+
+            Assertions.assertTrue(binaryClient.put("task:1", "{\"id\": 1}"));
+            Assertions.assertTrue(binaryClient.putAll(Map.of("task:2", "{\"id\": 2}", "epic:3", "{\"id\": 3}")));
+            Assertions.assertTrue(httpClient.put("task:4", "{\"id\": 4}"));
+
+            Assertions.assertEquals("{\"id\": 1}", httpClient.load("task:1"));
+            Assertions.assertEquals("{\"id\": 4}", binaryClient.load("task:4"));
+            Assertions.assertEquals("", binaryClient.load("task:5"));
+            Assertions.assertEquals(Map.of("task:2", "{\"id\": 2}", "epic:3", "{\"id\": 3}"),
+                    binaryClient.loadAll(List.of("task:2", "epic:3", "task:5")));
+            Assertions.assertEquals(List.of("task:1", "task:2", "task:4"),
+                    new ArrayList<>(binaryClient.scan("task:", null, 10).keySet()));
+            Assertions.assertEquals(List.of("task:4"),
+                    new ArrayList<>(binaryClient.scan("task:", "task:2", 10).keySet()));
+            // ETag двоичного чтения годится для условной записи по HTTP
+            Assertions.assertNotNull(binaryClient.putIfMatch("task:4", "{\"id\": 44}", binaryClient.getETag("task:4")));
+            Assertions.assertEquals("{\"id\": 44}", httpClient.load("task:4"));
+            binaryClient.close();
+        } finally {
+            binaryServer.stop();
+        }
+    }
+
+    @Test
+    void testBinaryClientMustPipelineConcurrentRequests() throws IOException {
+        KVServer binaryServer = new KVServer(BINARY_HTTP_PORT, new InMemoryKVStorage(), KVServer.BINARY_PORT);
+        binaryServer.start();
+        try {
+            KVTaskClient binaryClient = new KVTaskClient("http://localhost:" + BINARY_HTTP_PORT, KVServer.BINARY_PORT,
+                    64, 0, RequestPolicy.DEFAULT);
+            List<CompletableFuture<Boolean>> writes = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                writes.add(binaryClient.putAsync("task:" + i, "{\"id\": " + i + "}"));
+            }
+            writes.forEach(write -> Assertions.assertTrue(write.join()));
+            List<CompletableFuture<String>> reads = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                reads.add(binaryClient.loadAsync("task:" + i));
+            }
+            for (int i = 0; i < 500; i++) {
+                Assertions.assertEquals("{\"id\": " + i + "}", reads.get(i).join());
+            }
+            binaryClient.close();
+        } finally {
+            binaryServer.stop();
+        }
+    }
+
+    @Test
+    void testBinaryReadErrorsMustBeRetriedAndNotLookLikeMissingKeys() throws IOException {
+        AtomicInteger failures = new AtomicInteger(1);
+        InMemoryKVStorage storage = new InMemoryKVStorage() {
+            @Override
+            public KVEntry get(String key) {
+                if (failures.getAndDecrement() > 0) {
+                    throw new IllegalStateException("диск недоступен");
+                }
+                return super.get(key);
+            }
+        };
+        KVServer binaryServer = new KVServer(BINARY_HTTP_PORT, storage, KVServer.BINARY_PORT);
+        binaryServer.start();
+        try {
+            KVTaskClient binaryClient = new KVTaskClient("http://localhost:" + BINARY_HTTP_PORT,
+                    binaryServer.getApiToken(), KVServer.BINARY_PORT, KVTaskClient.DEFAULT_MAX_IN_FLIGHT_REQUESTS, 0,
+                    new RequestPolicy(1000, 1000, 1, 10, 5, 1000, false));
+            Assertions.assertTrue(binaryClient.put("task:1", "{\"id\": 1}"));
+
+            Assertions.assertEquals("{\"id\": 1}", binaryClient.load("task:1"));
+            failures.set(2);
+            Assertions.assertThrows(KVUnavailableException.class, () -> binaryClient.load("task:1"));
+            Assertions.assertThrows(KVUnavailableException.class,
+                    () -> binaryClient.scan("task:", null, KVServer.MAX_SCAN_LIMIT + 1));
+            binaryClient.close();
+        } finally {
+            binaryServer.stop();
+        }
+    }
+
+    @Test
+    void testReadCacheMustKeepOnlyLoadedValuesWithinLimit() {
+        KVTaskClient client = new KVTaskClient(URL);
+        String value = "x".repeat(1000);
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertTrue(client.put("task:" + i, value));
+        }
+        Assertions.assertTrue(client.getReadCacheBytes() < 100 * value.length());
+        Assertions.assertNotNull(client.getETag("task:1"));
+
+        client.setReadCacheBytes(20_000);
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertEquals(value, client.load("task:" + i));
+        }
+        Assertions.assertTrue(client.getReadCacheBytes() <= 20_000);
+        Assertions.assertEquals(value, client.load("task:99"));
+    }
+
+    @Test
+    void testErrorStatusMustBeRetriedAndNotLookLikeMissingKey() throws IOException {
+        AtomicInteger failures = new AtomicInteger(1);
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer stub = stub(h -> {
+            requests.incrementAndGet();
+            if (failures.getAndDecrement() > 0) {
+                respond(h, 503, "");
+            } else if (h.getRequestURI().getPath().equals("/load/task:1")) {
+                respond(h, 200, "{\"id\": 1}");
+            } else {
+                respond(h, 404, "");
+            }
+        });
+        try {
+            KVTaskClient client = stubClient(new RequestPolicy(1000, 1000, 1, 10, 5, 1000, false));
+
+            Assertions.assertEquals("{\"id\": 1}", client.load("task:1"));
+            Assertions.assertEquals(2, requests.get());
+            Assertions.assertEquals("", client.load("task:2"));
+            failures.set(2);
+            Assertions.assertThrows(KVUnavailableException.class, () -> client.load("task:1"));
+        } finally {
+            stub.stop(0);
+        }
+    }
+
+    @Test
+    void testTruncatedBatchAndScanMustFailInsteadOfReturningFewerValues() throws IOException {
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer stub = stub(h -> {
+            requests.incrementAndGet();
+            h.getRequestBody().readAllBytes();
+            // сервер оборвал поток после первого значения
+            respond(h, 200, "{\"task:1\": {\"etag\": \"1\", \"value\": \"{}\"}, \"task:2\": {\"et");
+        });
+        try {
+            KVTaskClient client = stubClient(new RequestPolicy(1000, 1000, 1, 10, 5, 1000, false));
+
+            Assertions.assertThrows(KVUnavailableException.class, () -> client.loadAll(Set.of("task:1", "task:2")));
+            Assertions.assertEquals(2, requests.get());
+            Assertions.assertThrows(KVUnavailableException.class, () -> client.scan("task:", null, 10));
+            Iterator<Map.Entry<String, String>> scan = new ScanIterator(client, "task:", 10);
+            Assertions.assertThrows(KVUnavailableException.class, scan::hasNext);
+        } finally {
+            stub.stop(0);
+        }
+    }
+
+    private interface StubHandler {
+        void handle(HttpExchange h) throws IOException;
+    }
+
+    // сервер, который отвечает на любой запрос так, как задано в тесте
+    private static HttpServer stub(StubHandler handler) throws IOException {
+        HttpServer stub = HttpServer.create(new InetSocketAddress("localhost", STUB_PORT), 0);
+        stub.createContext("/", h -> {
+            try {
+                handler.handle(h);
+            } finally {
+                h.close();
+            }
+        });
+        stub.start();
+        return stub;
+    }
+
+    private static void respond(HttpExchange h, int status, String body) throws IOException {
+        h.sendResponseHeaders(status, 0);
+        try (OutputStream out = h.getResponseBody()) {
+            out.write(body.getBytes(UTF_8));
+        }
+    }
+
+    private static KVTaskClient stubClient(RequestPolicy policy) {
+        return new KVTaskClient("http://localhost:" + STUB_PORT, "token", 0,
+                KVTaskClient.DEFAULT_MAX_IN_FLIGHT_REQUESTS, 0, policy);
+    }
+
+    private static KVTaskClient client(RequestPolicy policy) {
+        return new KVTaskClient(URL, List.of(), KVTaskClient.DEFAULT_MAX_IN_FLIGHT_REQUESTS, 0, policy);
+    }
+}
@@ -0,0 +1,152 @@
+package client;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import server.InMemoryKVStorage;
+import server.KVServer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class ShardedKVClientTest {
+
+    static final List<Integer> PORTS = List.of(8081, 8082, 8083, 8084);
+
+    List<KVServer> servers;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        servers = new ArrayList<>();
+        for (int port : PORTS) {
+            KVServer server = new KVServer(port, new InMemoryKVStorage());
+            server.start();
+            servers.add(server);
+        }
+    }
+
+    @AfterEach
+    public void tearDown() {
+        servers.forEach(KVServer::stop);
+    }
+
+    @Test
+    void testBatchesMustBeSplitAcrossShards() {
+        ShardedKVClient client = new ShardedKVClient(List.of(url(8081), url(8082), url(8083)));
+        Map<String, String> values = values(300);
+        Assertions.assertTrue(client.putAll(values));
+
+        Assertions.assertEquals(values, client.loadAll(values.keySet()));
+        Assertions.assertEquals("{\"id\": 42}", client.load(key(42)));
+        int stored = 0;
+        for (int port : List.of(8081, 8082, 8083)) {
+            int shardSize = new KVTaskClient(url(port), null, client.getApiToken(url(port))).scan("task:", null, 1000).size();
+            Assertions.assertTrue(shardSize > 0);
+            stored += shardSize;
+        }
+        Assertions.assertEquals(300, stored);
+    }
+
+    @Test
+    void testScanMustMergeShardsInKeyOrder() {
+        ShardedKVClient client = new ShardedKVClient(List.of(url(8081), url(8082), url(8083)));
+        client.putAll(values(250));
+
+        List<String> keys = new ArrayList<>();
+        client.scan("task:", 40).forEachRemaining(entry -> keys.add(entry.getKey()));
+
+        List<String> expected = new ArrayList<>(values(250).keySet());
+        expected.sort(String::compareTo);
+        Assertions.assertEquals(expected, keys);
+    }
+
+    @Test
+    void testAddAndRemoveNodeMustMoveOnlyPartOfKeys() {
+        ShardedKVClient client = new ShardedKVClient(List.of(url(8081), url(8082), url(8083)));
+        Map<String, String> values = values(400);
+        client.putAll(values);
+
+        int moved = client.addNode(url(8084));
+        Assertions.assertTrue(moved > 0 && moved < 200, "перенесено ключей: " + moved);
+        Assertions.assertEquals(values, client.loadAll(values.keySet()));
+
+        client.removeNode(url(8082));
+        Assertions.assertEquals(values, client.loadAll(values.keySet()));
+        List<String> keys = new ArrayList<>();
+        client.scan("task:", 100).forEachRemaining(entry -> keys.add(entry.getKey()));
+        Assertions.assertEquals(400, keys.size());
+    }
+
+    @Test
+    void testFailedAddNodeMustAllowRetry() throws IOException {
+        ShardedKVClient client = new ShardedKVClient(List.of(url(8081), url(8082), url(8083)));
+        Map<String, String> values = values(400);
+        client.putAll(values);
+        servers.get(3).stop();
+
+        Assertions.assertThrows(RuntimeException.class, () -> client.addNode(url(8084)));
+        Assertions.assertEquals(values, client.loadAll(values.keySet()));
+
+        KVServer restarted = new KVServer(8084, new InMemoryKVStorage());
+        restarted.start();
+        servers.set(3, restarted);
+        Assertions.assertTrue(client.addNode(url(8084)) > 0);
+        Assertions.assertEquals(values, client.loadAll(values.keySet()));
+    }
+
+    @Test
+    void testWritesDuringAddNodeMustNotBeLost() throws InterruptedException {
+        ShardedKVClient client = new ShardedKVClient(List.of(url(8081), url(8082), url(8083)));
+        client.putAll(values(2000));
+        Map<String, String> written = new HashMap<>();
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 2000; i += 7) {
+                String json = "{\"id\": " + i + ", \"updated\": true}";
+                client.put(key(i), json);
+                written.put(key(i), json);
+            }
+        });
+        writer.start();
+        client.addNode(url(8084));
+        writer.join();
+
+        Map<String, String> loaded = client.loadAll(written.keySet());
+        Assertions.assertEquals(written, loaded);
+    }
+
+    @Test
+    void testRingMustMoveKeysOnlyToAddedNode() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<>(List.of("a", "b", "c", "d"), 128);
+        ConsistentHashRing<String> next = ring.with("e");
+        int moved = 0;
+        for (int i = 0; i < 10_000; i++) {
+            String owner = ring.nodeFor(key(i));
+            String nextOwner = next.nodeFor(key(i));
+            if (!owner.equals(nextOwner)) {
+                Assertions.assertEquals("e", nextOwner);
+                moved++;
+            }
+        }
+        Assertions.assertTrue(moved > 1000 && moved < 3000, "перенесено ключей: " + moved);
+    }
+
+    private static Map<String, String> values(int count) {
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            values.put(key(i), "{\"id\": " + i + "}");
+        }
+        return values;
+    }
+
+    private static String key(int id) {
+        return "task:" + id;
+    }
+
+    private static String url(int port) {
+        return "http://localhost:" + port;
+    }
+}
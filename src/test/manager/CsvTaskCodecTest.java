@@ -0,0 +1,121 @@
+package manager;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import task.Subtask;
+import task.Task;
+import task.TaskStatus;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+class CsvTaskCodecTest {
+
+    public static long START_TIME = 1_699_999_980_000L;
+
+    @Test
+    void testWriteAndReadMustKeepCommasQuotesAndLineBreaks() throws IOException {
+        Task task = new Task("Name, with \"quotes\"", "first line\nsecond line", TaskStatus.DONE, 90,
+                new Date(START_TIME));
+        task.setId(7);
+
+        CsvTaskReader reader = new CsvTaskReader(new StringReader(write(List.of(task), List.of())));
+        Assertions.assertTrue(reader.next());
+        Assertions.assertTrue(reader.next());
+        Task result = reader.readTask();
+
+        Assertions.assertEquals(7, result.getId());
+        Assertions.assertEquals(task.getName(), result.getName());
+        Assertions.assertEquals(task.getDescription(), result.getDescription());
+        Assertions.assertEquals(TaskStatus.DONE, result.getStatus());
+        Assertions.assertEquals(90, result.getDuration());
+        Assertions.assertEquals(task.getStartTime(), result.getStartTime());
+    }
+
+    @Test
+    void testReaderMustDistinguishNullFromQuotedNullString() throws IOException {
+        Task task = new Task(null, "null", TaskStatus.NEW, 0, null);
+
+        CsvTaskReader reader = new CsvTaskReader(new StringReader(write(List.of(task), List.of())));
+        reader.next();
+        reader.next();
+        Task result = reader.readTask();
+
+        Assertions.assertNull(result.getName());
+        Assertions.assertEquals("null", result.getDescription());
+        Assertions.assertNull(result.getStartTime());
+    }
+
+    @Test
+    void testReaderMustReadSubtasksAndHistory() throws IOException {
+        Subtask subtask = new Subtask("Sub", "Description", TaskStatus.IN_PROGRESS, 5, null, 2);
+        subtask.setId(3);
+
+        CsvTaskReader reader = new CsvTaskReader(new StringReader(write(List.of(subtask), List.of(subtask))));
+        reader.next();
+        reader.next();
+        Subtask result = (Subtask) reader.readTask();
+        Assertions.assertEquals(2, result.getEpicId());
+
+        Assertions.assertTrue(reader.next());
+        Assertions.assertTrue(reader.isBlank());
+        Assertions.assertTrue(reader.next());
+        Assertions.assertEquals(List.of(3), reader.readIds());
+        Assertions.assertFalse(reader.next());
+    }
+
+    @Test
+    void testReaderMustReadHistoryLongerThanTaskRecord() throws IOException {
+        List<Task> tasks = new ArrayList<>();
+        for (int i = 1; i <= 12; i++) {
+            Task task = new Task("Task" + i, TaskStatus.NEW, "Description task" + i);
+            task.setId(i);
+            tasks.add(task);
+        }
+
+        CsvTaskReader reader = new CsvTaskReader(new StringReader(write(tasks, tasks)));
+        for (int i = 0; i <= 12; i++) {
+            reader.next();
+        }
+        Assertions.assertEquals(12, reader.readTask().getId());
+        reader.next();
+        Assertions.assertTrue(reader.next());
+        Assertions.assertEquals(List.of(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12), reader.readIds());
+
+        reader.reset(new StringReader("5,TASK,Task5,NEW,Description,null,0,null"));
+        reader.next();
+        Assertions.assertEquals(5, reader.readTask().getId());
+    }
+
+    @Test
+    void testReaderMustAcceptDateWithoutTime() throws IOException {
+        CsvTaskReader reader = new CsvTaskReader(new StringReader("1,TASK,Task1,NEW,Description,02/01/1970,0,null"));
+        reader.next();
+
+        Assertions.assertEquals(new Date(24 * 60 * 60 * 1000L), reader.readTask().getStartTime());
+    }
+
+    @Test
+    void testReaderMustThrowRuntimeExceptionOnIncorrectDate() throws IOException {
+        CsvTaskReader reader = new CsvTaskReader(new StringReader("1,TASK,Task1,NEW,Description,12-10-43,0,null"));
+        reader.next();
+
+        Assertions.assertThrows(RuntimeException.class, reader::readTask);
+    }
+
+    private String write(List<Task> tasks, List<Task> history) throws IOException {
+        StringWriter result = new StringWriter();
+        CsvTaskWriter writer = new CsvTaskWriter(result);
+        writer.writeHeader();
+        for (Task task : tasks) {
+            writer.writeTask(task);
+        }
+        writer.writeHistory(history);
+        writer.flush();
+        return result.toString();
+    }
+}
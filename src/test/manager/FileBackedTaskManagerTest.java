@@ -9,10 +9,14 @@ import task.Task;
 import task.TaskStatus;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
 
 class FileBackedTaskManagerTest extends InMemoryTaskManagerTest {
 
@@ -139,6 +143,104 @@ class FileBackedTaskManagerTest extends InMemoryTaskManagerTest {
                 () -> FileBackedTaskManager.loadFromFile(fileContainsCrossroadsTasks.toFile()));
     }
 
+    @Test
+    void testLoadFromSegmentsMustRestoreTasksWithTheirIds() throws IOException {
+        File directory = Files.createTempDirectory("segments").toFile();
+        manager = FileBackedTaskManager.loadFromSegments(directory);
+        addDifferentTasksToManager(manager);
+        manager.deleteTask(1);
+
+        TaskManager restored = FileBackedTaskManager.loadFromSegments(directory);
+
+        Assertions.assertEquals(ZERO_SIZE, restored.getTasks().size());
+        Assertions.assertEquals(DEFAULT_EPIC_ID, restored.getEpics().iterator().next().getId());
+        Assertions.assertEquals(DEFAULT_SUBTASK_ID, restored.getSubtasks().iterator().next().getId());
+        Assertions.assertEquals(2, restored.getHistory().size());
+        Assertions.assertEquals(List.of(DEFAULT_SUBTASK_ID),
+                List.copyOf(restored.getEpic(DEFAULT_EPIC_ID).getSubtaskIds()));
+    }
+
+    @Test
+    void testSaveMustRewriteOnlyTheChangedEpicSegment() throws IOException {
+        File directory = Files.createTempDirectory("segments").toFile();
+        manager = FileBackedTaskManager.loadFromSegments(directory);
+        manager.addEpic(new Epic("Epic1", TaskStatus.NEW, "Description epic1"));
+        manager.addEpic(new Epic("Epic2", TaskStatus.NEW, "Description epic2"));
+        Path firstEpicSegment = directory.toPath().resolve("epic-1.csv");
+        Path secondEpicSegment = directory.toPath().resolve("epic-2.csv");
+        Files.setLastModifiedTime(firstEpicSegment, FileTime.fromMillis(0));
+
+        manager.addSubtask(new Subtask(2, "Sub Task3", "Description sub task3", TaskStatus.DONE));
+
+        Assertions.assertEquals(FileTime.fromMillis(0), Files.getLastModifiedTime(firstEpicSegment));
+        Assertions.assertTrue(Files.readString(secondEpicSegment).contains("Sub Task3"));
+    }
+
+    @Test
+    void testLoadFromSegmentsMustThrowOnChecksumMismatch() throws IOException {
+        File directory = Files.createTempDirectory("segments").toFile();
+        manager = FileBackedTaskManager.loadFromSegments(directory);
+        manager.addTask(new Task("Task1", TaskStatus.NEW, "Description task1"));
+        Files.writeString(directory.toPath().resolve("tasks.csv"), "broken");
+
+        Assertions.assertThrows(ManagerSaveException.class, () -> FileBackedTaskManager.loadFromSegments(directory));
+    }
+
+    @Test
+    void testLoadFromSegmentsMustSkipTornLastManifestRecord() throws IOException {
+        File directory = Files.createTempDirectory("segments").toFile();
+        manager = FileBackedTaskManager.loadFromSegments(directory);
+        manager.addTask(new Task("Task1", TaskStatus.NEW, "Description task1"));
+        Files.writeString(directory.toPath().resolve("manifest.csv"), "tasks.csv,12",
+                StandardOpenOption.APPEND);
+
+        TaskManager restored = FileBackedTaskManager.loadFromSegments(directory);
+        restored.addTask(new Task("Task2", TaskStatus.NEW, "Description task2"));
+
+        Assertions.assertEquals(2, FileBackedTaskManager.loadFromSegments(directory).getTasks().size());
+    }
+
+    @Test
+    void testLoadFromSegmentsMustFinishRenameInterruptedAfterManifestRecord() throws IOException {
+        File directory = Files.createTempDirectory("segments").toFile();
+        Path segment = directory.toPath().resolve("tasks.csv");
+        manager = FileBackedTaskManager.loadFromSegments(directory);
+        manager.addTask(new Task("Task1", TaskStatus.NEW, "Description task1"));
+        String previous = Files.readString(segment);
+        manager.addTask(new Task("Task2", TaskStatus.NEW, "Description task2"));
+        Files.move(segment, directory.toPath().resolve("tasks.csv.tmp"));
+        Files.writeString(segment, previous);
+
+        TaskManager restored = FileBackedTaskManager.loadFromSegments(directory);
+
+        Assertions.assertEquals(2, restored.getTasks().size());
+        Assertions.assertFalse(Files.exists(directory.toPath().resolve("tasks.csv.tmp")));
+    }
+
+    @Test
+    void testLoadFromFileMustDetectCompressedFile() throws IOException {
+        File file = Files.createTempFile("compressed", ".csv").toFile();
+        FileBackedTaskManager compressedManager = new FileBackedTaskManager(file.getPath());
+        compressedManager.setCompression(Compression.GZIP);
+        addDifferentTasksToManager(compressedManager);
+
+        manager = FileBackedTaskManager.loadFromFile(file);
+
+        Assertions.assertEquals(1, manager.getTasks().size());
+        Assertions.assertEquals(1, manager.getEpics().size());
+        Assertions.assertEquals(1, manager.getSubtasks().size());
+        Assertions.assertEquals(2, manager.getHistory().size());
+    }
+
+    @Test
+    void testCompressTextMustBeDetectedByDecompressText() {
+        String json = "[{\"name\":\"Task1\",\"description\":\"Description task1\"}]";
+
+        Assertions.assertEquals(json, Compression.decompressText(Compression.DEFLATE.compressText(json)));
+        Assertions.assertEquals(json, Compression.decompressText(Compression.GZIP.compressText(json)));
+        Assertions.assertEquals(json, Compression.decompressText(json));
+    }
+
     private void addDifferentTasksToManager(TaskManager manager) {
         manager.addTask(new Task("Task1", TaskStatus.NEW, "Description task1"));
         manager.addEpic(new Epic("Epic2", TaskStatus.DONE, "Description epic2"));
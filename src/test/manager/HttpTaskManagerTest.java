@@ -0,0 +1,345 @@
+package manager;
+
+import client.KVChangeListener;
+import client.KVClient;
+import client.KVSubscription;
+import client.KVTaskClient;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import server.KVServer;
+import task.Epic;
+import task.Subtask;
+import task.Task;
+import task.TaskStatus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+class HttpTaskManagerTest {
+
+    public static String URL = "http://localhost:" + KVServer.PORT;
+
+    KVServer server;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        server = new KVServer();
+        server.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    void testSubscribedManagerMustApplyWritesOfAnotherManager() throws InterruptedException {
+        HttpTaskManager origin = new HttpTaskManager(URL);
+        HttpTaskManager first = origin.loadAndSubscribe(URL);
+        HttpTaskManager second = origin.loadAndSubscribe(URL);
+
+        Task task = new Task("Task1", TaskStatus.NEW, "Description task1");
+        first.addTask(task);
+        Assertions.assertTrue(awaitTasks(second, 1));
+        Assertions.assertEquals("Task1", second.getTask(task.getId()).getName());
+
+        first.deleteTask(task.getId());
+        Assertions.assertTrue(awaitTasks(second, 0));
+        first.unsubscribe();
+        second.unsubscribe();
+    }
+
+    @Test
+    void testSubscribedManagerMustBeReadableWhileRemoteWritesApply() throws InterruptedException {
+        HttpTaskManager origin = new HttpTaskManager(URL);
+        HttpTaskManager first = origin.loadAndSubscribe(URL);
+        HttpTaskManager second = origin.loadAndSubscribe(URL);
+        List<Throwable> errors = new ArrayList<>();
+        Thread reader = new Thread(() -> {
+            try {
+                while (second.getTasks().size() < 50) {
+                    for (Task task : second.getTasks()) {
+                        task.getName();
+                    }
+                    second.getPrioritizedTasks();
+                }
+            } catch (RuntimeException e) {
+                errors.add(e);
+            }
+        });
+        reader.start();
+
+        for (int i = 0; i < 50; i++) {
+            first.addTask(new Task("Task" + i, TaskStatus.NEW, "Description task" + i));
+        }
+        reader.join(10_000);
+
+        Assertions.assertEquals(List.of(), errors);
+        Assertions.assertEquals(50, second.getTasks().size());
+        first.unsubscribe();
+        second.unsubscribe();
+    }
+
+    @Test
+    void testLazyManagerMustLoadTasksOnFirstAccess() {
+        HttpTaskManager manager = new HttpTaskManager(URL);
+        List<Task> tasks = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            tasks.add(new Task("Task" + i, TaskStatus.NEW, "Description task" + i));
+            manager.addTask(tasks.get(i));
+        }
+        Epic epic = new Epic("Epic1", TaskStatus.NEW, "Description epic1");
+        manager.addEpic(epic);
+        Subtask subtask = new Subtask(epic.getId(), "Subtask1", "Description subtask1", TaskStatus.DONE);
+        manager.addSubtask(subtask);
+        manager.getTask(tasks.get(3).getId());
+
+        HttpTaskManager lazy = manager.loadLazily(URL);
+
+        Assertions.assertEquals(List.of(tasks.get(3).getId()), lazy.getHistory().stream().map(Task::getId)
+                .collect(Collectors.toList()));
+        Assertions.assertEquals("Task7", lazy.getTask(tasks.get(7).getId()).getName());
+        Assertions.assertEquals(List.of(subtask.getId()), lazy.getEpicSubtasks(epic.getId()).stream()
+                .map(Task::getId).collect(Collectors.toList()));
+        Epic added = new Epic("Epic2", TaskStatus.NEW, "Description epic2");
+        lazy.addEpic(added);
+        Assertions.assertTrue(added.getId() > subtask.getId());
+        Assertions.assertEquals(20, lazy.getTasks().size());
+        Assertions.assertEquals(2, lazy.getEpics().size());
+    }
+
+    @Test
+    void testLoadMustRestoreTasksSavedAsLists() {
+        Gson gson = new Gson();
+        Task task = new Task("Task1", TaskStatus.NEW, "Description task1");
+        task.setId(1);
+        Epic epic = new Epic("Epic1", TaskStatus.NEW, "Description epic1");
+        epic.setId(2);
+        Subtask subtask = new Subtask(epic.getId(), "Subtask1", "Description subtask1", TaskStatus.DONE);
+        subtask.setId(3);
+        epic.addSubtask(subtask.getId());
+        KVTaskClient client = new KVTaskClient(URL);
+        client.putAll(Map.of("tasks", gson.toJson(List.of(task)), "epics", gson.toJson(List.of(epic)),
+                "subtasks", gson.toJson(List.of(subtask)), "history", "[3,1]"));
+
+        HttpTaskManager loaded = new HttpTaskManager(client, Compression.NONE).load(URL);
+
+        Assertions.assertEquals(List.of(3, 1), loaded.getHistory().stream().map(Task::getId)
+                .collect(Collectors.toList()));
+        Assertions.assertEquals("Task1", loaded.getTask(1).getName());
+        Assertions.assertEquals(List.of(3), loaded.getEpicSubtasks(2).stream().map(Task::getId)
+                .collect(Collectors.toList()));
+    }
+
+    @Test
+    void testSaveMustWriteOnlyTouchedKeys() {
+        RecordingClient client = new RecordingClient(new KVTaskClient(URL));
+        HttpTaskManager manager = new HttpTaskManager(client, Compression.NONE);
+        Task task = new Task("Task1", TaskStatus.NEW, "Description task1");
+        manager.addTask(task);
+        Epic epic = new Epic("Epic2", TaskStatus.NEW, "Description epic2");
+        manager.addEpic(epic);
+        client.written.clear();
+
+        task.setName("Task1 updated");
+        manager.updateTask(task);
+        Assertions.assertEquals(Set.of("task:" + task.getId()), client.written.keySet());
+
+        client.written.clear();
+        Subtask subtask = new Subtask(epic.getId(), "Subtask3", "Description subtask3", TaskStatus.DONE);
+        manager.addSubtask(subtask);
+        Assertions.assertEquals(Set.of("subtask:" + subtask.getId(), "epic:" + epic.getId(), "index"),
+                client.written.keySet());
+    }
+
+    @Test
+    void testDeleteMustWriteTombstoneAndDropIdFromIndex() {
+        KVTaskClient kvClient = new KVTaskClient(URL);
+        RecordingClient client = new RecordingClient(kvClient);
+        HttpTaskManager manager = new HttpTaskManager(client, Compression.NONE);
+        Task first = new Task("Task1", TaskStatus.NEW, "Description task1");
+        Task second = new Task("Task2", TaskStatus.NEW, "Description task2");
+        manager.addTask(first);
+        manager.addTask(second);
+        client.written.clear();
+
+        manager.deleteTask(first.getId());
+
+        Assertions.assertEquals("null", client.written.get("task:" + first.getId()));
+        Assertions.assertEquals(List.of(second.getId()), indexOf(client.written.get("index")).get("tasks"));
+        KVTaskClient otherClient = new KVTaskClient(URL, null, kvClient.getApiToken());
+        Assertions.assertEquals("null", otherClient.load("task:" + first.getId()));
+        Assertions.assertEquals(1, new HttpTaskManager(URL).load(otherClient).getTasks().size());
+    }
+
+    @Test
+    void testFailedSaveMustFallBackToFullSnapshot() {
+        KVTaskClient kvClient = new KVTaskClient(URL);
+        RecordingClient client = new RecordingClient(kvClient);
+        HttpTaskManager manager = new HttpTaskManager(client, Compression.NONE);
+        Task first = new Task("Task1", TaskStatus.NEW, "Description task1");
+        manager.addTask(first);
+        client.failWrites = true;
+        Task second = new Task("Task2", TaskStatus.NEW, "Description task2");
+        manager.addTask(second);
+        client.failWrites = false;
+        client.written.clear();
+
+        first.setName("Task1 updated");
+        manager.updateTask(first);
+
+        Assertions.assertEquals(Set.of("task:" + first.getId(), "task:" + second.getId(), "index", "history"),
+                client.written.keySet());
+        Assertions.assertEquals(2, new HttpTaskManager(kvClient, Compression.NONE).load(URL).getTasks().size());
+    }
+
+    @Test
+    void testLoadMustFailInsteadOfDeletingTasksThatDidNotLoad() {
+        Gson gson = new Gson();
+        Task task = new Task("Task1", TaskStatus.NEW, "Description task1");
+        task.setId(1);
+        KVTaskClient client = new KVTaskClient(URL);
+        client.putAll(Map.of("index", "{\"tasks\":[1,2],\"epics\":[],\"subtasks\":[]}",
+                "task:1", gson.toJson(task)));
+
+        Assertions.assertThrows(ManagerSaveException.class,
+                () -> new HttpTaskManager(client, Compression.NONE).load(client));
+        HttpTaskManager lazy = new HttpTaskManager(client, Compression.NONE).loadLazily(client);
+        Assertions.assertThrows(ManagerSaveException.class, lazy::deleteTasks);
+
+        Assertions.assertEquals(gson.toJson(task), client.load("task:1"));
+        Assertions.assertEquals("", client.load("task:2"));
+    }
+
+    private static Map<String, List<Integer>> indexOf(String json) {
+        return new Gson().fromJson(json, new TypeToken<Map<String, List<Integer>>>() {}.getType());
+    }
+
+    private static boolean awaitTasks(HttpTaskManager manager, int count) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            synchronized (manager) {
+                if (manager.getTasks().size() == count) {
+                    return true;
+                }
+            }
+            Thread.sleep(20);
+        }
+        return false;
+    }
+
+    // запоминает, какие ключи и значения менеджер отправил на сервер, и может отклонять записи
+    private static class RecordingClient implements KVClient {
+        private final KVClient delegate;
+        private final Map<String, String> written = new HashMap<>();
+        private boolean failWrites;
+
+        RecordingClient(KVClient delegate) {
+            this.delegate = delegate;
+        }
+
+        private synchronized boolean record(Map<String, String> values) {
+            if (failWrites) {
+                return false;
+            }
+            written.putAll(values);
+            return true;
+        }
+
+        @Override
+        public boolean put(String key, String json) {
+            return record(Map.of(key, json)) && delegate.put(key, json);
+        }
+
+        @Override
+        public String load(String key) {
+            return delegate.load(key);
+        }
+
+        @Override
+        public boolean putAll(Map<String, String> values) {
+            return record(values) && delegate.putAll(values);
+        }
+
+        @Override
+        public Map<String, String> loadAll(Collection<String> keys) {
+            return delegate.loadAll(keys);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> putAsync(String key, String json) {
+            return record(Map.of(key, json)) ? delegate.putAsync(key, json) : CompletableFuture.completedFuture(false);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> putAsync(String key, String json, long ttlMillis) {
+            return record(Map.of(key, json)) ? delegate.putAsync(key, json, ttlMillis)
+                    : CompletableFuture.completedFuture(false);
+        }
+
+        @Override
+        public CompletableFuture<String> loadAsync(String key) {
+            return delegate.loadAsync(key);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> putAllAsync(Map<String, String> values) {
+            return record(values) ? delegate.putAllAsync(values) : CompletableFuture.completedFuture(false);
+        }
+
+        @Override
+        public CompletableFuture<Map<String, String>> loadAllAsync(Collection<String> keys) {
+            return delegate.loadAllAsync(keys);
+        }
+
+        @Override
+        public String putIfMatch(String key, String json, String etag) {
+            return delegate.putIfMatch(key, json, etag);
+        }
+
+        @Override
+        public CompletableFuture<String> putIfMatchAsync(String key, String json, String etag) {
+            return delegate.putIfMatchAsync(key, json, etag);
+        }
+
+        @Override
+        public String getETag(String key) {
+            return delegate.getETag(key);
+        }
+
+        @Override
+        public Map<String, String> scan(String prefix, String after, int limit) {
+            return delegate.scan(prefix, after, limit);
+        }
+
+        @Override
+        public CompletableFuture<Map<String, String>> scanAsync(String prefix, String after, int limit) {
+            return delegate.scanAsync(prefix, after, limit);
+        }
+
+        @Override
+        public KVSubscription subscribe(KVChangeListener listener) {
+            return delegate.subscribe(listener);
+        }
+
+        @Override
+        public boolean flush() {
+            return delegate.flush();
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+    }
+}
@@ -2,13 +2,80 @@ package manager;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import server.KVServer;
+import task.Task;
+import task.TaskStatus;
+
+import java.io.IOException;
 
 class ManagersTest {
 
     @Test
-    void testGetDefault() {
-        TaskManager manager = Managers.getDefault("http://localhost:8080/tasks/task");
-        Assertions.assertTrue(manager instanceof HttpTaskManager);
+    void testGetDefault() throws IOException {
+        KVServer server = new KVServer();
+        server.start();
+        try {
+            TaskManager manager = Managers.getDefault("http://localhost:" + KVServer.PORT);
+            Assertions.assertTrue(manager instanceof HttpTaskManager);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testGetDefaultWithEmbeddedServerMustSaveTasksWithoutHttp() throws IOException {
+        KVServer server = new KVServer();
+        server.start();
+        try {
+            TaskManager manager = Managers.getDefault(server);
+            Assertions.assertTrue(manager instanceof HttpTaskManager);
+            Task task = new Task("Task1", TaskStatus.NEW, "Description task1");
+            manager.addTask(task);
+
+            TaskManager restored = Managers.getDefault(server);
+            Assertions.assertEquals("Task1", restored.getTask(task.getId()).getName());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testGetDefaultWithNamespaceMustNotSeeTasksOfOtherNamespaces() throws IOException {
+        KVServer server = new KVServer();
+        server.start();
+        try {
+            String url = "http://localhost:" + KVServer.PORT;
+            TaskManager first = Managers.getDefault(url, "board-1");
+            first.addTask(new Task("Task1", TaskStatus.NEW, "Description task1"));
+
+            Assertions.assertEquals(1, Managers.getDefault(url, "board-1", server.getApiToken()).getTasks().size());
+            Assertions.assertTrue(Managers.getDefault(url, "board-2").getTasks().isEmpty());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testGetDefaultMustSaveAndLoadInStableNamespace() throws IOException {
+        KVServer server = new KVServer();
+        server.start();
+        try {
+            String url = "http://localhost:" + KVServer.PORT;
+            TaskManager manager = Managers.getDefault(url);
+            Task task = new Task("Task1", TaskStatus.NEW, "Description task1");
+            manager.addTask(task);
+
+            TaskManager restarted = Managers.getDefault(url, Managers.DEFAULT_NAMESPACE, server.getApiToken());
+            Assertions.assertEquals("Task1", restarted.getTask(task.getId()).getName());
+            Assertions.assertThrows(ManagerSaveException.class, () -> Managers.getDefault(url));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testGetDefaultMustFailWhenServerIsUnavailable() {
+        Assertions.assertThrows(ManagerSaveException.class, () -> Managers.getDefault("http://localhost:8080"));
     }
 
     @Test
@@ -16,4 +83,4 @@ class ManagersTest {
         HistoryManager manager = Managers.getDefaultHistory();
         Assertions.assertTrue(manager instanceof InMemoryHistoryManager);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,64 @@
+package manager;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import task.Task;
+import task.TaskStatus;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+class SynchronizedTaskManagerTest {
+
+    @Test
+    void testConcurrentAddsMustKeepEveryTaskWithUniqueId() throws Exception {
+        SynchronizedTaskManager manager = new SynchronizedTaskManager(new InMemoryTaskManager());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int thread = 0; thread < 8; thread++) {
+            writers.add(executor.submit(() -> {
+                for (int i = 0; i < 200; i++) {
+                    manager.addTask(new Task("Task" + i, TaskStatus.NEW, "Description task" + i));
+                    manager.getTasks();
+                }
+            }));
+        }
+        for (Future<?> writer : writers) {
+            writer.get(10, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        Set<Integer> ids = new HashSet<>();
+        manager.getTasks().forEach(task -> ids.add(task.getId()));
+        Assertions.assertEquals(1600, ids.size());
+    }
+
+    @Test
+    void testAtomicallyMustNotAddTaskTwice() throws Exception {
+        SynchronizedTaskManager manager = new SynchronizedTaskManager(new InMemoryTaskManager());
+        Task task = new Task("Task1", TaskStatus.NEW, "Description task1");
+        manager.addTask(task);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int thread = 0; thread < 4; thread++) {
+            writers.add(executor.submit(() -> manager.atomically(delegate -> {
+                if (delegate.getTask(task.getId() + 1) == null) {
+                    delegate.addTask(new Task("Task2", TaskStatus.NEW, "Description task2"));
+                }
+                return null;
+            })));
+        }
+        for (Future<?> writer : writers) {
+            writer.get(10, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        Assertions.assertEquals(2, manager.getTasks().size());
+    }
+}
@@ -0,0 +1,70 @@
+package server;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+class BinaryServerTest {
+
+    static final int HTTP_PORT = 8088;
+
+    @Test
+    void testConnectionThatDoesNotReadResponsesMustGetAllOfThemLater() throws IOException, InterruptedException {
+        InMemoryKVStorage storage = new InMemoryKVStorage();
+        storage.put("task:1", new byte[512 * 1024]);
+        KVServer server = new KVServer(HTTP_PORT, storage, KVServer.BINARY_PORT);
+        server.start();
+        try (Socket socket = new Socket("localhost", KVServer.BINARY_PORT)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            byte[] token = server.getApiToken().getBytes(StandardCharsets.UTF_8);
+            writeFrame(out, 0, BinaryServer.AUTH, token);
+            out.flush();
+            int length = in.readInt();
+            Assertions.assertEquals(0, in.readInt());
+            Assertions.assertEquals(BinaryServer.OK, in.readByte());
+            in.skipBytes(length - Integer.BYTES - 1);
+
+            // ответов больше, чем сервер держит для одного соединения: он перестанет читать и продолжит, когда их заберут
+            int requests = 100;
+            byte[] key = "task:1".getBytes(StandardCharsets.UTF_8);
+            for (int i = 1; i <= requests; i++) {
+                writeFrame(out, i, BinaryServer.GET, key);
+            }
+            out.flush();
+            Thread.sleep(300);
+
+            Set<Integer> answered = new HashSet<>();
+            for (int i = 0; i < requests; i++) {
+                in.readInt();
+                answered.add(in.readInt());
+                Assertions.assertEquals(BinaryServer.OK, in.readByte());
+                in.readLong();
+                int valueLength = in.readInt();
+                Assertions.assertEquals(512 * 1024, valueLength);
+                in.readFully(new byte[valueLength]);
+            }
+            Assertions.assertEquals(requests, answered.size());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void writeFrame(DataOutputStream out, int requestId, byte operation, byte[] argument)
+            throws IOException {
+        out.writeInt(Integer.BYTES + 1 + Integer.BYTES + argument.length);
+        out.writeInt(requestId);
+        out.writeByte(operation);
+        out.writeInt(argument.length);
+        out.write(argument);
+    }
+}
@@ -0,0 +1,30 @@
+package server;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+class ChangeLogTest {
+
+    @Test
+    void testLogsMustShareByteBudgetAndTruncateOldChanges() {
+        AtomicLong usedBytes = new AtomicLong();
+        ChangeLog first = new ChangeLog(100, 1000, usedBytes, 0);
+        ChangeLog second = new ChangeLog(100, 1000, usedBytes, 0);
+        first.append(1, Map.of("task:1", new byte[300]));
+        second.append(1, Map.of("task:1", new byte[300]));
+
+        first.append(2, Map.of("task:2", new byte[300]));
+
+        Assertions.assertTrue(usedBytes.get() <= 1000, "занято байт: " + usedBytes.get());
+        Assertions.assertNull(first.since(0, 10));
+        Assertions.assertEquals(1, first.since(1, 10).size());
+        Assertions.assertEquals(1, second.since(0, 10).size());
+
+        first.reset(2);
+        second.reset(1);
+        Assertions.assertEquals(0, usedBytes.get());
+    }
+}
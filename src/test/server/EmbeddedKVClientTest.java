@@ -0,0 +1,113 @@
+package server;
+
+import client.KVChangeListener;
+import client.KVConflictException;
+import client.KVSubscription;
+import client.KVTaskClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+class EmbeddedKVClientTest {
+
+    public static String URL = "http://localhost:" + KVServer.PORT;
+
+    KVServer server;
+    EmbeddedKVClient client;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        server = new KVServer();
+        server.start();
+        client = new EmbeddedKVClient(server);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        client.close();
+        server.stop();
+    }
+
+    @Test
+    void testEmbeddedClientMustShareValuesAndETagsWithHttpClient() {
+        KVTaskClient httpClient = new KVTaskClient(URL, null, server.getApiToken());
+
+        Assertions.assertTrue(client.put("task:1", "{\"id\": 1}"));
+        Assertions.assertTrue(client.putAll(Map.of("task:2", "{\"id\": 2}", "epic:3", "{\"id\": 3}")));
+        Assertions.assertTrue(httpClient.put("task:4", "{\"id\": 4}"));
+
+        Assertions.assertEquals("{\"id\": 1}", httpClient.load("task:1"));
+        Assertions.assertEquals(httpClient.getETag("task:1"), client.getETag("task:1"));
+        Assertions.assertEquals("{\"id\": 4}", client.load("task:4"));
+        Assertions.assertEquals("", client.load("task:5"));
+        Assertions.assertEquals(Map.of("task:2", "{\"id\": 2}", "epic:3", "{\"id\": 3}"),
+                client.loadAll(List.of("task:2", "epic:3", "task:5")));
+        Assertions.assertEquals(List.of("task:2", "task:4"),
+                new ArrayList<>(client.scan("task:", "task:1", 10).keySet()));
+    }
+
+    @Test
+    void testPutIfMatchMustDetectConcurrentWrite() {
+        KVTaskClient httpClient = new KVTaskClient(URL, null, server.getApiToken());
+        String etag = client.putIfMatch("task:1", "{\"id\": 1}", null);
+        Assertions.assertNotNull(etag);
+        Assertions.assertThrows(KVConflictException.class, () -> client.putIfMatch("task:1", "{\"id\": 1}", null));
+
+        String httpETag = httpClient.putIfMatch("task:1", "{\"id\": 11}", etag);
+        KVConflictException conflict = Assertions.assertThrows(KVConflictException.class,
+                () -> client.putIfMatch("task:1", "{\"id\": 12}", etag));
+
+        Assertions.assertEquals(httpETag, conflict.getCurrentETag());
+        Assertions.assertEquals("{\"id\": 11}", client.load("task:1"));
+    }
+
+    @Test
+    void testEmbeddedClientMustRejectUnknownToken() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new EmbeddedKVClient(server, "unknown"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new EmbeddedKVClient(server, "DEBUG"));
+    }
+
+    @Test
+    void testEmbeddedClientMustWorkInNamespaceOfItsToken() {
+        KVTaskClient httpClient = new KVTaskClient(URL, "board-1");
+        EmbeddedKVClient board = new EmbeddedKVClient(server, httpClient.getApiToken());
+
+        Assertions.assertTrue(board.put("tasks", "[1]"));
+        Assertions.assertTrue(client.put("tasks", "[2]"));
+
+        Assertions.assertEquals("[1]", httpClient.load("tasks"));
+        Assertions.assertEquals("[2]", client.load("tasks"));
+    }
+
+    @Test
+    void testSubscriptionMustReceiveWritesOfOtherClients() throws InterruptedException {
+        BlockingQueue<Map<String, String>> received = new LinkedBlockingQueue<>();
+        KVSubscription subscription = client.subscribe(new KVChangeListener() {
+            @Override
+            public void onChange(long version, Map<String, String> values) {
+                received.add(values);
+            }
+
+            @Override
+            public void onReset() {
+                received.add(Map.of());
+            }
+        });
+
+        new KVTaskClient(URL, null, server.getApiToken()).put("task:1", "{\"id\": 1}");
+        client.putAll(Map.of("task:2", "{\"id\": 2}", "index", "[1,2]"));
+
+        Assertions.assertEquals(Map.of("task:1", "{\"id\": 1}"), received.poll(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(Map.of("task:2", "{\"id\": 2}", "index", "[1,2]"), received.poll(5, TimeUnit.SECONDS));
+        subscription.close();
+    }
+}
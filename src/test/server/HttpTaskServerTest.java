@@ -0,0 +1,159 @@
+package server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import manager.InMemoryTaskManager;
+import manager.TaskManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import task.Epic;
+import task.Subtask;
+import task.Task;
+import task.TaskStatus;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class HttpTaskServerTest {
+
+    static final int PORT = 8090;
+    static final String URL = "http://localhost:" + PORT;
+    static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    TaskManager manager;
+    HttpTaskServer server;
+    HttpClient client;
+    Gson gson = new Gson();
+
+    @BeforeEach
+    public void setup() throws IOException {
+        manager = new InMemoryTaskManager();
+        server = new HttpTaskServer(manager, "localhost", PORT);
+        server.start();
+        client = HttpClient.newHttpClient();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    void testEpicsMustBeReadableWhileSubtasksAreAdded() throws Exception {
+        Epic epic = new Epic("Epic1", TaskStatus.NEW, "Description epic1");
+        manager.addEpic(epic);
+        int existing = 500;
+        for (int i = 0; i < existing; i++) {
+            manager.addSubtask(new Subtask(epic.getId(), "Subtask" + i, "Description subtask" + i, TaskStatus.NEW));
+        }
+        int posted = 100;
+        int reads = 200;
+        AtomicInteger done = new AtomicInteger();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        List<Future<?>> readers = new ArrayList<>();
+        for (int thread = 0; thread < 3; thread++) {
+            readers.add(executor.submit(() -> {
+                while (writing.get()) {
+                    HttpResponse<String> response = get("/tasks/epic");
+                    Assertions.assertEquals(200, response.statusCode());
+                    JsonArray epics = gson.fromJson(response.body(), JsonArray.class);
+                    Assertions.assertEquals(1, epics.size());
+                    done.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+        Future<?> poster = executor.submit(() -> {
+            for (int i = 0; i < posted; i++) {
+                Subtask subtask = new Subtask(epic.getId(), "Subtask" + i, "Description subtask" + i, TaskStatus.NEW);
+                Assertions.assertEquals(200, post("/tasks/subtask", gson.toJson(subtask)).statusCode());
+            }
+            return null;
+        });
+        // так, под блокировкой менеджера, записи других менеджеров применяет подписка HttpTaskManager
+        Future<?> subscription = executor.submit(() -> {
+            while (done.get() < reads && readers.stream().noneMatch(Future::isDone)) {
+                synchronized (manager) {
+                    Subtask remote = new Subtask(epic.getId(), "Remote", "Description remote", TaskStatus.NEW);
+                    manager.addSubtask(remote);
+                    manager.deleteSubtask(remote.getId());
+                }
+                Thread.yield();
+            }
+            return null;
+        });
+
+        try {
+            poster.get(30, TimeUnit.SECONDS);
+            subscription.get(30, TimeUnit.SECONDS);
+            writing.set(false);
+            for (Future<?> reader : readers) {
+                reader.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            writing.set(false);
+            executor.shutdownNow();
+        }
+
+        HttpResponse<String> response = get("/tasks/epic?id=" + epic.getId());
+        Epic loaded = gson.fromJson(response.body(), Epic.class);
+        Assertions.assertEquals(existing + posted, loaded.getSubtaskIds().size());
+    }
+
+    @Test
+    void testTaskMustKeepUtf8TextAndListMustBeSentInChunks() throws IOException, InterruptedException {
+        Task task = new Task("Задача «Один»", TaskStatus.NEW, "Описание задачи ✓");
+        Assertions.assertEquals(200, post("/tasks/task", gson.toJson(task)).statusCode());
+        for (int i = 0; i < 2000; i++) {
+            manager.addTask(new Task("Task" + i, TaskStatus.NEW, "Description task" + i));
+        }
+
+        HttpResponse<String> response = get("/tasks/task");
+
+        Assertions.assertEquals(200, response.statusCode());
+        Assertions.assertEquals("chunked", response.headers().firstValue("Transfer-Encoding").orElse(""));
+        Assertions.assertEquals("application/json", response.headers().firstValue("Content-Type").orElse(""));
+        Task[] tasks = gson.fromJson(response.body(), Task[].class);
+        Assertions.assertEquals(2001, tasks.length);
+        Task loaded = gson.fromJson(get("/tasks/task?id=" + tasks[0].getId()).body(), Task.class);
+        Assertions.assertEquals("Задача «Один»", loaded.getName());
+        Assertions.assertEquals("Описание задачи ✓", loaded.getDescription());
+    }
+
+    @Test
+    void testEmptyMalformedAndTrailingBodiesMustBeRejected() throws IOException, InterruptedException {
+        String task = gson.toJson(new Task("Task1", TaskStatus.NEW, "Description task1"));
+        for (String body : List.of("", "null", "{", "{name: Task1}", "[]", task + " {}", task + "garbage")) {
+            Assertions.assertEquals(400, post("/tasks/task", body).statusCode(), body);
+        }
+        Assertions.assertTrue(manager.getTasks().isEmpty());
+
+        Assertions.assertEquals(200, post("/tasks/task", " " + task + "\n").statusCode());
+        Assertions.assertEquals(1, manager.getTasks().size());
+    }
+
+    private HttpResponse<String> get(String path) throws IOException, InterruptedException {
+        return client.send(HttpRequest.newBuilder().uri(URI.create(URL + path)).timeout(TIMEOUT).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpResponse<String> post(String path, String body) throws IOException, InterruptedException {
+        return client.send(HttpRequest.newBuilder().uri(URI.create(URL + path)).timeout(TIMEOUT)
+                .POST(HttpRequest.BodyPublishers.ofString(body)).build(), HttpResponse.BodyHandlers.ofString());
+    }
+}
@@ -0,0 +1,98 @@
+package server;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class InMemoryKVStorageTest {
+
+    @Test
+    void testBudgetMustEvictLeastRecentlyUsedKeys() {
+        InMemoryKVStorage storage = new InMemoryKVStorage(30, EvictionPolicy.lru());
+        storage.put("task:1", bytes("0123456789"));
+        storage.put("task:2", bytes("0123456789"));
+        storage.put("task:3", bytes("0123456789"));
+        storage.get("task:1");
+
+        storage.putAll(Map.of("task:4", bytes("0123456789")));
+
+        Assertions.assertNull(storage.get("task:2"));
+        Assertions.assertEquals(3, storage.getAll(List.of("task:1", "task:3", "task:4")).size());
+        Assertions.assertEquals(1, storage.getEvictions());
+        Assertions.assertEquals(30, storage.getUsedBytes());
+    }
+
+    @Test
+    void testExpiredValuesMustNotBeReadable() throws InterruptedException {
+        InMemoryKVStorage storage = new InMemoryKVStorage();
+        storage.put("session", bytes("{\"id\": 1}"), 50);
+        storage.put("task:1", bytes("{\"id\": 1}"));
+        Assertions.assertEquals("{\"id\": 1}", storage.get("session").getText());
+
+        Thread.sleep(100);
+
+        Assertions.assertNull(storage.get("session"));
+        Assertions.assertEquals(1, storage.scan("", null, 10).size());
+        storage.expire();
+        Assertions.assertEquals(1, storage.getExpirations());
+        Assertions.assertEquals(9, storage.getUsedBytes());
+        Assertions.assertTrue(storage.putIfVersion("session", bytes("{\"id\": 2}"), KVStorage.ABSENT) > 0);
+    }
+
+    @Test
+    void testTtlFirstPolicyMustEvictExpiringKeysBeforeOthers() {
+        InMemoryKVStorage storage = new InMemoryKVStorage(30, EvictionPolicy.ttlFirst());
+        storage.put("task:1", bytes("0123456789"));
+        storage.put("session:1", bytes("0123456789"), 60_000);
+        storage.put("task:2", bytes("0123456789"));
+
+        storage.put("task:3", bytes("0123456789"));
+
+        Assertions.assertNull(storage.get("session:1"));
+        Assertions.assertNotNull(storage.get("task:1"));
+        Assertions.assertEquals(1, storage.getEvictions());
+    }
+
+    @Test
+    void testEvictionMustSkipWrittenKeysAndContinue() {
+        InMemoryKVStorage storage = new InMemoryKVStorage(30, EvictionPolicy.ttlFirst());
+        storage.put("task:1", bytes("0123456789"));
+        storage.put("task:2", bytes("0123456789"));
+        storage.put("task:3", bytes("0123456789"));
+
+        storage.put("session:1", bytes("0123456789"), 60_000);
+
+        Assertions.assertNotNull(storage.get("session:1"));
+        Assertions.assertNull(storage.get("task:1"));
+        Assertions.assertEquals(30, storage.getUsedBytes());
+        Assertions.assertEquals(1, storage.getEvictions());
+    }
+
+    @Test
+    void testRemovalListenerMustGetEvictedAndExpiredKeys() throws InterruptedException {
+        InMemoryKVStorage storage = new InMemoryKVStorage(25, EvictionPolicy.lru());
+        Map<Long, List<String>> removed = new HashMap<>();
+        storage.setRemovalListener((version, keys) -> removed.put(version, List.copyOf(keys)));
+        storage.put("session", bytes("0123456789"), 50);
+        storage.put("task:1", bytes("0123456789"));
+        long version = storage.put("task:2", bytes("0123456789"));
+
+        Assertions.assertEquals(Map.of(version, List.of("session")), removed);
+
+        storage.put("task:3", bytes("01234"), 50);
+        Thread.sleep(100);
+        storage.expire();
+
+        Assertions.assertEquals(List.of("task:3"), removed.get(storage.lastVersion()));
+        Assertions.assertEquals(1, storage.getExpirations());
+        Assertions.assertEquals(1, storage.getEvictions());
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,441 @@
+package server;
+
+import client.KVChangeListener;
+import client.KVConflictException;
+import client.KVSubscription;
+import client.KVTaskClient;
+import client.KVUnavailableException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+class KVServerTest {
+
+    public static String URL = "http://localhost:" + KVServer.PORT;
+
+    KVServer server;
+    KVTaskClient client;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        server = new KVServer();
+        server.start();
+        client = new KVTaskClient(URL, null, server.getApiToken());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    void testPutAndLoadMustReturnSavedValue() {
+        Assertions.assertTrue(client.put("task1", "{\"name\": \"Task1\"}"));
+        Assertions.assertEquals("{\"name\": \"Task1\"}", client.load("task1"));
+    }
+
+    @Test
+    void testPutAllMustSaveEveryValueInOneBatch() {
+        Assertions.assertTrue(client.putAll(Map.of("task:1", "{\"id\": 1}", "task:2", "{\"id\": 2}")));
+
+        Map<String, String> values = client.loadAll(List.of("task:1", "task:2", "task:3"));
+
+        Assertions.assertEquals(Map.of("task:1", "{\"id\": 1}", "task:2", "{\"id\": 2}"), values);
+    }
+
+    @Test
+    void testAsyncRequestsMustCompleteWithLimitedInFlightRequests() {
+        KVTaskClient limitedClient = new KVTaskClient(URL, 2);
+        List<CompletableFuture<Boolean>> writes = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            writes.add(limitedClient.putAsync("task:" + i, "{\"id\": " + i + "}"));
+        }
+        writes.forEach(write -> Assertions.assertTrue(write.join()));
+
+        Assertions.assertEquals("{\"id\": 7}", limitedClient.loadAsync("task:7").join());
+    }
+
+    @Test
+    void testWriteBehindMustCoalesceWritesUntilFlush() {
+        KVTaskClient writeBehindClient = new KVTaskClient(URL, client.getApiToken(), List.of(), 2, 60_000);
+        writeBehindClient.put("history", "[1]");
+        writeBehindClient.put("history", "[1,2]");
+
+        Assertions.assertEquals("", client.load("history"));
+        Assertions.assertEquals("[1,2]", writeBehindClient.load("history"));
+
+        writeBehindClient.close();
+
+        Assertions.assertEquals("[1,2]", client.load("history"));
+    }
+
+    @Test
+    void testPutAllMustRejectWholeBatchWithEmptyValue() {
+        Assertions.assertFalse(client.putAll(Map.of("task:1", "{\"id\": 1}", "task:2", "")));
+
+        Assertions.assertTrue(client.loadAll(List.of("task:1", "task:2")).isEmpty());
+    }
+
+    @Test
+    void testCachedValuesMustBeRevalidatedAfterChangeByAnotherClient() {
+        KVTaskClient otherClient = new KVTaskClient(URL, null, client.getApiToken());
+        client.putAll(Map.of("task:1", "{\"id\": 1}", "task:2", "{\"id\": 2}"));
+        Assertions.assertEquals("{\"id\": 1}", client.load("task:1"));
+        Assertions.assertEquals("{\"id\": 1}", client.load("task:1"));
+
+        otherClient.put("task:1", "{\"id\": 1, \"name\": \"Task1\"}");
+
+        Assertions.assertEquals("{\"id\": 1, \"name\": \"Task1\"}", client.load("task:1"));
+        Assertions.assertEquals(Map.of("task:1", "{\"id\": 1, \"name\": \"Task1\"}", "task:2", "{\"id\": 2}"),
+                client.loadAll(List.of("task:1", "task:2")));
+    }
+
+    @Test
+    void testConcurrentWritesMustKeepEveryKeyAndLastBatch() {
+        KVTaskClient concurrentClient = new KVTaskClient(URL, client.getApiToken(), List.of(), 32, 0);
+        List<CompletableFuture<Boolean>> writes = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            keys.add("task:" + i);
+            writes.add(concurrentClient.putAsync("task:" + i, "{\"id\": " + i + "}"));
+            writes.add(concurrentClient.putAllAsync(Map.of("index", "[" + i + "]", "history", "[" + i + "]")));
+        }
+        writes.forEach(write -> Assertions.assertTrue(write.join()));
+
+        Map<String, String> values = client.loadAll(keys);
+        Assertions.assertEquals(200, values.size());
+        Assertions.assertEquals("{\"id\": 150}", values.get("task:150"));
+        Map<String, String> meta = client.loadAll(List.of("index", "history"));
+        Assertions.assertEquals(meta.get("index"), meta.get("history"));
+    }
+
+    @Test
+    void testLargeValuesMustBeReturnedUnchanged() {
+        String snapshot = "{\"name\": \"Задача\"}".repeat(100_000);
+        Assertions.assertTrue(client.put("snapshot", snapshot));
+        Assertions.assertTrue(client.putAll(Map.of("task:1", snapshot, "task:2", "{\"id\": 2}")));
+
+        KVTaskClient otherClient = new KVTaskClient(URL, null, client.getApiToken());
+        Assertions.assertEquals(snapshot, otherClient.load("snapshot"));
+        Assertions.assertEquals(Map.of("task:1", snapshot, "task:2", "{\"id\": 2}"),
+                otherClient.loadAll(List.of("task:1", "task:2")));
+    }
+
+    @Test
+    void testScanMustReturnKeysWithPrefixInOrderPageByPage() {
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < 25; i++) {
+            values.put(String.format("task:%03d", i), "{\"id\": " + i + "}");
+        }
+        values.put("epic:1", "{\"id\": 100}");
+        values.put("tasks", "[]");
+        client.putAll(values);
+
+        Map<String, String> page = client.scan("task:", "task:009", 5);
+        Assertions.assertEquals(List.of("task:010", "task:011", "task:012", "task:013", "task:014"),
+                new ArrayList<>(page.keySet()));
+
+        List<String> keys = new ArrayList<>();
+        client.scan("task:", 10).forEachRemaining(entry -> keys.add(entry.getKey()));
+        Assertions.assertEquals(25, keys.size());
+        Assertions.assertEquals("task:000", keys.get(0));
+        Assertions.assertEquals("task:024", keys.get(24));
+    }
+
+    @Test
+    void testPutIfMatchMustRejectWriteOverChangedValue() {
+        KVTaskClient otherClient = new KVTaskClient(URL, null, client.getApiToken());
+        String created = client.putIfMatch("index", "[1]", null);
+        Assertions.assertNotNull(created);
+        Assertions.assertEquals("[1]", otherClient.load("index"));
+
+        String updated = otherClient.putIfMatch("index", "[1,2]", otherClient.getETag("index"));
+        Assertions.assertNotEquals(created, updated);
+
+        KVConflictException conflict = Assertions.assertThrows(KVConflictException.class,
+                () -> client.putIfMatch("index", "[1,3]", client.getETag("index")));
+        Assertions.assertEquals(updated, conflict.getCurrentETag());
+        Assertions.assertThrows(KVConflictException.class, () -> client.putIfMatch("index", "[3]", null));
+
+        Assertions.assertEquals("[1,2]", client.load("index"));
+        Assertions.assertNotNull(client.putIfMatch("index", "[1,2,3]", client.getETag("index")));
+    }
+
+    @Test
+    void testFollowerMustServeReadsWithClientsOwnWrites() throws IOException {
+        KVServer follower = new KVServer(8079, new InMemoryKVStorage(), URL, server.getApiToken());
+        follower.start();
+        try {
+            KVTaskClient replicatedClient = new KVTaskClient(URL, client.getApiToken(),
+                    List.of("http://localhost:8079"), 4, 0);
+            for (int i = 0; i < 20; i++) {
+                Assertions.assertTrue(replicatedClient.put("history", "[" + i + "]"));
+                Assertions.assertEquals("[" + i + "]", replicatedClient.load("history"));
+            }
+            Assertions.assertTrue(replicatedClient.putAll(Map.of("task:1", "{\"id\": 1}", "task:2", "{\"id\": 2}")));
+            Assertions.assertEquals(2, replicatedClient.scan("task:", null, 10).size());
+
+            Assertions.assertFalse(new KVTaskClient("http://localhost:8079", null, client.getApiToken())
+                    .put("task:3", "{\"id\": 3}"));
+        } finally {
+            follower.stop();
+        }
+    }
+
+    @Test
+    void testFollowerMustResyncWhenLeaderLogDoesNotCoverIt() throws IOException, InterruptedException {
+        InMemoryKVStorage storage = new InMemoryKVStorage();
+        storage.putAll(Map.of("task:1", "{\"id\": 1}".getBytes(StandardCharsets.UTF_8)));
+        KVServer leader = new KVServer(8080, storage);
+        leader.start();
+        KVServer follower = null;
+        try {
+            new KVTaskClient("http://localhost:8080", null, leader.getApiToken()).put("task:2", "{\"id\": 2}");
+            follower = new KVServer(8079, new InMemoryKVStorage(), "http://localhost:8080", leader.getApiToken());
+            follower.start();
+            KVTaskClient followerClient = new KVTaskClient("http://localhost:8079", null, leader.getApiToken());
+            Map<String, String> values = Map.of();
+            for (int i = 0; i < 50 && values.size() < 2; i++) {
+                Thread.sleep(50);
+                values = followerClient.loadAll(List.of("task:1", "task:2"));
+            }
+            Assertions.assertEquals(Map.of("task:1", "{\"id\": 1}", "task:2", "{\"id\": 2}"), values);
+        } finally {
+            if (follower != null) {
+                follower.stop();
+            }
+            leader.stop();
+        }
+    }
+
+    @Test
+    void testResyncMustDropFollowerKeysMissingOnLeaderAndKeepLeaderVersions()
+            throws IOException, InterruptedException {
+        InMemoryKVStorage storage = new InMemoryKVStorage();
+        storage.putAll(Map.of("task:1", "{\"id\": 1}".getBytes(StandardCharsets.UTF_8)));
+        storage.putAll(Map.of("task:2", "{\"id\": 2}".getBytes(StandardCharsets.UTF_8)));
+        InMemoryKVStorage followerStorage = new InMemoryKVStorage();
+        for (int i = 0; i < 5; i++) {
+            followerStorage.putAll(Map.of("task:9", "{\"id\": 9}".getBytes(StandardCharsets.UTF_8)));
+        }
+        KVServer leader = new KVServer(8080, storage);
+        leader.start();
+        KVServer follower = null;
+        try {
+            follower = new KVServer(8079, followerStorage, "http://localhost:8080", leader.getApiToken());
+            follower.start();
+            for (int i = 0; i < 50 && followerStorage.get("task:9") != null; i++) {
+                Thread.sleep(50);
+            }
+            Assertions.assertNull(followerStorage.get("task:9"));
+            Assertions.assertEquals(1, followerStorage.get("task:1").getVersion());
+            Assertions.assertEquals(2, followerStorage.get("task:2").getVersion());
+        } finally {
+            if (follower != null) {
+                follower.stop();
+            }
+            leader.stop();
+        }
+    }
+
+    @Test
+    void testNamespacesMustNotSeeEachOtherKeys() {
+        KVTaskClient first = new KVTaskClient(URL, "board-1");
+        KVTaskClient second = new KVTaskClient(URL, "board-2");
+        KVTaskClient firstAgain = new KVTaskClient(URL, "board-1", first.getApiToken());
+        Assertions.assertNotEquals(first.getApiToken(), firstAgain.getApiToken());
+
+        Assertions.assertTrue(first.put("tasks", "[1]"));
+        Assertions.assertTrue(second.put("tasks", "[2]"));
+        Assertions.assertTrue(client.put("tasks", "[3]"));
+
+        Assertions.assertEquals("[1]", firstAgain.load("tasks"));
+        Assertions.assertEquals("[2]", second.load("tasks"));
+        Assertions.assertEquals("[3]", client.load("tasks"));
+        Assertions.assertEquals(Map.of("tasks", "[2]"), second.scan("", null, 10));
+        Assertions.assertThrows(KVUnavailableException.class, () -> new KVTaskClient(URL, "../board"));
+    }
+
+    @Test
+    void testRegisterWithoutTokenMustCreateNewNamespace() {
+        KVTaskClient first = new KVTaskClient(URL);
+        KVTaskClient second = new KVTaskClient(URL);
+        Assertions.assertNotEquals(server.getApiToken(), first.getApiToken());
+        Assertions.assertNotEquals(first.getApiToken(), second.getApiToken());
+
+        Assertions.assertTrue(first.put("tasks", "[1]"));
+        Assertions.assertTrue(client.put("tasks", "[3]"));
+
+        Assertions.assertEquals("", second.load("tasks"));
+        Assertions.assertEquals("[1]", new KVTaskClient(URL, null, first.getApiToken()).load("tasks"));
+        Assertions.assertEquals("[3]", client.load("tasks"));
+    }
+
+    @Test
+    void testRegisterInExistingNamespaceMustRequireItsTokenOrServerToken() throws IOException, InterruptedException {
+        KVTaskClient first = new KVTaskClient(URL, "board-1");
+        Assertions.assertTrue(first.put("tasks", "[1]"));
+        KVTaskClient other = new KVTaskClient(URL, "board-2");
+
+        Assertions.assertEquals(403, register("?namespace=board-1"));
+        Assertions.assertEquals(403, register("?namespace=board-1&API_TOKEN=" + other.getApiToken()));
+        Assertions.assertEquals(403, register("?namespace=default"));
+        Assertions.assertEquals(403, register("?API_TOKEN=unknown"));
+        Assertions.assertEquals("[1]", new KVTaskClient(URL, "board-1", server.getApiToken()).load("tasks"));
+        Assertions.assertEquals("[1]", new KVTaskClient(URL, "board-1", first.getApiToken()).load("tasks"));
+    }
+
+    @Test
+    void testOldestTokenMustBeRevokedOverLimit() {
+        KVTaskClient first = new KVTaskClient(URL, "board-1");
+        Assertions.assertTrue(first.put("tasks", "[1]"));
+        KVTaskClient last = first;
+        for (int i = 0; i < KVServer.MAX_TOKENS_PER_NAMESPACE; i++) {
+            last = new KVTaskClient(URL, "board-1", last.getApiToken());
+        }
+
+        Assertions.assertNull(server.namespaceOf(first.getApiToken()));
+        Assertions.assertFalse(first.put("tasks", "[2]"));
+        Assertions.assertEquals("[1]", last.load("tasks"));
+        Assertions.assertNotNull(server.namespaceOf(server.getApiToken()));
+    }
+
+    @Test
+    void testWriteOverNamespaceQuotaMustBeRejected() throws IOException {
+        KVServer limited = new KVServer(8080, new InMemoryKVStorage(), name -> new InMemoryKVStorage(), 10);
+        limited.start();
+        try {
+            KVTaskClient board = new KVTaskClient("http://localhost:8080", "board-1");
+            Assertions.assertTrue(board.put("tasks", "[1,2,3]"));
+            Assertions.assertFalse(board.put("history", "[1,2,3]"));
+            Assertions.assertTrue(board.put("tasks", "[1,2,3,4]"));
+            Assertions.assertEquals("[1,2,3,4]", board.load("tasks"));
+            Assertions.assertEquals("", board.load("history"));
+            // квота у каждого пространства своя, а пространство по умолчанию не ограничено
+            Assertions.assertTrue(new KVTaskClient("http://localhost:8080", "board-2").put("history", "[1,2,3]"));
+            Assertions.assertTrue(new KVTaskClient("http://localhost:8080", null, limited.getApiToken())
+                    .put("history", "[1,2,3,4,5,6,7,8,9]"));
+        } finally {
+            limited.stop();
+        }
+    }
+
+    @Test
+    void testValueWithTtlMustExpire() throws InterruptedException {
+        Assertions.assertTrue(client.put("session", "{\"id\": 1}", 100));
+        Assertions.assertEquals("{\"id\": 1}", client.load("session"));
+
+        Thread.sleep(200);
+
+        Assertions.assertEquals("", client.load("session"));
+        Assertions.assertFalse(client.put("session", "{\"id\": 1}", 0));
+    }
+
+    @Test
+    void testExpiredValueMustReachSubscribersAndFollowersAsDeletion() throws IOException, InterruptedException {
+        BlockingQueue<Map<String, String>> received = new LinkedBlockingQueue<>();
+        KVSubscription subscription = client.subscribe(listener(received));
+        InMemoryKVStorage followerStorage = new InMemoryKVStorage();
+        KVServer follower = new KVServer(8079, followerStorage, URL, server.getApiToken());
+        follower.start();
+        try {
+            Assertions.assertTrue(client.put("session", "{\"id\": 1}", 100));
+            Assertions.assertEquals(Map.of("session", "{\"id\": 1}"), received.poll(5, TimeUnit.SECONDS));
+
+            Assertions.assertEquals(Collections.singletonMap("session", null), received.poll(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 50 && followerStorage.get("session") != null; i++) {
+                Thread.sleep(50);
+            }
+            Assertions.assertNull(followerStorage.get("session"));
+            Assertions.assertEquals(0, followerStorage.getUsedBytes());
+        } finally {
+            subscription.close();
+            follower.stop();
+        }
+    }
+
+    @Test
+    void testStatsMustReportExpirations() throws IOException, InterruptedException {
+        Assertions.assertTrue(client.put("session", "{\"id\": 1}", 50));
+        Thread.sleep(100);
+        client.put("task:1", "{\"id\": 1}");
+
+        HttpResponse<String> response = HttpClient.newHttpClient().send(HttpRequest.newBuilder()
+                .uri(URI.create(URL + "/stats?API_TOKEN=" + client.getApiToken())).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+
+        Assertions.assertEquals(200, response.statusCode());
+        Assertions.assertTrue(response.body().startsWith("{\"usedBytes\":9,\"evictions\":0,\"expirations\":1,"),
+                response.body());
+    }
+
+    @Test
+    void testSubscriptionMustReceiveWritesInVersionOrder() throws InterruptedException {
+        BlockingQueue<Map<String, String>> received = new LinkedBlockingQueue<>();
+        KVSubscription subscription = client.subscribe(listener(received));
+
+        client.put("task:1", "{\"id\": 1}");
+        client.putAll(Map.of("task:2", "{\"id\": 2}", "index", "[1,2]"));
+
+        Assertions.assertEquals(Map.of("task:1", "{\"id\": 1}"), received.poll(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(Map.of("task:2", "{\"id\": 2}", "index", "[1,2]"), received.poll(5, TimeUnit.SECONDS));
+        subscription.close();
+    }
+
+    @Test
+    void testWaitingWatchesMustNotBlockOtherRequests() throws InterruptedException {
+        int subscribers = 2 * Runtime.getRuntime().availableProcessors() + 2;
+        List<BlockingQueue<Map<String, String>>> received = new ArrayList<>();
+        List<KVSubscription> subscriptions = new ArrayList<>();
+        for (int i = 0; i < subscribers; i++) {
+            BlockingQueue<Map<String, String>> queue = new LinkedBlockingQueue<>();
+            received.add(queue);
+            subscriptions.add(new KVTaskClient(URL, null, client.getApiToken()).subscribe(listener(queue)));
+        }
+        Thread.sleep(100);
+
+        Assertions.assertTrue(client.put("history", "[1]"));
+        Assertions.assertEquals("[1]", client.load("history"));
+        for (BlockingQueue<Map<String, String>> queue : received) {
+            Assertions.assertEquals(Map.of("history", "[1]"), queue.poll(5, TimeUnit.SECONDS));
+        }
+        subscriptions.forEach(KVSubscription::close);
+    }
+
+    private static int register(String query) throws IOException, InterruptedException {
+        return HttpClient.newHttpClient().send(HttpRequest.newBuilder()
+                .uri(URI.create(URL + "/register" + query)).GET().build(),
+                HttpResponse.BodyHandlers.ofString()).statusCode();
+    }
+
+    private static KVChangeListener listener(BlockingQueue<Map<String, String>> received) {
+        return new KVChangeListener() {
+            @Override
+            public void onChange(long version, Map<String, String> values) {
+                received.add(values);
+            }
+
+            @Override
+            public void onReset() {
+                received.add(Map.of());
+            }
+        };
+    }
+}
@@ -0,0 +1,105 @@
+package server;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class LogStructuredKVStorageTest {
+
+    Path log;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        log = Files.createTempDirectory("kv").resolve("kv.log");
+    }
+
+    @Test
+    void testReopenMustRestoreValuesAndVersions() throws IOException {
+        long version;
+        try (LogStructuredKVStorage storage = new LogStructuredKVStorage(log)) {
+            storage.put("task:1", bytes("{\"id\": 1}"));
+            storage.put("task:1", bytes("{\"id\": 1, \"name\": \"Task1\"}"));
+            version = storage.putAll(Map.of("task:2", bytes("{\"id\": 2}"), "index", bytes("[1,2]")));
+        }
+
+        try (LogStructuredKVStorage storage = new LogStructuredKVStorage(log)) {
+            Assertions.assertEquals("{\"id\": 1, \"name\": \"Task1\"}", storage.get("task:1").getText());
+            Assertions.assertEquals(version, storage.get("index").getVersion());
+            Assertions.assertEquals(2, storage.getAll(List.of("task:2", "index", "task:3")).size());
+            Assertions.assertTrue(storage.put("task:3", bytes("{\"id\": 3}")) > version);
+        }
+    }
+
+    @Test
+    void testAppliedRemovalMustSurviveReopen() throws IOException {
+        try (LogStructuredKVStorage storage = new LogStructuredKVStorage(log)) {
+            storage.putAll(Map.of("task:1", bytes("{\"id\": 1}"), "task:2", bytes("{\"id\": 2}")));
+            Map<String, byte[]> removal = new HashMap<>();
+            removal.put("task:1", null);
+            storage.apply(7, removal);
+            Assertions.assertNull(storage.get("task:1"));
+        }
+
+        try (LogStructuredKVStorage storage = new LogStructuredKVStorage(log)) {
+            Assertions.assertNull(storage.get("task:1"));
+            Assertions.assertEquals(List.of("task:2"), List.copyOf(storage.scan("task:", null, 10).keySet()));
+            Assertions.assertEquals(7, storage.lastVersion());
+        }
+    }
+
+    @Test
+    void testReopenMustDropTornTail() throws IOException {
+        try (LogStructuredKVStorage storage = new LogStructuredKVStorage(log,
+                LogStructuredKVStorage.SyncPolicy.ALWAYS, 0)) {
+            storage.put("task:1", bytes("{\"id\": 1}"));
+            storage.putAll(Map.of("task:2", bytes("{\"id\": 2}"), "task:3", bytes("{\"id\": 3}")));
+        }
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        try (LogStructuredKVStorage storage = new LogStructuredKVStorage(log)) {
+            Assertions.assertEquals("{\"id\": 1}", storage.get("task:1").getText());
+            Assertions.assertTrue(storage.getAll(List.of("task:2", "task:3")).isEmpty());
+            storage.put("task:2", bytes("{\"id\": 2}"));
+        }
+        try (LogStructuredKVStorage storage = new LogStructuredKVStorage(log)) {
+            Assertions.assertEquals("{\"id\": 2}", storage.get("task:2").getText());
+        }
+    }
+
+    @Test
+    void testCompactionMustKeepLatestValues() throws IOException, InterruptedException {
+        String value = "x".repeat(1024);
+        try (LogStructuredKVStorage storage = new LogStructuredKVStorage(log)) {
+            for (int i = 0; i < 3000; i++) {
+                storage.put("task:" + i % 10, bytes(value + i));
+            }
+            for (int i = 0; i < 100 && Files.size(log) > 1 << 20; i++) {
+                Thread.sleep(50);
+            }
+            storage.put("task:0", bytes("{\"id\": 0}"));
+            Assertions.assertTrue(Files.size(log) < 1 << 20);
+            Assertions.assertEquals(value + 2999, storage.get("task:9").getText());
+        }
+
+        try (LogStructuredKVStorage storage = new LogStructuredKVStorage(log)) {
+            Assertions.assertEquals("{\"id\": 0}", storage.get("task:0").getText());
+            Assertions.assertEquals(value + 2991, storage.get("task:1").getText());
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}